@@ -0,0 +1,167 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the rendering and undo hot paths, timing the same operations on the same synthetic drawings as DoilyBenchmark, with JMH's forking and warm up.
+ * Built with mvn -P jmh package and run with e.g. java -jar target/benchmarks.jar -prof gc -p sectors=12 -p size=800x600, where the gc profiler reports the
+ * allocation rate and bytes allocated per operation (including the untimed setup before each one, so the segment benchmark's figure is higher than DoilyBenchmark's).
+ * JMH does not allow benchmarks in the default package, and classes outside it cannot refer to the application, so the operations are found with reflection
+ * through DoilyBenchmark.prepare() when each drawing is created, and only called through Callable while timing
+ * @author Dan
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DoilyJmh {
+	/**
+	 * A panel containing a synthetic drawing, created once for each combination of parameters, and the operation timed on it
+	 */
+	@State(Scope.Thread)
+	public static abstract class Drawing {
+		@Param({"200", "2000"})
+		public int strokes; // Number of strokes in the drawing
+		@Param({"50"})
+		public int points; // Number of points in each stroke
+		@Param({"2", "12", "36"})
+		public int sectors; // Number of sectors
+		@Param({"false", "true"})
+		public boolean reflect; // Whether the strokes are reflected
+		@Param({"800x600", "3840x2160"})
+		public String size; // Size of the panel
+
+		private Callable<?> setup; // Untimed setup before each operation
+		private Callable<?> operation; // Operation being timed
+
+		/**
+		 * @return Name of the benchmark in DoilyBenchmark
+		 */
+		abstract String name();
+
+		@Setup(Level.Trial)
+		public void createDrawing() throws Exception{
+			String[] wh = this.size.split("x");
+			Callable<?>[] prepared = (Callable<?>[]) Class.forName("DoilyBenchmark")
+					.getMethod("prepare", String.class, int.class, int.class, int.class, boolean.class, int.class, int.class)
+					.invoke(null, this.name(), this.strokes, this.points, this.sectors, this.reflect, Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+			this.setup = prepared[0];
+			this.operation = prepared[1];
+		}
+
+		@Setup(Level.Invocation)
+		public void setup() throws Exception{
+			this.setup.call();
+		}
+
+		Object operation() throws Exception{
+			return this.operation.call();
+		}
+	}
+
+	public static class Drag extends Drawing {
+		@Override
+		String name(){
+			return "drag";
+		}
+	}
+
+	public static class Segment extends Drawing {
+		@Override
+		String name(){
+			return "segment";
+		}
+	}
+
+	public static class Redraw extends Drawing {
+		@Override
+		String name(){
+			return "redraw";
+		}
+	}
+
+	public static class Undo extends Drawing {
+		@Override
+		String name(){
+			return "undo";
+		}
+	}
+
+	public static class Pan extends Drawing {
+		@Override
+		String name(){
+			return "pan";
+		}
+	}
+
+	public static class Gallery extends Drawing {
+		@Override
+		String name(){
+			return "gallery";
+		}
+	}
+
+	/**
+	 * Draws one whole stroke through the mouse listener (DoilyPanel.paintStroke and the rest of the interactive paint path)
+	 */
+	@Benchmark
+	public Object drag(Drag state) throws Exception{
+		return state.operation();
+	}
+
+	/**
+	 * Paints the drag events of a stroke on their own, one point at a time
+	 */
+	@Benchmark
+	public Object segment(Segment state) throws Exception{
+		return state.operation();
+	}
+
+	/**
+	 * Redraws the whole drawing (DoilyPanel.redrawImage), until the new tiles are published
+	 */
+	@Benchmark
+	public Object redraw(Redraw state) throws Exception{
+		return state.operation();
+	}
+
+	/**
+	 * Undoes the most recent stroke (DoilyDrawing.undo), until the new tiles are published
+	 */
+	@Benchmark
+	public Object undo(Undo state) throws Exception{
+		return state.operation();
+	}
+
+	/**
+	 * Pans the view by a tile, until the tiles which come into view have been drawn
+	 */
+	@Benchmark
+	public Object pan(Pan state) throws Exception{
+		return state.operation();
+	}
+
+	/**
+	 * Creates a gallery thumbnail of the drawing (GalleryImage), including its scaling and compression
+	 */
+	@Benchmark
+	public Object gallery(Gallery state) throws Exception{
+		return state.operation();
+	}
+}
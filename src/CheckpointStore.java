@@ -0,0 +1,141 @@
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores snapshots of the tile cache taken after a certain number of strokes. A full redraw (e.g. after an undo) can then start from
+ * the nearest snapshot and only replay the strokes drawn after it, rather than every stroke in the drawing.
+ * Snapshots are kept under a memory budget, with the least recently used being discarded first
+ * @author Dan
+ *
+ */
+public class CheckpointStore {
+	private LinkedHashMap<Long, Checkpoint> checkpoints = new LinkedHashMap<Long, Checkpoint>(16, 0.75f, true); // Access ordered so the first entry is the least recently used
+	private long budget; // Maximum number of bytes of tile data to store
+	private long used = 0; // Bytes of tile data currently stored
+
+	/**
+	 * Creates a new empty store
+	 * @param budget Maximum number of bytes that the snapshots may use
+	 */
+	public CheckpointStore(long budget){
+		this.budget = budget;
+	}
+
+	/**
+	 * Combines the number of strokes and sectors of a snapshot into the key used to store it
+	 */
+	private static long key(int strokeCount, int sectorCount){
+		return ((long) sectorCount << 32) | strokeCount;
+	}
+
+	/**
+	 * Takes a snapshot of the tiles, which must contain exactly the first strokeCount strokes of the drawing.
+	 * The least recently used snapshots are discarded if the store goes over budget
+	 * @param strokeCount Number of strokes drawn into the tiles
+	 * @param sectorCount Number of sectors the strokes were drawn with
+	 * @param tiles Tile cache to take a copy of
+	 */
+	public void add(int strokeCount, int sectorCount, TileCache tiles){
+		Checkpoint cp = new Checkpoint(strokeCount, tiles.copyTiles());
+		Checkpoint old = this.checkpoints.put(key(strokeCount, sectorCount), cp);
+		if (old != null){
+			this.used -= old.getBytes();
+		}
+		this.used += cp.getBytes();
+
+		// Evicts the least recently used snapshots until back under budget (keeping the newest one)
+		Iterator<Checkpoint> it = this.checkpoints.values().iterator();
+		while (this.used > this.budget && this.checkpoints.size() > 1){
+			this.used -= it.next().getBytes();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Finds the most recent snapshot that can be used to draw the first strokeCount strokes
+	 * @param strokeCount Number of strokes to be drawn
+	 * @param sectorCount Number of sectors the strokes will be drawn with
+	 * @return The snapshot with the most strokes not greater than strokeCount, or null if there is none
+	 */
+	public Checkpoint nearest(int strokeCount, int sectorCount){
+		Checkpoint best = null;
+		for (Map.Entry<Long, Checkpoint> entry : this.checkpoints.entrySet()){
+			Checkpoint cp = entry.getValue();
+			if ((int) (entry.getKey() >> 32) == sectorCount && cp.getStrokeCount() <= strokeCount
+					&& (best == null || cp.getStrokeCount() > best.getStrokeCount())){
+				best = cp;
+			}
+		}
+		if (best != null){
+			this.checkpoints.get(key(best.getStrokeCount(), sectorCount)); // Marks as recently used
+		}
+		return best;
+	}
+
+	/**
+	 * Discards any snapshots which contain more than strokeCount strokes, as these strokes have been undone
+	 * @param strokeCount Number of strokes now in the drawing
+	 */
+	public void truncate(int strokeCount){
+		Iterator<Checkpoint> it = this.checkpoints.values().iterator();
+		while (it.hasNext()){
+			Checkpoint cp = it.next();
+			if (cp.getStrokeCount() > strokeCount){
+				this.used -= cp.getBytes();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return Approximate bytes used by all of the snapshots
+	 */
+	public long getBytesUsed(){
+		return this.used;
+	}
+
+	/**
+	 * Discards all of the snapshots (e.g. if the drawing has been cleared)
+	 */
+	public void clear(){
+		this.checkpoints.clear();
+		this.used = 0;
+	}
+
+	/**
+	 * A snapshot of the tile cache after a certain number of strokes have been drawn
+	 */
+	static class Checkpoint {
+		private int strokeCount; // Number of strokes drawn into the tiles
+		private HashMap<Long, BufferedImage> tiles; // Copies of the tiles
+
+		Checkpoint(int strokeCount, HashMap<Long, BufferedImage> tiles){
+			this.strokeCount = strokeCount;
+			this.tiles = tiles;
+		}
+
+		/**
+		 * @return Number of strokes contained in the snapshot
+		 */
+		int getStrokeCount(){
+			return this.strokeCount;
+		}
+
+		/**
+		 * @return Copies of the tiles, indexed by their key
+		 */
+		HashMap<Long, BufferedImage> getTiles(){
+			return this.tiles;
+		}
+
+		/**
+		 * @return Approximate memory used by the tiles
+		 */
+		long getBytes(){
+			return (long) this.tiles.size() * TileCache.TILE_SIZE * TileCache.TILE_SIZE * 4;
+		}
+	}
+}
@@ -1,153 +1,224 @@
-import java.awt.FlowLayout;
-import java.awt.GridLayout;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-
-import javax.swing.JButton;
-import javax.swing.JCheckBox;
-import javax.swing.JColorChooser;
-import javax.swing.JLabel;
-import javax.swing.JPanel;
-import javax.swing.JSlider;
-import javax.swing.JSpinner;
-import javax.swing.SpinnerNumberModel;
-import javax.swing.SwingConstants;
-import javax.swing.event.ChangeEvent;
-import javax.swing.event.ChangeListener;
-
-/**
- * Contains all of the components and layout for the control panel. Is linked to the GalleryScrollPanel to allow save button functionality to be added
- * @author Dan
- *
- */
-public class ControlPanel extends JPanel{
-	private DoilyPanel doilyPanel; // Doily Panel that these buttons control
-	private JButton undoBtn; // Reverses actions taken
-	private JButton clearBtn; // Erases the drawing
-	private JLabel sectorLbl; // Label attached to sectorSpin
-	private JSpinner sectorSpin; // Controls number of sectors visible
-	private JLabel sizeLbl; // Attached to sizeSlider
-	private JSlider sizeSlider; // Controls the size of the pen
-	private JButton colourBtn; // Button to allow pen colour to be changed
-	private JCheckBox sectorToggle; // Toggle whether sector lines should be drawn
-	private JCheckBox reflectToggle; // Toggle whether drawn points should be reflected in each sector
-	private JButton saveBtn; // Saves current image state into the gallery
-
-	/**
-	 * Constructs a new instance of control panel, initialising all components 
-	 * @param dp DoilyPanel which this ControlPanel will be controlling
-	 * @param gp The GalleryScrollPanel that is used, so that save button functionality can be added
-	 */
-	public ControlPanel(DoilyPanel dp, GalleryScrollPanel gp){
-		this.doilyPanel = dp;
-		this.initComponents();
-		this.attachListeners(gp);
-		this.addComponents();
-		gp.setSaveBtn(this.saveBtn); // Attaches to Gallery so it can manage enabling the button
-		
-	}
-
-	/**
-	 * Attaches new listener objects to all of the components
-	 * @param gp GalleryScrollPanel used for save button
-	 */
-	private void attachListeners(GalleryScrollPanel gp){
-		DoilyDrawing dd = doilyPanel.getDoilyDrawing();
-		
-		// Below use lambda commands to simplify anonymous classes
-		clearBtn.addActionListener(e->dd.clear());
-		undoBtn.addActionListener(e->dd.undo());
-		sectorSpin.addChangeListener(e->dd.setSectorCount((int)sectorSpin.getValue()));
-		colourBtn.addActionListener(e->dd.setColour(JColorChooser.showDialog(null, "Select New Colour", dd.getColour())));
-		sectorToggle.addItemListener(e->dd.setSectorLineVisible(sectorToggle.isSelected()));
-		reflectToggle.addItemListener(e->dd.setReflect(reflectToggle.isSelected()));
-		sizeSlider.addChangeListener(e->dd.setDiameter(sizeSlider.getValue()));
-		
-		// Full anonymous class used here as more complex functionality. Saves to the gallery and then disables the button if full
-		this.saveBtn.addActionListener(new ActionListener(){
-			@Override
-			public void actionPerformed(ActionEvent e) {
-				gp.saveToGallery(doilyPanel);
-				if (gp.isFull()){
-					saveBtn.setEnabled(false);
-				}
-			}
-			
-		});
-	}
-
-	/**
-	 * Initialises all of the components and sets the appropriate properties for them
-	 */
-	private void initComponents(){
-		this.undoBtn = new JButton("Undo");
-		undoBtn.setEnabled(false);
-
-		this.clearBtn = new JButton("Clear");
-		this.sectorLbl = new JLabel("Sector Count");
-		sectorLbl.setHorizontalAlignment(SwingConstants.CENTER);
-
-		this.sectorSpin = new JSpinner(new SpinnerNumberModel(DigitalDoily.START_SECTOR_COUNT,DigitalDoily.MIN_SECTORS,DigitalDoily.MAX_SECTORS,1)); // Minimum value set as 2, max 24 with step 1
-		this.sizeLbl = new JLabel("Size of pen:");
-		sizeLbl.setHorizontalAlignment(SwingConstants.CENTER);
-
-		this.sizeSlider = new JSlider(DigitalDoily.MIN_DIAMETER,DigitalDoily.MAX_DIAMETER,DigitalDoily.START_DIAMETER);
-		sizeSlider.setMinorTickSpacing(1);
-		sizeSlider.setPaintTicks(true);
-
-		this.colourBtn = new JButton("Colour");
-		this.sectorToggle = new JCheckBox(": Show Sector Lines");
-		sectorToggle.setSelected(DigitalDoily.START_SHOW_SECTOR_LINES);
-
-		this.reflectToggle = new JCheckBox(": Reflect Drawing");
-		this.reflectToggle.setSelected(DigitalDoily.START_REFLECT_DRAWING);
-
-		this.saveBtn = new JButton("Save");
-	}
-
-	/**
-	 * Adds all of the components to the ControlPanel and configures the layout for them
-	 */
-	private void addComponents(){
-		// Creates grid layout to combine the sizeSlider and its label
-		JPanel sliderPanel = new JPanel();
-		sliderPanel.setLayout(new GridLayout(2,1));
-		sliderPanel.add(sizeLbl);
-		sliderPanel.add(sizeSlider);
-
-		// Creates grid layout to combine sectorSpin with its label
-		JPanel sectorPanel = new JPanel();
-		sectorPanel.setLayout(new GridLayout(2,1));
-		sectorPanel.add(sectorLbl);
-		sectorPanel.add(sectorSpin);
-
-		// Master controls including undoing and clearing the image
-		JPanel masterControlPanel = new JPanel();
-		masterControlPanel.setLayout(new GridLayout(2,1));
-		masterControlPanel.add(undoBtn);
-		masterControlPanel.add(clearBtn);
-
-		// This panel combines the two toggle buttons together
-		JPanel togglePanel = new JPanel();
-		togglePanel.setLayout(new GridLayout(2,1));
-		togglePanel.add(sectorToggle);
-		togglePanel.add(reflectToggle);		
-
-		// Main control panel which includes all the panels above and remaining buttons
-		this.setLayout(new FlowLayout());
-		this.add(masterControlPanel);
-		this.add(sectorPanel);
-		this.add(sliderPanel);
-		this.add(colourBtn);
-		this.add(togglePanel);
-		this.add(saveBtn);
-	}
-	
-	/**
-	 * Retrieves the undo button, so that the panel can control it
-	 * @return Undo Button object reference
-	 */
-	public JButton getUndoBtn(){
-		return this.undoBtn;
-	}
-}
+import java.awt.Color;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JColorChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingConstants;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Contains all of the components and layout for the control panel. Is linked to the GalleryScrollPanel to allow save button functionality to be added
+ * @author Dan
+ *
+ */
+public class ControlPanel extends JPanel{
+	private DoilyPanel doilyPanel; // Doily Panel that these buttons control
+	private JButton undoBtn; // Reverses actions taken
+	private JButton redoBtn; // Repeats actions that were reversed
+	private JButton clearBtn; // Erases the drawing
+	private JLabel sectorLbl; // Label attached to sectorSpin
+	private JSpinner sectorSpin; // Controls number of sectors visible
+	private JLabel sizeLbl; // Attached to sizeSlider
+	private JSlider sizeSlider; // Controls the size of the pen
+	private JButton colourBtn; // Button to allow pen colour to be changed
+	private JCheckBox sectorToggle; // Toggle whether sector lines should be drawn
+	private JCheckBox reflectToggle; // Toggle whether drawn points should be reflected in each sector
+	private JButton saveBtn; // Saves current image state into the gallery
+
+	/**
+	 * Constructs a new instance of control panel, initialising all components 
+	 * @param dp DoilyPanel which this ControlPanel will be controlling
+	 * @param gp The GalleryScrollPanel that is used, so that save button functionality can be added
+	 */
+	public ControlPanel(DoilyPanel dp, GalleryScrollPanel gp){
+		this.doilyPanel = dp;
+		this.initComponents();
+		this.attachListeners(gp);
+		this.addComponents();
+		gp.setSaveBtn(this.saveBtn); // Attaches to Gallery so it can manage enabling the button
+		
+	}
+
+	/**
+	 * Attaches new listener objects to all of the components
+	 * @param gp GalleryScrollPanel used for save button
+	 */
+	private void attachListeners(GalleryScrollPanel gp){
+		DoilyDrawing dd = doilyPanel.getDoilyDrawing();
+		
+		// Below use lambda commands to simplify anonymous classes. Controls which change are recorded if the session is being recorded
+		// (showSettings() sets them to what the drawing already has, which is not recorded)
+		clearBtn.addActionListener(e->{
+			this.record(SessionRecorder.CLEAR, 0, true);
+			dd.clear();
+		});
+		undoBtn.addActionListener(e->{
+			this.record(SessionRecorder.UNDO, 0, true);
+			dd.undo();
+		});
+		redoBtn.addActionListener(e->{
+			this.record(SessionRecorder.REDO, 0, true);
+			dd.redo();
+		});
+		sectorSpin.addChangeListener(e->{
+			int sectorCount = (int)sectorSpin.getValue();
+			this.record(SessionRecorder.SECTORS, sectorCount, sectorCount != dd.getSectorCount());
+			dd.setSectorCount(sectorCount);
+		});
+		colourBtn.addActionListener(e->{
+			Color colour = JColorChooser.showDialog(null, "Select New Colour", dd.getColour());
+			this.record(SessionRecorder.COLOUR, colour == null ? 0 : colour.getRGB(), colour != null && !colour.equals(dd.getColour()));
+			dd.setColour(colour);
+		});
+		sectorToggle.addItemListener(e->{
+			this.record(SessionRecorder.SECTOR_LINES, sectorToggle.isSelected() ? 1 : 0, sectorToggle.isSelected() != dd.drawSectorLines());
+			dd.setSectorLineVisible(sectorToggle.isSelected());
+		});
+		reflectToggle.addItemListener(e->{
+			this.record(SessionRecorder.REFLECT, reflectToggle.isSelected() ? 1 : 0, reflectToggle.isSelected() != dd.isReflected());
+			dd.setReflect(reflectToggle.isSelected());
+		});
+		sizeSlider.addChangeListener(e->{
+			this.record(SessionRecorder.DIAMETER, sizeSlider.getValue(), sizeSlider.getValue() != dd.getDiameter());
+			dd.setDiameter(sizeSlider.getValue());
+		});
+		
+		// Full anonymous class used here as more complex functionality. Saves to the gallery and then disables the button if full
+		this.saveBtn.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				record(SessionRecorder.SAVE, 0, true);
+				gp.saveToGallery(doilyPanel);
+				if (gp.isFull()){
+					saveBtn.setEnabled(false);
+				}
+			}
+			
+		});
+	}
+
+	/**
+	 * Records a control being used, if the session is being recorded
+	 * @param action Type of the control, e.g. SessionRecorder.UNDO
+	 * @param value New value of the control
+	 * @param changed Whether the control changes anything, as it is not recorded otherwise
+	 */
+	private void record(int action, int value, boolean changed){
+		SessionRecorder recorder = doilyPanel.getRecorder();
+		if (recorder != null && changed){
+			recorder.action(action, value);
+		}
+	}
+
+	/**
+	 * Initialises all of the components and sets the appropriate properties for them
+	 */
+	private void initComponents(){
+		this.undoBtn = new JButton("Undo");
+		undoBtn.setEnabled(false);
+		this.redoBtn = new JButton("Redo");
+		redoBtn.setEnabled(false);
+
+		this.clearBtn = new JButton("Clear");
+		this.sectorLbl = new JLabel("Sector Count");
+		sectorLbl.setHorizontalAlignment(SwingConstants.CENTER);
+
+		this.sectorSpin = new JSpinner(new SpinnerNumberModel(DigitalDoily.START_SECTOR_COUNT,DigitalDoily.MIN_SECTORS,DigitalDoily.MAX_SECTORS,1)); // Minimum value set as 2, max 24 with step 1
+		this.sizeLbl = new JLabel("Size of pen:");
+		sizeLbl.setHorizontalAlignment(SwingConstants.CENTER);
+
+		this.sizeSlider = new JSlider(DigitalDoily.MIN_DIAMETER,DigitalDoily.MAX_DIAMETER,DigitalDoily.START_DIAMETER);
+		sizeSlider.setMinorTickSpacing(1);
+		sizeSlider.setPaintTicks(true);
+
+		this.colourBtn = new JButton("Colour");
+		this.sectorToggle = new JCheckBox(": Show Sector Lines");
+		sectorToggle.setSelected(DigitalDoily.START_SHOW_SECTOR_LINES);
+
+		this.reflectToggle = new JCheckBox(": Reflect Drawing");
+		this.reflectToggle.setSelected(DigitalDoily.START_REFLECT_DRAWING);
+
+		this.saveBtn = new JButton("Save");
+	}
+
+	/**
+	 * Adds all of the components to the ControlPanel and configures the layout for them
+	 */
+	private void addComponents(){
+		// Creates grid layout to combine the sizeSlider and its label
+		JPanel sliderPanel = new JPanel();
+		sliderPanel.setLayout(new GridLayout(2,1));
+		sliderPanel.add(sizeLbl);
+		sliderPanel.add(sizeSlider);
+
+		// Creates grid layout to combine sectorSpin with its label
+		JPanel sectorPanel = new JPanel();
+		sectorPanel.setLayout(new GridLayout(2,1));
+		sectorPanel.add(sectorLbl);
+		sectorPanel.add(sectorSpin);
+
+		// Undo and redo side by side
+		JPanel historyPanel = new JPanel();
+		historyPanel.setLayout(new GridLayout(1,2));
+		historyPanel.add(undoBtn);
+		historyPanel.add(redoBtn);
+
+		// Master controls including undoing and clearing the image
+		JPanel masterControlPanel = new JPanel();
+		masterControlPanel.setLayout(new GridLayout(2,1));
+		masterControlPanel.add(historyPanel);
+		masterControlPanel.add(clearBtn);
+
+		// This panel combines the two toggle buttons together
+		JPanel togglePanel = new JPanel();
+		togglePanel.setLayout(new GridLayout(2,1));
+		togglePanel.add(sectorToggle);
+		togglePanel.add(reflectToggle);		
+
+		// Main control panel which includes all the panels above and remaining buttons
+		this.setLayout(new FlowLayout());
+		this.add(masterControlPanel);
+		this.add(sectorPanel);
+		this.add(sliderPanel);
+		this.add(colourBtn);
+		this.add(togglePanel);
+		this.add(saveBtn);
+	}
+	
+	/**
+	 * Updates the controls to show the settings of the drawing, e.g. after an undo or after a drawing has been opened.
+	 * The drawing ignores settings which have not changed, so this does not record any new changes
+	 */
+	public void showSettings(){
+		DoilyDrawing dd = doilyPanel.getDoilyDrawing();
+		this.sectorSpin.setValue(dd.getSectorCount());
+		this.sizeSlider.setValue(dd.getDiameter());
+		this.reflectToggle.setSelected(dd.isReflected());
+	}
+	
+	/**
+	 * Retrieves the undo button, so that the panel can control it
+	 * @return Undo Button object reference
+	 */
+	public JButton getUndoBtn(){
+		return this.undoBtn;
+	}
+
+	/**
+	 * Retrieves the redo button, so that the panel can control it
+	 * @return Redo Button object reference
+	 */
+	public JButton getRedoBtn(){
+		return this.redoBtn;
+	}
+}
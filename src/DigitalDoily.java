@@ -1,39 +1,64 @@
-import java.awt.Color;
-
-import javax.swing.SwingUtilities;
-
-/**
- * Main entry point for application, simply creates an initialises a new frame
- * @author dmh2g16
- *
- */
-public class DigitalDoily {
-	// Starting constants for initial drawing properties
-	public static final int START_SECTOR_COUNT = 12;
-	public static final int START_DIAMETER = 5;
-	public static final boolean START_REFLECT_DRAWING = false;
-	public static final boolean START_SHOW_SECTOR_LINES = true;
-	public static final Color START_COLOUR = Color.WHITE;
-	public static final int MIN_DIAMETER = 2;
-	public static final int MAX_DIAMETER = 20;
-	public static final int MIN_SECTORS = 2;
-	public static final int MAX_SECTORS = 36;
-	public static final int MAX_GALLERY = 12;
-	public static final int MAX_STROKE_SIZE = 200;
-	
-	/**
-	 * Main Entry Point. Initialises GUI
-	 * @param args
-	 */
-	public static void main(String[] args){
-		SwingUtilities.invokeLater(new Runnable(){
-			@Override
-			public void run() {
-				DoilyFrame df = new DoilyFrame();
-				df.init();
-			}
-			
-		});
-		
-	}
-}
+import java.awt.Color;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Main entry point for application, simply creates an initialises a new frame
+ * @author dmh2g16
+ *
+ */
+public class DigitalDoily {
+	// Starting constants for initial drawing properties
+	public static final int START_SECTOR_COUNT = 12;
+	public static final int START_DIAMETER = 5;
+	public static final boolean START_REFLECT_DRAWING = false;
+	public static final boolean START_SHOW_SECTOR_LINES = true;
+	public static final Color START_COLOUR = Color.WHITE;
+	public static final int MIN_DIAMETER = 2;
+	public static final int MAX_DIAMETER = 20;
+	public static final int MIN_SECTORS = 2;
+	public static final int MAX_SECTORS = 36;
+	public static final int MAX_GALLERY = 5000; // Thumbnails are kept on disk, so this only limits the size of the gallery file
+	public static final long GALLERY_CACHE_BUDGET = 16L*1024*1024; // Memory for decoded gallery thumbnails in bytes
+	public static final int CHECKPOINT_INTERVAL = 100; // Strokes drawn between snapshots used to speed up undo
+	public static final long CHECKPOINT_COST_MS = 50; // Time spent painting strokes after which a snapshot is taken anyway
+	public static final long CHECKPOINT_BUDGET = 64L*1024*1024; // Memory available for snapshots in bytes
+	public static final long HISTORY_MEMORY_BUDGET = 32L*1024*1024; // Memory for cleared drawings in bytes, older ones are moved to disk
+	public static final boolean PROGRESSIVE_REDRAW = false; // Whether redrawn tiles are shown as soon as each is finished, rather than all at once
+	public static final double SIMPLIFY_TOLERANCE = 0.5; // Maximum distance in pixels on screen a point can be moved when simplifying strokes, at whatever zoom they are drawn (0 to disable)
+	public static final boolean WEDGE_RENDER = true; // Whether full redraws rasterise one sector and copy it into the others, rather than drawing every sector, until they are refined once input is idle
+	public static final long MAP_FILE_THRESHOLD = 16L*1024*1024; // Drawings larger than this in bytes are memory mapped when opened rather than streamed
+	public static final boolean FRAME_PACED_INPUT = true; // Whether drag events are drawn together once per frame, rather than each as it arrives
+	public static final int DEFAULT_REFRESH_RATE = 60; // Frames per second used to pace drawing if the screen's refresh rate cannot be found
+	public static final boolean JOURNAL_ENABLED = true; // Whether every change to the drawing is written to a journal, so it can be recovered after a crash
+	public static final Path JOURNAL_DIR = Paths.get(System.getProperty("user.home"), ".digital-doily"); // Directory holding the journal and its snapshot
+	public static final long JOURNAL_COMMIT_MS = 20; // Longest a change waits to be written to disk, so that the changes made in that time are synced together
+	public static final long JOURNAL_COMPACT_SIZE = 8L*1024*1024; // Bytes written to the journal after which it is replaced by a snapshot, bounding recovery time
+	public static final int MIN_ZOOM_LEVEL = -4; // Furthest the view can zoom out, showing the drawing at 1/2^4 of its size
+	public static final int MAX_ZOOM_LEVEL = 4; // Furthest the view can zoom in, showing the drawing at 2^4 times its size
+	public static final long PYRAMID_BUDGET = 64L*1024*1024; // Memory for tiles which have been drawn but are out of view in bytes
+	public static final boolean ANTIALIAS = true; // Whether strokes are antialiased, unless drawing them would be too slow (false draws everything in draft)
+	public static final long DRAFT_FRAME_MS = 8; // Frames of a stroke predicted to take longer than this to paint antialiased are painted in draft
+	public static final long DRAFT_REDRAW_MS = 150; // Redraws predicted to take longer than this antialiased are drawn in draft first
+	public static final int REFINE_IDLE_MS = 300; // Time input must be idle before tiles drawn in draft are redrawn antialiased in the background
+	public static final boolean START_SHOW_OVERLAY = false; // Whether the performance overlay (frame rate, frame times and event latency) starts visible
+	public static final int MAX_STROKE_SIZE = 1000; // Only limits undo granularity, drawing cost no longer depends on stroke length
+	
+	/**
+	 * Main Entry Point. Initialises GUI
+	 * @param args
+	 */
+	public static void main(String[] args){
+		SwingUtilities.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				DoilyFrame df = new DoilyFrame();
+				df.init();
+			}
+			
+		});
+		
+	}
+}
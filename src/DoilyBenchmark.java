@@ -0,0 +1,395 @@
+import java.awt.Color;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * Headless benchmarks for the rendering and undo hot paths, so that performance changes can be compared against a baseline.
+ * Builds synthetic drawings and times drag events (the interactive paint path), full redraws, undo, panning the view and saving to the gallery,
+ * reporting operations per second, bytes allocated per operation and the fraction of the points drawn which were simplified away. The segment benchmark checks that the paint path allocates no more than Java2D needs for
+ * each copy it draws, and the benchmarks exit with status 1 if it does, so a change which creates garbage on every frame fails.
+ * Run with e.g. java -Djava.awt.headless=true DoilyBenchmark strokes=1000 points=50 sectors=2,12,36 reflect=false,true size=800x600,3840x2160
+ * The same benchmarks can be run under JMH, with forking and the gc profiler, by benchmarks.DoilyJmh (built with mvn -P jmh package)
+ * @author Dan
+ *
+ */
+public class DoilyBenchmark {
+	// Default parameters, each can be given a comma separated list of values on the command line
+	private static String strokes = "200,2000";
+	private static String points = "50";
+	private static String sectors = "2,12,36";
+	private static String reflect = "false,true";
+	private static String size = "800x600,3840x2160";
+	private static int warmup = 5; // Untimed iterations before measuring
+	private static int iterations = 20; // Timed iterations for each benchmark
+	private static boolean failed = false; // Whether any benchmark allocated more than its budget
+
+	private static final String[] BENCHMARKS = {"drag", "segment", "redraw", "undo", "pan", "gallery"}; // Names of the benchmarks, in the order they are run
+
+	/**
+	 * Runs every benchmark for every combination of parameters
+	 * @param args Parameters in the form name=value1,value2
+	 */
+	public static void main(String[] args) throws Exception{
+		System.setProperty("java.awt.headless", "true");
+		for (String arg : args){
+			String[] kv = arg.split("=", 2);
+			switch (kv[0]){
+				case "strokes": strokes = kv[1]; break;
+				case "points": points = kv[1]; break;
+				case "sectors": sectors = kv[1]; break;
+				case "reflect": reflect = kv[1]; break;
+				case "size": size = kv[1]; break;
+				case "warmup": warmup = Integer.parseInt(kv[1]); break;
+				case "iterations": iterations = Integer.parseInt(kv[1]); break;
+				default: throw new IllegalArgumentException("Unknown parameter " + kv[0]);
+			}
+		}
+
+		System.out.printf("%-10s %8s %7s %8s %8s %10s %14s %14s %11s%n", "benchmark", "strokes", "points", "sectors", "reflect", "size", "ops/s", "bytes/op", "simplified");
+		for (String sz : size.split(",")){
+			String[] wh = sz.split("x");
+			for (String st : strokes.split(",")){
+				for (String pt : points.split(",")){
+					for (String sc : sectors.split(",")){
+						for (String rf : reflect.split(",")){
+							Params p = new Params(Integer.parseInt(st), Integer.parseInt(pt), Integer.parseInt(sc), Boolean.parseBoolean(rf),
+									Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+							for (String name : BENCHMARKS){
+								run(name, p, create(name));
+							}
+						}
+					}
+				}
+			}
+		}
+		System.exit(failed ? 1 : 0); // Also stops the background redraw threads
+	}
+
+	/**
+	 * Prepares a benchmark to be timed by another harness, such as the JMH benchmarks (which cannot refer to classes in the default package),
+	 * creating a panel containing a synthetic drawing
+	 * @param name Name of the benchmark, one of BENCHMARKS
+	 * @param strokes Number of strokes in the drawing
+	 * @param points Number of points in each stroke
+	 * @param sectors Number of sectors
+	 * @param reflect Whether the strokes are reflected
+	 * @param width Width of the panel
+	 * @param height Height of the panel
+	 * @return The untimed setup to call before each operation, and the operation to time
+	 */
+	public static Callable<?>[] prepare(String name, int strokes, int points, int sectors, boolean reflect, int width, int height) throws Exception{
+		System.setProperty("java.awt.headless", "true");
+		Params p = new Params(strokes, points, sectors, reflect, width, height);
+		Benchmark b = create(name);
+		DoilyPanel dp = createPanel(p);
+		Callable<?> setup = () -> {
+			b.setup(dp, p);
+			return null;
+		};
+		Callable<?> operation = () -> {
+			b.operation(dp, p);
+			return null;
+		};
+		return new Callable<?>[]{setup, operation};
+	}
+
+	/**
+	 * Creates a benchmark from its name
+	 * @param name One of BENCHMARKS
+	 */
+	private static Benchmark create(String name){
+		switch (name){
+			case "drag": return new DragBenchmark();
+			case "segment": return new SegmentBenchmark();
+			case "redraw": return new RedrawBenchmark();
+			case "undo": return new UndoBenchmark();
+			case "pan": return new PanBenchmark();
+			case "gallery": return new GalleryBenchmark();
+			default: throw new IllegalArgumentException("Unknown benchmark " + name);
+		}
+	}
+
+	/**
+	 * Runs a single benchmark with the given parameters and prints the results. The benchmark fails if its quietest iteration allocated more than its budget,
+	 * so that occasional allocations (e.g. a tile drawn into for the first time) do not fail it but garbage created by every operation does
+	 */
+	private static void run(String name, Params p, Benchmark b) throws Exception{
+		DoilyPanel dp = createPanel(p);
+		for (int i = 0; i < warmup; i++){
+			b.setup(dp, p);
+			b.operation(dp, p);
+		}
+		StrokeSimplifier simplifier = dp.getDoilyDrawing().getSimplifier(); // Only read between operations, once invokeAndWait has returned
+		long timed = 0, allocated = 0, quietest = Long.MAX_VALUE, pointsIn = 0, pointsKept = 0;
+		for (int i = 0; i < iterations; i++){
+			b.setup(dp, p);
+			long in = simplifier.getPointsIn(), kept = simplifier.getPointsKept();
+			long[] ids = threads().getAllThreadIds();
+			long[] before = threads().getThreadAllocatedBytes(ids);
+			long start = System.nanoTime();
+			b.operation(dp, p);
+			timed += System.nanoTime() - start;
+			long bytes = allocatedSince(ids, before);
+			allocated += bytes;
+			quietest = Math.min(quietest, bytes);
+			pointsIn += simplifier.getPointsIn() - in;
+			pointsKept += simplifier.getPointsKept() - kept;
+		}
+		long budget = b.allocationBudget(p);
+		if (budget >= 0 && quietest > budget){
+			System.err.printf("%s allocated %d bytes in its quietest iteration, over its budget of %d%n", name, quietest, budget);
+			failed = true;
+		}
+		String simplified = (pointsIn == 0) ? "-" : String.format("%.1f%%", 100 - 100.0*pointsKept/pointsIn); // Only operations which draw strokes simplify them
+		System.out.printf("%-10s %8d %7d %8d %8b %10s %14.1f %14d %11s%n", name, p.strokes, p.points, p.sectors, p.reflect,
+				p.width + "x" + p.height, iterations/(timed/1e9), allocated/iterations, simplified);
+	}
+
+	/**
+	 * Creates a panel of the given size containing a synthetic drawing of random walks
+	 */
+	private static DoilyPanel createPanel(Params p) throws Exception{
+		DoilyPanel[] holder = new DoilyPanel[1];
+		SwingUtilities.invokeAndWait(() -> {
+			DoilyPanel dp = new DoilyPanel();
+			dp.setSize(p.width, p.height);
+			dp.init();
+			dp.paint(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).getGraphics()); // Sets up the centre of the panel
+			DoilyDrawing dd = dp.getDoilyDrawing();
+			dd.setSectorCount(p.sectors);
+			dd.setReflect(p.reflect);
+			Random r = new Random(42);
+			for (int s = 0; s < p.strokes; s++){
+				dd.setColour(new Color(r.nextInt(0xFFFFFF)));
+				dd.setDiameter(DigitalDoily.MIN_DIAMETER + r.nextInt(DigitalDoily.MAX_DIAMETER - DigitalDoily.MIN_DIAMETER));
+				drawStroke(dp, r, p.points);
+			}
+			dp.redrawImage();
+			holder[0] = dp;
+		});
+		waitForRedraw(holder[0]);
+		return holder[0];
+	}
+
+	/**
+	 * Draws a random walk through the panel's mouse listener, as if the user had dragged the mouse. Must be called on the EDT
+	 */
+	private static void drawStroke(DoilyPanel dp, Random r, int points){
+		int x = r.nextInt(dp.getWidth()), y = r.nextInt(dp.getHeight());
+		dp.dispatchEvent(new MouseEvent(dp, MouseEvent.MOUSE_PRESSED, 0, InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1));
+		for (int i = 1; i < points; i++){
+			x += r.nextInt(21) - 10;
+			y += r.nextInt(21) - 10;
+			dp.dispatchEvent(new MouseEvent(dp, MouseEvent.MOUSE_DRAGGED, 0, InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1));
+		}
+		dp.dispatchEvent(new MouseEvent(dp, MouseEvent.MOUSE_RELEASED, 0, 0, x, y, 1, false, MouseEvent.BUTTON1));
+	}
+
+	/**
+	 * Waits until the background redraw of a panel has been published
+	 */
+	private static void waitForRedraw(DoilyPanel dp) throws Exception{
+		boolean[] pending = {true};
+		while (pending[0]){
+			SwingUtilities.invokeAndWait(() -> pending[0] = dp.isRedrawPending());
+			if (pending[0]){
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * Sums the bytes allocated by every live thread (including the background redraw threads) since their counts were taken. Each thread is compared with its own
+	 * count, as a thread which exits (e.g. an idle pool thread) takes its count with it, and comparing the sums would then give too few or even negative bytes.
+	 * Threads which exit in between are left out, and threads started in between count from zero
+	 * @param ids Threads counted before
+	 * @param before Bytes each of them had allocated, or -1 if it had already exited
+	 */
+	private static long allocatedSince(long[] ids, long[] before){
+		long[] now = threads().getAllThreadIds();
+		long[] after = threads().getThreadAllocatedBytes(now);
+		long total = 0;
+		for (int i = 0; i < now.length; i++){
+			long start = 0;
+			for (int j = 0; j < ids.length; j++){
+				if (ids[j] == now[i]){
+					start = Math.max(before[j], 0);
+					break;
+				}
+			}
+			total += Math.max(after[i] - start, 0);
+		}
+		return total;
+	}
+
+	/**
+	 * @return Bean which counts the bytes allocated by each thread
+	 */
+	private static com.sun.management.ThreadMXBean threads(){
+		return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	}
+
+	/**
+	 * Parameters for a single run
+	 */
+	static class Params {
+		int strokes, points, sectors, width, height;
+		boolean reflect;
+
+		Params(int strokes, int points, int sectors, boolean reflect, int width, int height){
+			this.strokes = strokes;
+			this.points = points;
+			this.sectors = sectors;
+			this.reflect = reflect;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * A single benchmark. Only operation() is timed
+	 */
+	interface Benchmark {
+		default void setup(DoilyPanel dp, Params p) throws Exception{}
+		void operation(DoilyPanel dp, Params p) throws Exception;
+
+		/**
+		 * @return Most bytes the quietest timed operation may allocate, or -1 if there is no limit
+		 */
+		default long allocationBudget(Params p){
+			return -1;
+		}
+	}
+
+	/**
+	 * Times drawing one whole stroke through the mouse listener (the interactive paint path)
+	 */
+	static class DragBenchmark implements Benchmark {
+		private Random r = new Random(1);
+
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			SwingUtilities.invokeAndWait(() -> drawStroke(dp, r, p.points));
+		}
+	}
+
+	/**
+	 * Times the drag events of a stroke on their own, created beforehand and passed straight to the panel's listener, so that bytes/op only counts
+	 * garbage from the interactive paint path (plus a small constant for invokeAndWait and scheduling the repaint). The panel itself allocates nothing,
+	 * but Java2D creates a transformed path iterator and span iterator (around 35 bytes) for every copy it draws, so the budget allows for those and fails
+	 * if anything else is created per point or per copy. The samples are flushed after every event, as they would be for a mouse slower than the frame rate,
+	 * so each point is painted on its own
+	 */
+	static class SegmentBenchmark implements Benchmark {
+		private static final long BUDGET = 2048; // Bytes allowed for each operation, for invokeAndWait and the repaints
+		private static final long BUDGET_PER_POINT = 48; // Bytes allowed for each point painted, for the repaint and metrics
+		private static final long BUDGET_PER_COPY = 40; // Bytes allowed for each copy of each point, for Java2D's iterators
+
+		private Random r = new Random(3);
+		private MouseEvent[] drags;
+
+		@Override
+		public void setup(DoilyPanel dp, Params p) throws Exception{
+			MouseListener listener = dp.getMouseListeners()[0];
+			int x = r.nextInt(p.width), y = r.nextInt(p.height);
+			this.drags = new MouseEvent[p.points];
+			for (int i = 0; i < this.drags.length; i++){
+				x += r.nextInt(21) - 10;
+				y += r.nextInt(21) - 10;
+				this.drags[i] = new MouseEvent(dp, MouseEvent.MOUSE_DRAGGED, 0, InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1);
+			}
+			MouseEvent press = new MouseEvent(dp, MouseEvent.MOUSE_PRESSED, 0, InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1);
+			MouseEvent release = new MouseEvent(dp, MouseEvent.MOUSE_RELEASED, 0, 0, x, y, 1, false, MouseEvent.BUTTON1);
+			SwingUtilities.invokeAndWait(() -> {
+				listener.mouseReleased(release); // Ends the stroke from the previous iteration
+				listener.mousePressed(press);
+			});
+		}
+
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			MouseMotionListener listener = dp.getMouseMotionListeners()[0];
+			SwingUtilities.invokeAndWait(() -> {
+				for (MouseEvent e : this.drags){
+					listener.mouseDragged(e);
+					dp.flushInput();
+				}
+			});
+		}
+
+		@Override
+		public long allocationBudget(Params p){
+			int copies = p.sectors*(p.reflect ? 2 : 1);
+			return BUDGET + p.points*(BUDGET_PER_POINT + copies*BUDGET_PER_COPY);
+		}
+	}
+
+	/**
+	 * Times a full redraw of the drawing, until the new tiles are published
+	 */
+	static class RedrawBenchmark implements Benchmark {
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			SwingUtilities.invokeAndWait(() -> dp.redrawImage());
+			waitForRedraw(dp);
+		}
+	}
+
+	/**
+	 * Times undoing the most recent stroke, until the new tiles are published. A stroke is drawn before each undo so the drawing stays the same size
+	 */
+	static class UndoBenchmark implements Benchmark {
+		private Random r = new Random(2);
+
+		@Override
+		public void setup(DoilyPanel dp, Params p) throws Exception{
+			SwingUtilities.invokeAndWait(() -> drawStroke(dp, r, p.points));
+		}
+
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			SwingUtilities.invokeAndWait(() -> dp.getDoilyDrawing().undo());
+			waitForRedraw(dp);
+		}
+	}
+
+	/**
+	 * Times panning the view by a tile, until the tiles which come into view have been drawn. The view goes four tiles one way and then back again,
+	 * so half of the moves draw new tiles in the background and half take them back from the pyramid
+	 */
+	static class PanBenchmark implements Benchmark {
+		private int moves = 0; // Moves made so far
+
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			int dx = ((this.moves++ / 4) % 2 == 0) ? TileCache.TILE_SIZE : -TileCache.TILE_SIZE;
+			SwingUtilities.invokeAndWait(() -> {
+				dp.pan(dx, 0);
+				dp.paint(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).getGraphics());
+			});
+			waitForRedraw(dp);
+		}
+	}
+
+	/**
+	 * Times creating a gallery thumbnail of the drawing, including the scaling and compression which the gallery does on a background thread
+	 */
+	static class GalleryBenchmark implements Benchmark {
+		@Override
+		public void operation(DoilyPanel dp, Params p) throws Exception{
+			BufferedImage[] snapshot = new BufferedImage[1];
+			SwingUtilities.invokeAndWait(() -> snapshot[0] = dp.snapshotImage());
+			ImageIO.write(GalleryImage.scale(snapshot[0], 200, 200*p.height/p.width), "png", new ByteArrayOutputStream());
+		}
+	}
+}
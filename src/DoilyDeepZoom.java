@@ -0,0 +1,138 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes drawings as Deep Zoom images (a .dzi descriptor and a directory of tiles for each level), which viewers such as OpenSeadragon can pan and zoom
+ * without loading the whole image. The tiles are the same as those of the TileCache and TilePyramid: each level of the image is a zoom level of the drawing,
+ * half the scale of the one above, and each tile is drawn by DoilyRenderer.paintTile() using a StrokeIndex, so only the strokes which reach it are drawn.
+ * The image is square and centred on the centre of the drawing so that its tiles line up with the tiles of the drawing. Tiles which no stroke reaches are not written,
+ * as most of a large image is empty, so viewers show their background colour there
+ * @author Dan
+ *
+ */
+public class DoilyDeepZoom {
+	public static final String EXTENSION = "dzi"; // File extension used for Deep Zoom descriptors
+	private static final int TILE_BITS = 8; // log2 of the tile size
+	private static final int MAX_HALF = 20; // log2 of the most tiles either side of the centre, which keeps the size of the image within an int
+
+	/**
+	 * Saves a drawing as a Deep Zoom image, with its tiles in a directory named after the descriptor with _files in place of the extension
+	 * @param path Descriptor file to write
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param level Zoom level of the largest level of the image, which shows the drawing at a scale of 2^level
+	 * @throws IOException If the drawing is too large to export at this zoom level, or the files cannot be written
+	 */
+	public static void save(Path path, StrokeStore strokes, int sectorCount, int level) throws IOException{
+		// The image is the smallest power of two number of tiles either side of the centre which holds every copy of every stroke
+		double extent = 1/DoilyRenderer.fitScale(strokes, sectorCount, 2, 2) * TileCache.scale(level); // Furthest any copy reaches from the centre in pixels
+		int half = 0; // log2 of the number of tiles either side of the centre at the largest level
+		while ((TileCache.TILE_SIZE << half) < extent){
+			if (half == MAX_HALF){
+				throw new IOException("The drawing is too large to export at this zoom level, zoom out and export it again");
+			}
+			half++;
+		}
+		int top = TILE_BITS + 1 + half; // Deep Zoom level of the largest level of the image, which is 2^top pixels wide
+		int size = 1 << top;
+
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		Path dir = path.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + "_files");
+
+		StrokeIndex index = new StrokeIndex();
+		index.sync(strokes, sectorCount);
+		StrokeIndex shared = index.snapshot(); // Read only, so it can be used by every thread
+		for (int d = 0; d <= top; d++){
+			Path levelDir = dir.resolve(Integer.toString(d));
+			Files.createDirectories(levelDir);
+			int zoom = level - (top - d); // Zoom level of the drawing shown at this level of the image
+			if (d <= TILE_BITS){
+				// The whole level fits in one tile, which does not line up with the tiles of the drawing
+				int width = 1 << d;
+				write(DoilyRenderer.render(strokes, sectorCount, width, width, TileCache.scale(zoom), false), levelDir.resolve("0_0.png"));
+				continue;
+			}
+			int tiles = 1 << (d - TILE_BITS - 1); // Tiles either side of the centre
+			HashSet<Long> keys = occupiedTiles(shared, strokes.size(), zoom, tiles);
+			DoilyRenderer.renderTiles(keys, key -> {
+				BufferedImage img = new BufferedImage(TileCache.TILE_SIZE, TileCache.TILE_SIZE, BufferedImage.TYPE_INT_RGB); // Opaque, black like the canvas
+				Graphics2D g2d = TileCache.createGraphics(img, key, zoom);
+				DoilyRenderer.paintTile(g2d, key, zoom, strokes, 0, strokes.size(), shared, sectorCount, false, null);
+				try {
+					write(img, levelDir.resolve((TileCache.tileX(key) + tiles) + "_" + (TileCache.tileY(key) + tiles) + ".png"));
+				} catch (IOException e){
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+
+		try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)){
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"png\" Overlap=\"0\" TileSize=\"" + TileCache.TILE_SIZE + "\">\n");
+			out.write("<Size Width=\"" + size + "\" Height=\"" + size + "\"/>\n");
+			out.write("</Image>\n");
+		}
+	}
+
+	/**
+	 * Finds the largest zoom level at which a drawing fits inside an image, for use as the largest level of a Deep Zoom image
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors the strokes are drawn in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return Zoom level, within the levels the panel can show
+	 */
+	public static int fitLevel(StrokeStore strokes, int sectorCount, int width, int height){
+		int level = (int) Math.floor(Math.log(DoilyRenderer.fitScale(strokes, sectorCount, width, height))/Math.log(2));
+		return Math.max(DigitalDoily.MIN_ZOOM_LEVEL, Math.min(DigitalDoily.MAX_ZOOM_LEVEL, level));
+	}
+
+	/**
+	 * Finds the tiles of a level of the image which a stroke may reach, without looking at the rest: the tiles covered by the bounds of each copy of each stroke,
+	 * less those in which the index has no strokes
+	 * @param index Snapshot of the index of the strokes
+	 * @param count Number of strokes
+	 * @param zoom Zoom level of the drawing shown at this level of the image
+	 * @param tiles Number of tiles either side of the centre
+	 * @return Keys of the tiles
+	 */
+	private static HashSet<Long> occupiedTiles(StrokeIndex index, int count, int zoom, int tiles){
+		double size = TileCache.TILE_SIZE/TileCache.scale(zoom); // Size of a tile in units of the drawing
+		HashSet<Long> keys = new HashSet<Long>();
+		for (int i = 0; i < count; i++){
+			for (Rectangle2D copy : index.copyBounds(i)){
+				int minTX = Math.max(-tiles, (int) Math.floor(copy.getMinX()/size)), maxTX = Math.min(tiles-1, (int) Math.floor(copy.getMaxX()/size));
+				int minTY = Math.max(-tiles, (int) Math.floor(copy.getMinY()/size)), maxTY = Math.min(tiles-1, (int) Math.floor(copy.getMaxY()/size));
+				for (int ty = minTY; ty <= maxTY; ty++){
+					for (int tx = minTX; tx <= maxTX; tx++){
+						keys.add(TileCache.key(tx, ty));
+					}
+				}
+			}
+		}
+		// The bounds of a long stroke cover many tiles it does not reach, but the index only records the tiles its points pass through
+		keys.removeIf(key -> (zoom == 0 ? index.query(key, 0, count) : index.query(TileCache.getArea(key, zoom), 0, count)).length == 0);
+		return keys;
+	}
+
+	/**
+	 * Writes a tile as a PNG image
+	 */
+	private static void write(BufferedImage img, Path file) throws IOException{
+		if (!ImageIO.write(img, "png", file.toFile())){
+			throw new IOException("No PNG writer available");
+		}
+	}
+}
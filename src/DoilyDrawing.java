@@ -1,198 +1,739 @@
-import java.awt.Color;
-import java.util.Stack;
-
-import javax.swing.JButton;
-
-/**
- * Represents a drawing context. The DoilyPanel draws based on the information in this class.
- * Contains all of the strokes and current properties from the control panel
- * @author Dan
- *
- */
-public class DoilyDrawing {
-	private DoilyPanel dp; // DoilyPanel which this is attached to
-	private Stack<DrawStroke> strokes = new Stack<DrawStroke>(); // Stack of all the strokes in the current drawing
-	private Stack<Stack<DrawStroke>> clearedDrawings = new Stack<Stack<DrawStroke>>(); // Stores all the strokes of images which have been cleared from the screen
-	private DrawStroke mouseStroke = null; // Stroke where the mouse cursor currently is 
-	private DrawStroke currentStroke = null; // Current stroke being drawn
-	private JButton undoBtn; // Undo Button referenced so that can be enabled/disabled depending on size of stack
-
-	private int sectorCount; // Current number of sectors to rotate through
-	private boolean reflect; // Whether to reflect the points in each sector
-	private boolean sectorLinesVisible; // Whether to draw the sector lines
-	private int diameter; // Diameter of the draw point
-	private Color colour; // Colour of the draw point
-
-	/**
-	 * Initialises drawing context with default parameters and attaches to DoilyPanel
-	 * @param dp DoilyPanel which will be drawing this
-	 */
-	public DoilyDrawing(DoilyPanel dp){
-		this.dp =dp;
-		this.sectorCount = DigitalDoily.START_SECTOR_COUNT;
-		this.reflect = DigitalDoily.START_REFLECT_DRAWING;
-		this.sectorLinesVisible = DigitalDoily.START_SHOW_SECTOR_LINES;
-		this.diameter = DigitalDoily.START_DIAMETER;
-		this.colour = DigitalDoily.START_COLOUR;
-	}
-
-	/**
-	 * Binds the undo button (is optional, but adds feature to disable button)
-	 * @param undoBtn Undo Button used to control drawing
-	 */
-	public void setUndoBtn(JButton undoBtn){
-		this.undoBtn = undoBtn;
-	}
-
-	/// Below methods control the drawing parameters. Called by the GUI buttons ///
-
-	/**
-	 * Erases the current drawing (but not history). The old drawing is added to the clearedDrawings stack
-	 */
-	public void clear(){
-		if (!this.strokes.isEmpty()){
-			//Stack<DrawStroke> drawing = new Stack<DrawStroke>();
-			//drawing.addAll(this.strokes); // Duplicates 
-			this.clearedDrawings.push(this.strokes);
-			this.strokes = new Stack<DrawStroke>();
-			this.strokes.clear();
-			dp.redrawImage();
-		}
-	}
-
-	/**
-	 * Update the colour of the pen
-	 * @param colour New colour for pen
-	 */
-	public void setColour(Color colour){
-		this.colour = colour;
-	}
-
-	/**
-	 * Returns the current colour of the pen
-	 * @return Current colour of pen
-	 */
-	public Color getColour(){
-		return this.colour;
-	}
-
-	/**
-	 * Sets diameter for pen
-	 * @param diameter New Diameter
-	 */
-	public void setDiameter(int diameter){
-		this.diameter = diameter;
-	}
-
-	/**
-	 * Set whether points should be reflected in each sector
-	 * @param reflect Boolean where true equals reflect points
-	 */
-	public void setReflect(boolean reflect){
-		this.reflect = reflect;
-	}
-
-	/**
-	 * Sets whether the sector lines should be visible in the drawing
-	 * @param visible Boolean stating whether sector lines should be visible
-	 */
-	public void setSectorLineVisible(boolean visible){
-		this.sectorLinesVisible = visible;
-		dp.repaint();
-	}
-
-	/**
-	 * Sets the number of sectors in the image
-	 * @param sectorCount Number of sectors in image
-	 */
-	public void setSectorCount(int sectorCount){
-		this.sectorCount = sectorCount;
-		dp.redrawImage();
-	}
-
-	/**
-	 * Undoes previous action taken (or part of action) by popping off of the stroke stack. If the stack is empty it pops the previous drawing off and draws this
-	 */
-	public void undo(){
-		if (this.strokes.isEmpty()){
-			this.strokes = this.clearedDrawings.pop();
-		} else if (!this.strokes.isEmpty()){
-			this.strokes.pop();
-		}
-		dp.redrawImage(); // Forces a full redraw of the image (not buffered)
-
-		// Disables the Undo Button if stack now empty (if present)
-		if (this.strokes.isEmpty() && this.clearedDrawings.isEmpty() && this.undoBtn != null){
-			this.undoBtn.setEnabled(false);
-		}
-	}
-
-	/**
-	 * Allows the stack of draw strokes to be accessed (contains all information to redraw image) 
-	 * @return The stack of draw strokes
-	 */
-	public Stack<DrawStroke> getStrokes(){
-		return this.strokes;
-	}
-
-	/**
-	 * Creates a new point on the drawing. Can be specified as the start of a new stroke or part of a previous one
-	 * @param x Polar X co-ordinate 
-	 * @param y Polar Y co-ordinate
-	 * @param start Whether this is the start of a new stroke
-	 */
-	public void newPoint(double x, double y, boolean start){
-		if (start){
-			this.currentStroke = new DrawStroke(this.diameter,this.colour,this.reflect);
-			strokes.push(this.currentStroke); // Pushes the new stroke to the stack so can be drawn
-			this.currentStroke.moveTo(x, y); // Adds a new point without drawing a new line
-		} else {
-			this.currentStroke.lineTo(x, y); // Adds a new point, connecting it to the previous one by a line
-		}
-		
-		// Re-enables undo button if necessary
-		if (this.undoBtn != null){
-			undoBtn.setEnabled(true);
-		}
-	}
-
-	/**
-	 * Sets the co-ordinates of where the mouse currently is, provides the cursor circle on the panel
-	 * @param x Polar X co-ordinate
-	 * @param y Polar Y co-ordinate
-	 */
-	public void setMouseStroke(double x, double y){
-		this.mouseStroke = new DrawStroke(x,y,this.diameter,this.colour);
-	}	
-
-	/**
-	 * Clears the mouse stroke (for if cursor is no longer in panel)
-	 */
-	public void clearMouseStroke(){
-		this.mouseStroke = null;
-	}
-
-	/**
-	 * Returns the Mouse Stroke so can be drawn
-	 * @return Mouse Stroke
-	 */
-	public DrawStroke getMouseStroke(){
-		return this.mouseStroke;
-	}
-
-	/** Returns whether the sector lines should be visible
-	 * @return True if should be visible
-	 */
-	public boolean drawSectorLines(){
-		return this.sectorLinesVisible;
-	}
-
-	/**
-	 * Gets the current number of sectors for the image to be drawn around
-	 * @return Number of sectors
-	 */
-	public int getSectorCount(){
-		return this.sectorCount;
-	}
-
-}
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import javax.swing.JButton;
+
+/**
+ * Represents a drawing context. The DoilyPanel draws based on the information in this class.
+ * Contains all of the strokes and current properties from the control panel
+ * @author Dan
+ *
+ */
+public class DoilyDrawing {
+	// Types of change which can be undone
+	private static final int STROKES = 0; // A run of strokes drawn one after another
+	private static final int CLEAR = 1; // Drawing cleared into the history
+	private static final int LOAD = 2; // Drawing opened from a file
+	private static final int SECTORS = 3; // Number of sectors changed
+	private static final int COLOUR = 4; // Pen colour changed
+	private static final int DIAMETER = 5; // Pen diameter changed
+	private static final int REFLECT = 6; // Reflection turned on or off
+
+	private DoilyPanel dp; // DoilyPanel which this is attached to (null while replaying a journal)
+	private StrokeStore strokes = new StrokeStore(); // All the strokes in the current drawing, in the order they were drawn
+	private DrawingHistory clearedDrawings = new DrawingHistory(DigitalDoily.HISTORY_MEMORY_BUDGET); // Stores all the strokes of images which have been cleared from the screen (older ones on disk)
+	private ArrayDeque<Change> undoChanges = new ArrayDeque<Change>(); // Changes which can be undone, most recent first
+	private ArrayDeque<Change> redoChanges = new ArrayDeque<Change>(); // Changes which have been undone and can be redone, most recently undone first
+	private DrawStroke mouseStroke = null; // Stroke where the mouse cursor currently is (null if the mouse is not in the panel)
+	private DrawStroke cursor = new DrawStroke(0, 0, 0, Color.BLACK); // Reused as the mouse stroke, so one is not created on every mouse move
+	private StrokeSimplifier simplifier = new StrokeSimplifier(DigitalDoily.SIMPLIFY_TOLERANCE); // Removes unnecessary points from strokes
+	private JButton undoBtn; // Undo Button referenced so that can be enabled/disabled depending on size of stack
+	private JButton redoBtn; // Redo Button referenced so that can be enabled/disabled depending on whether anything has been undone
+	private Runnable onSettingsChanged; // Called when a setting is changed by the drawing itself (e.g. by undo), so the controls can be updated
+	private DrawingJournal journal; // Journal every change is recorded in so it can be recovered after a crash (null if not recorded)
+
+	private int sectorCount; // Current number of sectors to rotate through
+	private boolean reflect; // Whether to reflect the points in each sector
+	private boolean sectorLinesVisible; // Whether to draw the sector lines
+	private int diameter; // Diameter of the draw point
+	private Color colour; // Colour of the draw point
+
+	/**
+	 * Initialises drawing context with default parameters and attaches to DoilyPanel
+	 * @param dp DoilyPanel which will be drawing this, or null if it is not drawn (e.g. while replaying a journal)
+	 */
+	public DoilyDrawing(DoilyPanel dp){
+		this.dp =dp;
+		this.sectorCount = DigitalDoily.START_SECTOR_COUNT;
+		this.reflect = DigitalDoily.START_REFLECT_DRAWING;
+		this.sectorLinesVisible = DigitalDoily.START_SHOW_SECTOR_LINES;
+		this.diameter = DigitalDoily.START_DIAMETER;
+		this.colour = DigitalDoily.START_COLOUR;
+	}
+
+	/**
+	 * Binds the undo button (is optional, but adds feature to disable button)
+	 * @param undoBtn Undo Button used to control drawing
+	 */
+	public void setUndoBtn(JButton undoBtn){
+		this.undoBtn = undoBtn;
+	}
+
+	/**
+	 * Binds the redo button (is optional, but adds feature to disable button)
+	 * @param redoBtn Redo Button used to control drawing
+	 */
+	public void setRedoBtn(JButton redoBtn){
+		this.redoBtn = redoBtn;
+	}
+
+	/**
+	 * Sets what to call when a setting is changed by the drawing rather than the controls, i.e. by undo, redo, opening a file or recovering the journal
+	 * @param onSettingsChanged Called on the EDT after the settings have changed
+	 */
+	public void setSettingsListener(Runnable onSettingsChanged){
+		this.onSettingsChanged = onSettingsChanged;
+	}
+
+	/**
+	 * Records every later change to the drawing in a journal
+	 * @param journal Journal to record changes in, which has already been replayed
+	 */
+	public void setJournal(DrawingJournal journal){
+		this.journal = journal;
+	}
+
+	/**
+	 * Replaces the drawing, its history and the settings with ones from a snapshot of the journal, forgetting what can be undone and redone
+	 * until readChanges() reads it from the snapshot as well
+	 * @param strokes Strokes of the recovered drawing
+	 * @param history Recovered cleared drawings
+	 * @param sectorCount Number of sectors of the recovered drawing
+	 * @param colour Colour of the pen
+	 * @param diameter Diameter of the pen
+	 * @param reflect Whether strokes are reflected
+	 */
+	void restore(StrokeStore strokes, DrawingHistory history, int sectorCount, Color colour, int diameter, boolean reflect){
+		this.strokes = strokes;
+		this.clearedDrawings = history;
+		this.undoChanges.clear();
+		this.redoChanges.clear();
+		this.sectorCount = sectorCount;
+		this.colour = colour;
+		this.diameter = diameter;
+		this.reflect = reflect;
+		this.redraw();
+		this.settingsChanged();
+		this.updateButtons();
+	}
+
+	/**
+	 * Takes the drawing, history, undo and redo of another drawing, e.g. one rebuilt by replaying the journal. The other drawing must not be used afterwards
+	 * @param other Drawing to take everything from
+	 */
+	void restore(DoilyDrawing other){
+		this.restore(other.strokes, other.clearedDrawings, other.sectorCount, other.colour, other.diameter, other.reflect);
+		this.undoChanges = other.undoChanges;
+		this.redoChanges = other.redoChanges;
+		this.updateButtons();
+	}
+
+	/**
+	 * Creates a read only copy of the drawing, its history, the settings and what can be undone and redone, e.g. for the journal to write in the background
+	 * while drawing carries on. The strokes and cleared drawings are shared using their snapshots rather than copied, so this takes constant time
+	 * per cleared drawing and change
+	 * @return Copy of the drawing as it currently is, which is not drawn
+	 */
+	DoilyDrawing snapshot(){
+		DoilyDrawing copy = new DoilyDrawing(null);
+		copy.strokes = this.strokes.snapshotWithUndone();
+		copy.clearedDrawings = this.clearedDrawings.snapshot();
+		copy.undoChanges = copyChanges(this.undoChanges);
+		copy.redoChanges = copyChanges(this.redoChanges);
+		copy.sectorCount = this.sectorCount;
+		copy.colour = this.colour;
+		copy.diameter = this.diameter;
+		copy.reflect = this.reflect;
+		return copy;
+	}
+
+	/**
+	 * Releases a copy made by snapshot() once it has been written, so the drawing it was taken from can reclaim the space its history was using on disk.
+	 * Can be called from any thread
+	 */
+	void release(){
+		this.clearedDrawings.release();
+	}
+
+	/**
+	 * @return Bytes needed to write what can be undone and redone using writeChanges()
+	 */
+	long getChangesByteSize(){
+		long size = 8;
+		for (Change change : this.undoChanges){
+			size += change.getByteSize();
+		}
+		for (Change change : this.redoChanges){
+			size += change.getByteSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Writes what can be undone and redone, most recent first, including the drawings kept by undone clears and loads
+	 * @param buf Buffer with at least getChangesByteSize() bytes remaining
+	 */
+	void writeChanges(ByteBuffer buf){
+		buf.putInt(this.undoChanges.size());
+		for (Change change : this.undoChanges){
+			change.write(buf);
+		}
+		buf.putInt(this.redoChanges.size());
+		for (Change change : this.redoChanges){
+			change.write(buf);
+		}
+	}
+
+	/**
+	 * Reads what can be undone and redone previously written using writeChanges(), once the drawing has been restored
+	 * @param buf Buffer positioned at the start of the changes
+	 */
+	void readChanges(ByteBuffer buf){
+		for (int i = buf.getInt(); i > 0; i--){
+			this.undoChanges.addLast(Change.read(buf));
+		}
+		for (int i = buf.getInt(); i > 0; i--){
+			this.redoChanges.addLast(Change.read(buf));
+		}
+		this.updateButtons();
+	}
+
+	/// Below methods control the drawing parameters. Called by the GUI buttons ///
+
+	/**
+	 * Erases the current drawing (but not history). The old drawing is added to the clearedDrawings stack
+	 */
+	public void clear(){
+		if (!this.strokes.isEmpty()){
+			this.clearedDrawings.push(this.strokes);
+			this.strokes = new StrokeStore();
+			this.redraw();
+			this.changed(new Change(CLEAR));
+			if (this.journal != null){
+				this.journal.logClear();
+				this.compactJournal();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the current drawing with one that has been opened. The old drawing is added to the clearedDrawings stack so it can be brought back by undo
+	 * @param file Drawing that has been read from a file
+	 */
+	public void load(DoilyFile file){
+		Change change = new Change(LOAD);
+		change.before = this.sectorCount;
+		change.after = file.getSectorCount();
+		if (!this.strokes.isEmpty()){
+			this.clearedDrawings.push(this.strokes);
+			change.pushed = true;
+		} else {
+			change.drawing = this.strokes; // Nothing worth adding to the history, so kept here instead
+		}
+		this.strokes = file.getStrokes();
+		this.sectorCount = file.getSectorCount();
+		this.redraw();
+		this.settingsChanged();
+		this.changed(change);
+		if (this.journal != null){
+			this.journal.logLoad(this.strokes, this.sectorCount);
+			this.compactJournal();
+		}
+	}
+
+	/**
+	 * Update the colour of the pen
+	 * @param colour New colour for pen (ignored if null, e.g. if the colour chooser was cancelled)
+	 */
+	public void setColour(Color colour){
+		if (colour == null || colour.equals(this.colour)){
+			return;
+		}
+		this.changeSetting(COLOUR, this.colour.getRGB(), colour.getRGB());
+		this.colour = colour;
+		if (this.journal != null){
+			this.journal.logColour(colour.getRGB());
+		}
+	}
+
+	/**
+	 * Returns the current colour of the pen
+	 * @return Current colour of pen
+	 */
+	public Color getColour(){
+		return this.colour;
+	}
+
+	/**
+	 * Sets diameter for pen
+	 * @param diameter New Diameter
+	 */
+	public void setDiameter(int diameter){
+		if (diameter == this.diameter){
+			return;
+		}
+		this.changeSetting(DIAMETER, this.diameter, diameter);
+		this.diameter = diameter;
+		if (this.journal != null){
+			this.journal.logDiameter(diameter);
+		}
+	}
+
+	/**
+	 * @return Diameter of the pen
+	 */
+	public int getDiameter(){
+		return this.diameter;
+	}
+
+	/**
+	 * Set whether points should be reflected in each sector
+	 * @param reflect Boolean where true equals reflect points
+	 */
+	public void setReflect(boolean reflect){
+		if (reflect == this.reflect){
+			return;
+		}
+		this.changeSetting(REFLECT, this.reflect ? 1 : 0, reflect ? 1 : 0);
+		this.reflect = reflect;
+		if (this.journal != null){
+			this.journal.logReflect(reflect);
+		}
+	}
+
+	/**
+	 * @return Whether new strokes are reflected in each sector
+	 */
+	public boolean isReflected(){
+		return this.reflect;
+	}
+
+	/**
+	 * Sets whether the sector lines should be visible in the drawing
+	 * @param visible Boolean stating whether sector lines should be visible
+	 */
+	public void setSectorLineVisible(boolean visible){
+		this.sectorLinesVisible = visible;
+		if (dp != null){
+			dp.repaint();
+		}
+	}
+
+	/**
+	 * Sets the number of sectors in the image
+	 * @param sectorCount Number of sectors in image
+	 */
+	public void setSectorCount(int sectorCount){
+		if (sectorCount == this.sectorCount){
+			return;
+		}
+		this.changeSetting(SECTORS, this.sectorCount, sectorCount);
+		this.sectorCount = sectorCount;
+		this.redraw();
+		if (this.journal != null){
+			this.journal.logSectorCount(sectorCount);
+		}
+	}
+
+	/**
+	 * Undoes the most recent change: removes the last stroke (strokes are undone one at a time), brings back a cleared drawing, or puts back a setting.
+	 * Undone strokes are not copied, they are left in the store so that redo can restore them
+	 */
+	public void undo(){
+		Change change = this.undoChanges.peek();
+		if (change == null){
+			// Changes recovered from an older snapshot are not recorded, but strokes and clears can still be undone
+			if (!this.strokes.isEmpty()){
+				change = new Change(STROKES);
+			} else if (!this.clearedDrawings.isEmpty()){
+				change = new Change(CLEAR);
+			} else {
+				return;
+			}
+			this.undoChanges.push(change);
+			change.count = 1;
+		}
+
+		if (change.type == STROKES){
+			this.strokes.removeLast();
+			takeStroke(this.undoChanges);
+			addStroke(this.redoChanges);
+		} else {
+			this.undoChanges.pop();
+			switch (change.type){
+				case CLEAR:
+					change.drawing = this.strokes;
+					this.strokes = this.clearedDrawings.pop();
+					break;
+				case LOAD:
+					StrokeStore loaded = this.strokes;
+					this.strokes = change.pushed ? this.clearedDrawings.pop() : change.drawing;
+					change.drawing = loaded;
+					this.applySetting(SECTORS, change.before);
+					break;
+				default:
+					this.applySetting(change.type, change.before);
+			}
+			this.redoChanges.push(change);
+		}
+		this.redraw(); // Forces a full redraw of the image (not buffered)
+		if (this.journal != null){
+			this.journal.logUndo();
+		}
+		this.updateButtons();
+	}
+
+	/**
+	 * Redoes the change most recently undone. Anything else changed since the undo means there is nothing to redo
+	 */
+	public void redo(){
+		Change change = this.redoChanges.peek();
+		if (change == null){
+			return;
+		}
+		if (change.type == STROKES){
+			this.strokes.restoreLast();
+			takeStroke(this.redoChanges);
+			addStroke(this.undoChanges);
+		} else {
+			this.redoChanges.pop();
+			switch (change.type){
+				case CLEAR:
+					this.clearedDrawings.push(this.strokes);
+					this.strokes = change.drawing;
+					change.drawing = null;
+					break;
+				case LOAD:
+					StrokeStore replaced = this.strokes;
+					this.strokes = change.drawing;
+					if (change.pushed){
+						this.clearedDrawings.push(replaced);
+						change.drawing = null;
+					} else {
+						change.drawing = replaced;
+					}
+					this.applySetting(SECTORS, change.after);
+					break;
+				default:
+					this.applySetting(change.type, change.after);
+			}
+			this.undoChanges.push(change);
+		}
+		this.redraw();
+		if (this.journal != null){
+			this.journal.logRedo();
+		}
+		this.updateButtons();
+	}
+
+	/**
+	 * Records a new change so it can be undone. Anything undone before it can no longer be redone
+	 */
+	private void changed(Change change){
+		this.undoChanges.push(change);
+		this.redoChanges.clear();
+		this.updateButtons();
+	}
+
+	/**
+	 * Records a change to a setting. Changes to the same setting one after another (e.g. dragging the diameter slider) are undone together
+	 * @param type Setting being changed
+	 * @param before Value before the change
+	 * @param after Value after the change
+	 */
+	private void changeSetting(int type, int before, int after){
+		Change last = this.undoChanges.peek();
+		if (last != null && last.type == type && this.redoChanges.isEmpty()){
+			last.after = after;
+			if (last.before == last.after){
+				this.undoChanges.pop(); // Changed back to how it was, so there is nothing to undo
+				this.updateButtons();
+			}
+			return;
+		}
+		Change change = new Change(type);
+		change.before = before;
+		change.after = after;
+		this.changed(change);
+	}
+
+	/**
+	 * Puts back a setting when a change to it is undone or redone, then tells the controls
+	 */
+	private void applySetting(int type, int value){
+		switch (type){
+			case SECTORS:
+				this.sectorCount = value;
+				break;
+			case COLOUR:
+				this.colour = new Color(value, true);
+				break;
+			case DIAMETER:
+				this.diameter = value;
+				break;
+			case REFLECT:
+				this.reflect = value != 0;
+				break;
+		}
+		this.settingsChanged();
+	}
+
+	/**
+	 * Copies a stack of changes for a snapshot, sharing the drawings they keep using their snapshots
+	 */
+	private static ArrayDeque<Change> copyChanges(ArrayDeque<Change> changes){
+		ArrayDeque<Change> copy = new ArrayDeque<Change>(changes.size());
+		for (Change change : changes){
+			Change shared = new Change(change.type);
+			shared.count = change.count;
+			shared.before = change.before;
+			shared.after = change.after;
+			shared.pushed = change.pushed;
+			shared.drawing = (change.drawing == null) ? null : change.drawing.snapshotWithUndone();
+			copy.addLast(shared);
+		}
+		return copy;
+	}
+
+	/**
+	 * Takes one stroke from the run of strokes at the top of a stack, removing the run once it is empty
+	 */
+	private static void takeStroke(ArrayDeque<Change> changes){
+		Change run = changes.peek();
+		if (--run.count == 0){
+			changes.pop();
+		}
+	}
+
+	/**
+	 * Adds one stroke to the run of strokes at the top of a stack, starting a new run if the top is a different change
+	 */
+	private static void addStroke(ArrayDeque<Change> changes){
+		Change run = changes.peek();
+		if (run == null || run.type != STROKES){
+			run = new Change(STROKES);
+			changes.push(run);
+		}
+		run.count++;
+	}
+
+	/**
+	 * Redraws the whole image, if it is being drawn
+	 */
+	private void redraw(){
+		if (this.dp != null){
+			this.dp.redrawImage();
+		}
+	}
+
+	/**
+	 * Tells the controls the settings have changed
+	 */
+	private void settingsChanged(){
+		if (this.onSettingsChanged != null){
+			this.onSettingsChanged.run();
+		}
+	}
+
+	/**
+	 * Enables the undo and redo buttons only when there is something to undo or redo
+	 */
+	private void updateButtons(){
+		if (this.undoBtn != null){
+			this.undoBtn.setEnabled(!this.undoChanges.isEmpty() || !this.strokes.isEmpty() || !this.clearedDrawings.isEmpty());
+		}
+		if (this.redoBtn != null){
+			this.redoBtn.setEnabled(!this.redoChanges.isEmpty());
+		}
+	}
+
+	/**
+	 * Allows the draw strokes to be accessed (contains all information to redraw image) 
+	 * @return The store of draw strokes
+	 */
+	public StrokeStore getStrokes(){
+		return this.strokes;
+	}
+
+	/**
+	 * Gives the journal the cleared drawings to write to its snapshot
+	 * @return Cleared drawings, most recent last
+	 */
+	DrawingHistory getHistory(){
+		return this.clearedDrawings;
+	}
+
+	/**
+	 * Returns the memory used by cleared drawings which have not been moved to disk, so it can be reported
+	 * @return Bytes used by the history
+	 */
+	public long getHistoryBytes(){
+		return this.clearedDrawings.getMemoryUsed();
+	}
+
+	/**
+	 * Creates a new point on the drawing. Can be specified as the start of a new stroke or part of a previous one
+	 * @param x Polar X co-ordinate 
+	 * @param y Polar Y co-ordinate
+	 * @param start Whether this is the start of a new stroke
+	 * @param scale Pixels per unit of the drawing that it is being drawn at, so points are dropped by their distance on screen
+	 * @return False if the point was dropped for being too close to the previous point, so there is nothing new to draw
+	 */
+	public boolean newPoint(double x, double y, boolean start, double scale){
+		if (start){
+			this.startStroke((float) x, (float) y, this.diameter, this.colour.getRGB(), this.reflect);
+		} else {
+			if (this.simplifier.isRedundant(strokes.getLastX(), strokes.getLastY(), x, y, scale)){
+				return false;
+			}
+			this.addPoint((float) x, (float) y);
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a new stroke, which can be undone. Also used to replay strokes from the journal, which were drawn with the pen as it was then
+	 * @param x Polar X co-ordinate of the first point
+	 * @param y Polar Y co-ordinate of the first point
+	 * @param diameter Diameter of the stroke
+	 * @param argb Colour of the stroke
+	 * @param reflect Whether the stroke is reflected in each sector
+	 */
+	void startStroke(float x, float y, int diameter, int argb, boolean reflect){
+		this.strokes.startStroke(x, y, diameter, argb, reflect); // Adds a new stroke so can be drawn, starting at this point
+		addStroke(this.undoChanges);
+		this.redoChanges.clear();
+		if (this.journal != null){
+			this.journal.logStroke(x, y, diameter, argb, reflect);
+		}
+		this.updateButtons();
+	}
+
+	/**
+	 * Adds a point to the current stroke, connecting it to the previous one by a line
+	 * @param x Polar X co-ordinate
+	 * @param y Polar Y co-ordinate
+	 */
+	void addPoint(float x, float y){
+		this.strokes.addPoint(x, y);
+		if (this.journal != null){
+			this.journal.logPoint(x, y);
+		}
+	}
+
+	/**
+	 * Marks the current stroke as finished, removing any points that make no visible difference to it
+	 * @param scale Pixels per unit of the drawing that the stroke was drawn at
+	 */
+	public void endStroke(double scale){
+		if (!this.strokes.isEmpty()){
+			this.strokes.simplifyLast(this.simplifier, scale);
+		}
+		if (this.journal != null){
+			this.journal.logEnd(scale);
+			this.compactJournal();
+		}
+	}
+
+	/**
+	 * Replaces the journal with a snapshot of the drawing once it has grown large enough, so recovery time stays bounded.
+	 * Only called once a change is finished (not part way through a stroke)
+	 */
+	private void compactJournal(){
+		if (this.journal.needsCompaction()){
+			this.journal.compact(this);
+		}
+	}
+
+	/**
+	 * Returns the simplifier used on finished strokes, so the reduction in points can be reported
+	 * @return Stroke simplifier
+	 */
+	public StrokeSimplifier getSimplifier(){
+		return this.simplifier;
+	}
+
+	/**
+	 * Sets the co-ordinates of where the mouse currently is, provides the cursor circle on the panel
+	 * @param x Polar X co-ordinate
+	 * @param y Polar Y co-ordinate
+	 */
+	public void setMouseStroke(double x, double y){
+		this.cursor.set(x, y, this.diameter, this.colour);
+		this.mouseStroke = this.cursor;
+	}	
+
+	/**
+	 * Clears the mouse stroke (for if cursor is no longer in panel)
+	 */
+	public void clearMouseStroke(){
+		this.mouseStroke = null;
+	}
+
+	/**
+	 * Returns the Mouse Stroke so can be drawn
+	 * @return Mouse Stroke
+	 */
+	public DrawStroke getMouseStroke(){
+		return this.mouseStroke;
+	}
+
+	/** Returns whether the sector lines should be visible
+	 * @return True if should be visible
+	 */
+	public boolean drawSectorLines(){
+		return this.sectorLinesVisible;
+	}
+
+	/**
+	 * Gets the current number of sectors for the image to be drawn around
+	 * @return Number of sectors
+	 */
+	public int getSectorCount(){
+		return this.sectorCount;
+	}
+
+	/**
+	 * A change which can be undone and redone
+	 */
+	private static class Change {
+		private int type; // Type of change, e.g. STROKES
+		private int count; // Number of strokes in a run of strokes
+		private int before; // Setting before the change (for LOAD the sector count)
+		private int after; // Setting after the change
+		private boolean pushed; // Whether a load added the replaced drawing to the history
+		private StrokeStore drawing; // Drawing which is not currently shown: cleared drawings once undone, or the drawing swapped with a loaded one
+
+		Change(int type){
+			this.type = type;
+		}
+
+		/**
+		 * @return Bytes needed to write the change using write()
+		 */
+		long getByteSize(){
+			return 14 + ((this.drawing == null) ? 0 : this.drawing.getByteSizeWithUndone());
+		}
+
+		/**
+		 * Writes the type and values of the change, followed by the drawing it keeps if it has one
+		 */
+		void write(ByteBuffer buf){
+			buf.put((byte) this.type);
+			buf.putInt(this.count);
+			buf.putInt(this.before);
+			buf.putInt(this.after);
+			buf.put((byte) ((this.pushed ? 1 : 0) | (this.drawing != null ? 2 : 0)));
+			if (this.drawing != null){
+				this.drawing.writeWithUndone(buf);
+			}
+		}
+
+		/**
+		 * Reads a change previously written using write()
+		 */
+		static Change read(ByteBuffer buf){
+			Change change = new Change(buf.get());
+			change.count = buf.getInt();
+			change.before = buf.getInt();
+			change.after = buf.getInt();
+			int flags = buf.get();
+			change.pushed = (flags & 1) != 0;
+			if ((flags & 2) != 0){
+				change.drawing = StrokeStore.readWithUndone(buf);
+			}
+			return change;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless command line tool which renders saved .doily drawings to PNG or SVG images at any resolution, e.g. for printing, or to Deep Zoom images
+ * which can be panned and zoomed in a browser.
+ * Given a directory, every drawing in it is rendered, using a thread per core with a bounded queue so only a few images are in memory at once.
+ * Run with e.g. java -Djava.awt.headless=true DoilyExport input=drawings output=images size=7680x4320 scale=fit lines=false format=png
+ * @author Dan
+ *
+ */
+public class DoilyExport {
+	// Default parameters, which can be changed on the command line
+	private static String input = "."; // Drawing to render, or directory of drawings
+	private static String output = null; // Image to write, or directory to write images to (defaults to next to the input)
+	private static String size = "7680x4320"; // Size of the images in pixels
+	private static String scale = "fit"; // Pixels per unit of the drawing, or fit to scale each drawing to fill the image
+	private static boolean lines = false; // Whether to draw the sector lines
+	private static String format = "png"; // Format of the images, png, svg or dzi (for dzi the scale is rounded down to a power of two)
+	private static int threads = Runtime.getRuntime().availableProcessors(); // Number of drawings rendered at once
+
+	/**
+	 * Renders the drawings given on the command line
+	 * @param args Parameters in the form name=value
+	 */
+	public static void main(String[] args) throws Exception{
+		System.setProperty("java.awt.headless", "true");
+		for (String arg : args){
+			String[] kv = arg.split("=", 2);
+			switch (kv[0]){
+				case "input": input = kv[1]; break;
+				case "output": output = kv[1]; break;
+				case "size": size = kv[1]; break;
+				case "scale": scale = kv[1]; break;
+				case "lines": lines = Boolean.parseBoolean(kv[1]); break;
+				case "format": format = kv[1]; break;
+				case "threads": threads = Integer.parseInt(kv[1]); break;
+				default: throw new IllegalArgumentException("Unknown parameter " + kv[0]);
+			}
+		}
+		if (!format.equals("png") && !format.equals(DoilySvg.EXTENSION) && !format.equals(DoilyDeepZoom.EXTENSION)){
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		String[] wh = size.split("x");
+		int width = Integer.parseInt(wh[0]), height = Integer.parseInt(wh[1]);
+
+		// Works out which drawings to render and where each image goes
+		Path in = Paths.get(input);
+		List<Path> drawings;
+		Path outDir;
+		if (Files.isDirectory(in)){
+			try (Stream<Path> files = Files.list(in)){
+				drawings = files.filter(f -> f.toString().endsWith("." + DoilyFile.EXTENSION)).sorted().collect(Collectors.toList());
+			}
+			outDir = output == null ? in : Paths.get(output);
+			Files.createDirectories(outDir);
+		} else {
+			drawings = new ArrayList<Path>();
+			drawings.add(in);
+			outDir = null;
+		}
+
+		// The queue is bounded, so the caller renders drawings itself rather than queueing more once every thread is busy
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (Path drawing : drawings){
+			Path image = outDir != null ? outDir.resolve(imageName(drawing))
+					: output != null ? Paths.get(output) : drawing.resolveSibling(imageName(drawing));
+			results.add(pool.submit(() -> render(drawing, image, width, height)));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++){
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e){
+				System.err.println("Unable to render " + drawings.get(i) + ": " + e.getCause().getMessage());
+				failed++;
+			}
+		}
+		System.out.printf("Rendered %d of %d drawings at %dx%d in %.1fs%n", drawings.size() - failed, drawings.size(), width, height,
+				(System.nanoTime() - start)/1e9);
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Renders a single drawing to an image in the chosen format
+	 * @param drawing Drawing to render
+	 * @param image Image file to write
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 */
+	private static void render(Path drawing, Path image, int width, int height){
+		try {
+			DoilyFile file = DoilyFile.load(drawing);
+			if (format.equals(DoilyDeepZoom.EXTENSION)){
+				int level = scale.equals("fit") ? DoilyDeepZoom.fitLevel(file.getStrokes(), file.getSectorCount(), width, height)
+						: (int) Math.floor(Math.log(Double.parseDouble(scale))/Math.log(2));
+				DoilyDeepZoom.save(image, file.getStrokes(), file.getSectorCount(), level);
+				return;
+			}
+			double s = scale.equals("fit") ? DoilyRenderer.fitScale(file.getStrokes(), file.getSectorCount(), width, height) : Double.parseDouble(scale);
+			if (format.equals(DoilySvg.EXTENSION)){
+				DoilySvg.save(image, file.getStrokes(), file.getSectorCount(), width, height, s, lines);
+				return;
+			}
+			BufferedImage img = DoilyRenderer.render(file.getStrokes(), file.getSectorCount(), width, height, s, lines);
+			File out = image.toFile();
+			if (!ImageIO.write(img, "png", out)){
+				throw new IOException("No PNG writer available");
+			}
+		} catch (IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return Name of the image for a drawing, replacing its extension with that of the format
+	 */
+	private static String imageName(Path drawing){
+		String name = drawing.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0 ? name.substring(0, dot) : name) + "." + format;
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes drawings in the binary .doily format, streaming through a small buffer so that files of any size can be saved and loaded
+ * without holding a second copy of the drawing in memory. Large files can instead be memory mapped.
+ * The format is a header (magic number, version, number of fraction bits used for co-ordinates, sector count, stroke count and total point count)
+ * followed by each stroke in turn: its colour as ARGB, its pen byte (diameter, with the top bit set if reflected), its point count as a varint,
+ * then its points. Co-ordinates are stored as fixed point values relative to the centre of the drawing, each point being the zigzag varint encoded
+ * difference from the previous point, so most points take only two or three bytes
+ * @author Dan
+ *
+ */
+public class DoilyFile {
+	public static final String EXTENSION = "doily"; // File extension used for drawings
+	private static final int MAGIC = 0x444F494C; // "DOIL" at the start of every file
+	private static final short VERSION = 1; // Version of the format written
+	private static final int FRACTION_BITS = 4; // Co-ordinates are stored to the nearest 1/16th of a pixel
+	private static final int HEADER_SIZE = 24; // Bytes before the first stroke
+	private static final int BUFFER_SIZE = 64*1024; // Size of the buffer used when streaming through a channel
+	private static final int MAX_VARINT = 5; // Most bytes a varint can take
+	private static final int MAX_PREALLOCATE = 1 << 24; // Most strokes or points allocated before reading them, in case the header is corrupt
+
+	private int sectorCount; // Number of sectors the drawing was drawn with
+	private StrokeStore strokes; // Strokes of the drawing
+
+	/**
+	 * Creates a drawing to be written
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors the drawing is drawn with
+	 */
+	public DoilyFile(StrokeStore strokes, int sectorCount){
+		this.strokes = strokes;
+		this.sectorCount = sectorCount;
+	}
+
+	/**
+	 * @return Number of sectors the drawing was drawn with
+	 */
+	public int getSectorCount(){
+		return this.sectorCount;
+	}
+
+	/**
+	 * @return Strokes of the drawing
+	 */
+	public StrokeStore getStrokes(){
+		return this.strokes;
+	}
+
+	/**
+	 * Saves the drawing to a file, replacing anything already there
+	 * @param path File to write to
+	 */
+	public void save(Path path) throws IOException{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			this.write(channel);
+		}
+	}
+
+	/**
+	 * Writes the drawing to a channel
+	 * @param channel Channel to write to (not closed afterwards)
+	 */
+	public void write(WritableByteChannel channel) throws IOException{
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.putInt(MAGIC);
+		buf.putShort(VERSION);
+		buf.putShort((short) FRACTION_BITS);
+		buf.putInt(this.sectorCount);
+		buf.putInt(this.strokes.size());
+		buf.putLong(this.strokes.getTotalPoints());
+
+		float scale = 1 << FRACTION_BITS;
+		for (int s = 0; s < this.strokes.size(); s++){
+			flushIfFull(channel, buf, 5 + MAX_VARINT);
+			int start = this.strokes.getStart(s), count = this.strokes.getPointCount(s);
+			buf.putInt(this.strokes.getColour(s));
+			buf.put((byte) (this.strokes.getDiameter(s) | (this.strokes.isReflected(s) ? 0x80 : 0)));
+			putVarint(buf, count);
+
+			// Each point is written as the difference from the previous one, starting from the centre
+			int lastX = 0, lastY = 0;
+			for (int i = start; i < start+count; i++){
+				flushIfFull(channel, buf, MAX_VARINT*2);
+				int x = Math.round(this.strokes.getX(i)*scale), y = Math.round(this.strokes.getY(i)*scale);
+				putVarint(buf, zigzag(x - lastX));
+				putVarint(buf, zigzag(y - lastY));
+				lastX = x;
+				lastY = y;
+			}
+		}
+		buf.flip();
+		while (buf.hasRemaining()){
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * Loads a drawing from a file, memory mapping it if it is larger than DigitalDoily.MAP_FILE_THRESHOLD
+	 * @param path File to read
+	 * @return Drawing read from the file
+	 */
+	public static DoilyFile load(Path path) throws IOException{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			if (channel.size() > DigitalDoily.MAP_FILE_THRESHOLD && channel.size() <= Integer.MAX_VALUE){
+				return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null);
+			}
+			return read(channel);
+		}
+	}
+
+	/**
+	 * Reads a drawing from a channel, streaming it through a small buffer
+	 * @param channel Channel positioned at the start of the drawing (not closed afterwards)
+	 * @return Drawing read from the channel
+	 */
+	public static DoilyFile read(ReadableByteChannel channel) throws IOException{
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.flip();
+		return read(buf, channel);
+	}
+
+	/**
+	 * Reads a drawing from a buffer which is refilled from a channel as it is used up
+	 * @param buf Buffer holding the start of the drawing
+	 * @param channel Channel to refill the buffer from, or null if the buffer holds the whole drawing (e.g. a mapped file)
+	 * @return Drawing read
+	 */
+	private static DoilyFile read(ByteBuffer buf, ReadableByteChannel channel) throws IOException{
+		try {
+			return readDrawing(buf, channel);
+		} catch (BufferUnderflowException e){
+			throw new EOFException("Doily file ended unexpectedly");
+		}
+	}
+
+	/**
+	 * Reads the header and strokes of a drawing, see read()
+	 */
+	private static DoilyFile readDrawing(ByteBuffer buf, ReadableByteChannel channel) throws IOException{
+		fill(channel, buf, HEADER_SIZE);
+		if (buf.getInt() != MAGIC){
+			throw new IOException("Not a doily file");
+		}
+		short version = buf.getShort();
+		if (version != VERSION){
+			throw new IOException("Unsupported doily file version " + version);
+		}
+		int fractionBits = buf.getShort();
+		int sectorCount = buf.getInt();
+		int strokeCount = buf.getInt();
+		long pointCount = buf.getLong();
+		if (fractionBits < 0 || fractionBits > 16 || sectorCount < DigitalDoily.MIN_SECTORS || sectorCount > DigitalDoily.MAX_SECTORS
+				|| strokeCount < 0 || pointCount < 0 || pointCount > Integer.MAX_VALUE - 8){
+			throw new IOException("Corrupt doily file header");
+		}
+
+		StrokeStore strokes = new StrokeStore(Math.min(strokeCount, MAX_PREALLOCATE), (int) Math.min(pointCount, MAX_PREALLOCATE)); // Header is only trusted up to a point
+		float scale = 1f / (1 << fractionBits);
+		long remaining = pointCount; // Points the header says are still to come
+		for (int s = 0; s < strokeCount; s++){
+			fill(channel, buf, 5 + MAX_VARINT);
+			int colour = buf.getInt();
+			int pen = buf.get() & 0xFF;
+			int count = getVarint(buf);
+			if (count <= 0){
+				throw new IOException("Corrupt doily file, stroke " + s + " has no points");
+			}
+			if (count > remaining){
+				throw new IOException("Corrupt doily file, stroke " + s + " has more points than the header says the drawing has");
+			}
+			remaining -= count;
+			int x = 0, y = 0;
+			for (int i = 0; i < count; i++){
+				fill(channel, buf, MAX_VARINT*2);
+				x += unzigzag(getVarint(buf));
+				y += unzigzag(getVarint(buf));
+				if (i == 0){
+					strokes.startStroke(x*scale, y*scale, pen & 0x7F, colour, (pen & 0x80) != 0);
+				} else {
+					strokes.addPoint(x*scale, y*scale);
+				}
+			}
+		}
+		if (remaining != 0){
+			throw new IOException("Corrupt doily file, it has " + (pointCount - remaining) + " points but the header says it has " + pointCount);
+		}
+		return new DoilyFile(strokes, sectorCount);
+	}
+
+	/**
+	 * Writes out the buffer if it has fewer than the given number of bytes free
+	 */
+	private static void flushIfFull(WritableByteChannel channel, ByteBuffer buf, int needed) throws IOException{
+		if (buf.remaining() < needed){
+			buf.flip();
+			while (buf.hasRemaining()){
+				channel.write(buf);
+			}
+			buf.clear();
+		}
+	}
+
+	/**
+	 * Reads more of the channel into the buffer if it has fewer than the given number of bytes left, so they can be read without checking.
+	 * Near the end of the drawing there may be fewer bytes than asked for, so reading past the end causes a BufferUnderflowException
+	 */
+	private static void fill(ReadableByteChannel channel, ByteBuffer buf, int needed) throws IOException{
+		if (channel == null || buf.remaining() >= needed){
+			return;
+		}
+		buf.compact();
+		while (buf.position() < needed){
+			if (channel.read(buf) < 0){
+				break;
+			}
+		}
+		buf.flip();
+		if (!buf.hasRemaining()){
+			throw new EOFException("Doily file ended unexpectedly");
+		}
+	}
+
+	/**
+	 * Writes an unsigned value using 7 bits per byte, with the top bit set on every byte except the last
+	 */
+	private static void putVarint(ByteBuffer buf, int value){
+		while ((value & ~0x7F) != 0){
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Reads a value written by putVarint()
+	 */
+	private static int getVarint(ByteBuffer buf) throws IOException{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7){
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+		throw new IOException("Corrupt doily file, varint is too long");
+	}
+
+	/**
+	 * Maps signed values to unsigned ones so that small negative numbers also take few bytes (0, -1, 1, -2... become 0, 1, 2, 3...)
+	 */
+	private static int zigzag(int value){
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Reverses zigzag()
+	 */
+	private static int unzigzag(int value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
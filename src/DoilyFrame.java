@@ -1,63 +1,361 @@
-import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.event.ComponentAdapter;
-
-import javax.swing.JButton;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-
-/**
- * JFrame which contains and sets up various components, but does not control the actual drawing (this is handled by DoilyPanel)
- * @author dmh2g16
- *
- */
-public class DoilyFrame extends JFrame{	
-	/**
-	 * Constructs a new frame with default title Digital Doily
-	 */
-	public DoilyFrame(){
-		super("Digital Doily");
-	}
-	
-
-	/**
-	 * Initialises the GUI by instantiating all components and laying them out correctly
-	 */
-	public void init(){
-		// Setting Frame Parameters
-		this.setDefaultCloseOperation(EXIT_ON_CLOSE);
-		this.setSize(800,600);
-		this.setMinimumSize(new Dimension(700,500));
-		this.setLayout(new BorderLayout());		
-		
-		DoilyPanel dp = new DoilyPanel(); // DoilyPanel used to display DoilyDrawing
-		
-		// Side panel layout
-		JButton removeBtn = new JButton("Remove");
-		GalleryScrollPanel gp = new GalleryScrollPanel();
-		removeBtn.addActionListener(e->gp.removeSelectedFromGallery());
-		JPanel sidePanel = new JPanel();
-		sidePanel.setLayout(new BorderLayout());
-		sidePanel.add(gp,BorderLayout.CENTER);
-		sidePanel.add(removeBtn, BorderLayout.SOUTH);
-		sidePanel.addComponentListener(new ComponentAdapter(){
-			public void componentResized(java.awt.event.ComponentEvent e) {
-				removeBtn.repaint(); // Prevents glitch on button on resize
-			};
-		});
-		
-		// Control panel layout
-		ControlPanel cp = new ControlPanel(dp,gp);
-		dp.getDoilyDrawing().setUndoBtn(cp.getUndoBtn());
-		
-		this.add(dp, BorderLayout.CENTER);
-		this.add(cp, BorderLayout.SOUTH);
-		this.add(sidePanel,BorderLayout.EAST);
-		
-		
-		// Shows Frame
-		this.setVisible(true);
-		dp.init();
-	}
-	
-}
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JMenu;
+import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.KeyStroke;
+import javax.swing.SwingWorker;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+/**
+ * JFrame which contains and sets up various components, but does not control the actual drawing (this is handled by DoilyPanel)
+ * @author dmh2g16
+ *
+ */
+public class DoilyFrame extends JFrame{	
+	/**
+	 * Constructs a new frame with default title Digital Doily
+	 */
+	public DoilyFrame(){
+		super("Digital Doily");
+	}
+	
+
+	/**
+	 * Initialises the GUI by instantiating all components and laying them out correctly
+	 */
+	public void init(){
+		// Setting Frame Parameters
+		this.setDefaultCloseOperation(EXIT_ON_CLOSE);
+		this.setSize(800,600);
+		this.setMinimumSize(new Dimension(700,500));
+		this.setLayout(new BorderLayout());		
+		
+		DoilyPanel dp = new DoilyPanel(); // DoilyPanel used to display DoilyDrawing
+		
+		// Side panel layout
+		JButton removeBtn = new JButton("Remove");
+		GalleryScrollPanel gp = new GalleryScrollPanel();
+		removeBtn.addActionListener(e->gp.removeSelectedFromGallery());
+		JPanel sidePanel = new JPanel();
+		sidePanel.setLayout(new BorderLayout());
+		sidePanel.add(gp,BorderLayout.CENTER);
+		sidePanel.add(removeBtn, BorderLayout.SOUTH);
+		sidePanel.addComponentListener(new ComponentAdapter(){
+			public void componentResized(java.awt.event.ComponentEvent e) {
+				removeBtn.repaint(); // Prevents glitch on button on resize
+			};
+		});
+		
+		// Control panel layout
+		ControlPanel cp = new ControlPanel(dp,gp);
+		dp.getDoilyDrawing().setUndoBtn(cp.getUndoBtn());
+		dp.getDoilyDrawing().setRedoBtn(cp.getRedoBtn());
+		dp.getDoilyDrawing().setSettingsListener(cp::showSettings); // Keeps the controls matching settings changed by undo, redo and opening files
+		
+		this.add(dp, BorderLayout.CENTER);
+		this.add(cp, BorderLayout.SOUTH);
+		this.add(sidePanel,BorderLayout.EAST);
+		this.setJMenuBar(this.createMenuBar(dp));
+		dp.getMetrics().register(); // Allows the performance of the panel to be watched with JConsole
+		
+		
+		// Shows Frame
+		this.setVisible(true);
+		dp.init();
+		if (DigitalDoily.JOURNAL_ENABLED){
+			this.openJournal(dp.getDoilyDrawing());
+		}
+	}
+	
+	/**
+	 * Recovers the drawing left in the journal when the application last closed (or crashed), then records every change to it from now on.
+	 * If the journal cannot be replayed it is moved aside and a new one is started, so that recovery works again from the next change
+	 * @param dd Drawing to recover into
+	 */
+	private void openJournal(DoilyDrawing dd){
+		DrawingJournal journal;
+		try {
+			journal = new DrawingJournal(DigitalDoily.JOURNAL_DIR);
+		} catch (IOException e) {
+			// The application still works without the journal, drawings just cannot be recovered
+			JOptionPane.showMessageDialog(this, "Unable to open the drawing journal in " + DigitalDoily.JOURNAL_DIR + ": " + e.getMessage()
+					+ "\nChanges to this drawing will not be recoverable.", "Drawing Journal", JOptionPane.WARNING_MESSAGE);
+			return;
+		}
+		try {
+			journal.replay(dd);
+		} catch (IOException | RuntimeException e) {
+			journal.close();
+			try {
+				DrawingJournal.setAside(DigitalDoily.JOURNAL_DIR);
+				journal = new DrawingJournal(DigitalDoily.JOURNAL_DIR);
+				journal.replay(dd); // Nothing to replay, just starts recording
+			} catch (IOException | RuntimeException ex) {
+				JOptionPane.showMessageDialog(this, "Unable to recover the drawing from the journal in " + DigitalDoily.JOURNAL_DIR + ": " + e.getMessage()
+						+ "\nA new journal could not be started (" + ex.getMessage() + "), so changes to this drawing will not be recoverable.",
+						"Drawing Journal", JOptionPane.WARNING_MESSAGE);
+				return;
+			}
+			JOptionPane.showMessageDialog(this, "Unable to recover the drawing from the journal in " + DigitalDoily.JOURNAL_DIR + ": " + e.getMessage()
+					+ "\nThe journal has been kept with the extension " + DrawingJournal.CORRUPT_SUFFIX + " and a new one started.",
+					"Drawing Journal", JOptionPane.WARNING_MESSAGE);
+		}
+		dd.setJournal(journal);
+		Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "Doily journal shutdown")); // Writes the last few changes on exit
+	}
+	
+	/**
+	 * Creates the File menu, used to save the drawing to a .doily file and open it again, export it as an SVG or Deep Zoom image or record the session, and the View menu,
+	 * used to zoom the view and show the performance overlay
+	 * @param dp DoilyPanel containing the drawing
+	 * @return Menu bar for the frame
+	 */
+	private JMenuBar createMenuBar(DoilyPanel dp){
+		JFileChooser chooser = new JFileChooser();
+		chooser.setFileFilter(new FileNameExtensionFilter("Doily Drawings", DoilyFile.EXTENSION));
+		
+		JMenuItem openItem = new JMenuItem("Open...");
+		openItem.addActionListener(e->{
+			if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION){
+				return;
+			}
+			Path path = chooser.getSelectedFile().toPath();
+			// Reads the file in the background, then replaces the drawing on the EDT
+			new SwingWorker<DoilyFile, Void>(){
+				@Override
+				protected DoilyFile doInBackground() throws IOException {
+					return DoilyFile.load(path);
+				}
+
+				@Override
+				protected void done() {
+					try {
+						DoilyFile file = get();
+						if (dp.getRecorder() != null){
+							dp.getRecorder().opened(file);
+						}
+						dp.getDoilyDrawing().load(file);
+					} catch (ExecutionException ex) {
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to open " + path + ": " + ex.getCause().getMessage(), "Open", JOptionPane.ERROR_MESSAGE);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to open " + path + " as it was interrupted", "Open", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}.execute();
+		});
+		
+		JMenuItem saveItem = new JMenuItem("Save As...");
+		saveItem.addActionListener(e->{
+			if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION){
+				return;
+			}
+			// Adds the extension if the user did not give one
+			Path path = chooser.getSelectedFile().toPath();
+			if (!path.getFileName().toString().endsWith("." + DoilyFile.EXTENSION)){
+				path = path.resolveSibling(path.getFileName() + "." + DoilyFile.EXTENSION);
+			}
+			// Writes a snapshot of the strokes in the background, so drawing can carry on while a large file is saved
+			DoilyDrawing dd = dp.getDoilyDrawing();
+			DoilyFile file = new DoilyFile(dd.getStrokes().snapshot(), dd.getSectorCount());
+			Path target = path;
+			new SwingWorker<Void, Void>(){
+				@Override
+				protected Void doInBackground() throws IOException {
+					file.save(target);
+					return null;
+				}
+
+				@Override
+				protected void done() {
+					try {
+						get();
+					} catch (ExecutionException ex) {
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to save " + target + ": " + ex.getCause().getMessage(), "Save", JOptionPane.ERROR_MESSAGE);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to save " + target + " as it was interrupted", "Save", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}.execute();
+		});
+		
+		JFileChooser svgChooser = new JFileChooser();
+		svgChooser.setFileFilter(new FileNameExtensionFilter("SVG Images", DoilySvg.EXTENSION));
+
+		JMenuItem exportItem = new JMenuItem("Export SVG...");
+		exportItem.addActionListener(e->{
+			if (svgChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION){
+				return;
+			}
+			Path path = svgChooser.getSelectedFile().toPath();
+			if (!path.getFileName().toString().endsWith("." + DoilySvg.EXTENSION)){
+				path = path.resolveSibling(path.getFileName() + "." + DoilySvg.EXTENSION);
+			}
+			// Exports the drawing as it is shown on screen (at the same zoom and pan), but as vectors so it stays sharp at any size.
+			// It is written in the background from a snapshot of the strokes, so drawing can carry on while a large drawing is exported
+			DoilyDrawing dd = dp.getDoilyDrawing();
+			StrokeStore strokes = dd.getStrokes().snapshot();
+			int sectorCount = dd.getSectorCount(), width = dp.getWidth(), height = dp.getHeight();
+			double originX = width/2 - dp.getPanX(), originY = height/2 - dp.getPanY(), scale = TileCache.scale(dp.getZoomLevel());
+			boolean sectorLines = dd.drawSectorLines();
+			Path target = path;
+			new SwingWorker<Void, Void>(){
+				@Override
+				protected Void doInBackground() throws IOException {
+					DoilySvg.save(target, strokes, sectorCount, width, height, originX, originY, scale, sectorLines);
+					return null;
+				}
+
+				@Override
+				protected void done() {
+					try {
+						get();
+					} catch (ExecutionException ex) {
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to export " + target + ": " + ex.getCause().getMessage(), "Export", JOptionPane.ERROR_MESSAGE);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to export " + target + " as it was interrupted", "Export", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}.execute();
+		});
+		
+		JFileChooser dziChooser = new JFileChooser();
+		dziChooser.setFileFilter(new FileNameExtensionFilter("Deep Zoom Images", DoilyDeepZoom.EXTENSION));
+
+		JMenuItem deepZoomItem = new JMenuItem("Export Deep Zoom...");
+		deepZoomItem.addActionListener(e->{
+			if (dziChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION){
+				return;
+			}
+			Path chosen = dziChooser.getSelectedFile().toPath();
+			Path path = chosen.getFileName().toString().endsWith("." + DoilyDeepZoom.EXTENSION) ? chosen
+					: chosen.resolveSibling(chosen.getFileName() + "." + DoilyDeepZoom.EXTENSION);
+			// The largest level is the current zoom level. There can be thousands of tiles, so they are drawn in the background from a snapshot of the strokes
+			DoilyDrawing dd = dp.getDoilyDrawing();
+			StrokeStore strokes = dd.getStrokes().snapshot();
+			int sectorCount = dd.getSectorCount(), level = dp.getZoomLevel();
+			new SwingWorker<Void, Void>(){
+				@Override
+				protected Void doInBackground() throws IOException {
+					DoilyDeepZoom.save(path, strokes, sectorCount, level);
+					return null;
+				}
+
+				@Override
+				protected void done() {
+					try {
+						get();
+					} catch (ExecutionException ex) {
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to export " + path + ": " + ex.getCause().getMessage(), "Export", JOptionPane.ERROR_MESSAGE);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						JOptionPane.showMessageDialog(DoilyFrame.this, "Unable to export " + path + " as it was interrupted", "Export", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}.execute();
+		});
+
+		JFileChooser traceChooser = new JFileChooser();
+		traceChooser.setFileFilter(new FileNameExtensionFilter("Session Traces", SessionRecorder.EXTENSION));
+
+		// Records every mouse event and control used until unticked, so that the session can be replayed by SessionReplay
+		Thread[] traceHook = new Thread[1]; // Finishes the trace if the application exits while recording
+		JCheckBoxMenuItem recordItem = new JCheckBoxMenuItem("Record Session...");
+		recordItem.addActionListener(e->{
+			if (!recordItem.isSelected()){
+				dp.getRecorder().close();
+				dp.setRecorder(null);
+				Runtime.getRuntime().removeShutdownHook(traceHook[0]);
+				return;
+			}
+			if (traceChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION){
+				recordItem.setSelected(false);
+				return;
+			}
+			Path chosen = traceChooser.getSelectedFile().toPath();
+			Path path = chosen.getFileName().toString().endsWith("." + SessionRecorder.EXTENSION) ? chosen
+					: chosen.resolveSibling(chosen.getFileName() + "." + SessionRecorder.EXTENSION);
+			try {
+				SessionRecorder recorder = new SessionRecorder(path, dp);
+				dp.setRecorder(recorder);
+				traceHook[0] = new Thread(recorder::close, "Doily trace shutdown");
+				Runtime.getRuntime().addShutdownHook(traceHook[0]);
+			} catch (IOException ex) {
+				recordItem.setSelected(false);
+				JOptionPane.showMessageDialog(this, "Unable to record to " + path + ": " + ex.getMessage(), "Record Session", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+
+		JMenu fileMenu = new JMenu("File");
+		fileMenu.add(openItem);
+		fileMenu.add(saveItem);
+		fileMenu.add(exportItem);
+		fileMenu.add(deepZoomItem);
+		fileMenu.addSeparator();
+		fileMenu.add(recordItem);
+
+		JCheckBoxMenuItem overlayItem = new JCheckBoxMenuItem("Performance Overlay", dp.isOverlayVisible());
+		overlayItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+		overlayItem.addActionListener(e->dp.setOverlayVisible(overlayItem.isSelected()));
+
+		JMenuItem zoomInItem = new JMenuItem("Zoom In");
+		zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, KeyEvent.CTRL_DOWN_MASK));
+		zoomInItem.addActionListener(e->{
+			record(dp, SessionRecorder.ZOOM, 1);
+			dp.zoom(1, 0, 0);
+		});
+
+		JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+		zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, KeyEvent.CTRL_DOWN_MASK));
+		zoomOutItem.addActionListener(e->{
+			record(dp, SessionRecorder.ZOOM, -1);
+			dp.zoom(-1, 0, 0);
+		});
+
+		JMenuItem resetViewItem = new JMenuItem("Reset View");
+		resetViewItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, KeyEvent.CTRL_DOWN_MASK));
+		resetViewItem.addActionListener(e->{
+			record(dp, SessionRecorder.RESET_VIEW, 0);
+			dp.resetView();
+		});
+
+		JMenu viewMenu = new JMenu("View");
+		viewMenu.add(zoomInItem);
+		viewMenu.add(zoomOutItem);
+		viewMenu.add(resetViewItem);
+		viewMenu.addSeparator();
+		viewMenu.add(overlayItem);
+		JMenuBar menuBar = new JMenuBar();
+		menuBar.add(fileMenu);
+		menuBar.add(viewMenu);
+		return menuBar;
+	}
+
+	/**
+	 * Records a menu item being used, if the session is being recorded
+	 * @param dp DoilyPanel which may be recording
+	 * @param action Type of the action, e.g. SessionRecorder.ZOOM
+	 * @param value Value of the action
+	 */
+	private static void record(DoilyPanel dp, int action, int value){
+		if (dp.getRecorder() != null){
+			dp.getRecorder().action(action, value);
+		}
+	}
+	
+}
@@ -0,0 +1,458 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Measures the hot paths of a DoilyPanel: time from each mouse event to its pixels being painted, painting strokes, full redraws and painting frames.
+ * Times are kept in histograms for JMX (see DoilyMetricsMBean), and the frames and latencies of the last whole second are also kept for the on-canvas overlay.
+ * Each measurement is also committed as a JFR event, so they can be lined up against garbage collection and other JVM activity in a flight recording.
+ * Adding a time to a histogram does not allocate, and the JIT removes the JFR event objects when no recording is running, so the interactive paint path stays free of garbage
+ * @author Dan
+ *
+ */
+public class DoilyMetrics implements DoilyMetricsMBean {
+	public static final String OBJECT_NAME = "DigitalDoily:type=Metrics"; // Name the metrics are registered under with JMX
+	private static final long WINDOW = 1000000000L; // Length of the window shown by the overlay in nanoseconds
+
+	private DoilyPanel panel; // Panel being measured
+	private Histogram eventLatency = new Histogram(); // Time from each mouse event to the end of the next frame
+	private Histogram paintStroke = new Histogram(); // Time painting the newest part of a stroke
+	private Histogram redraw = new Histogram(); // Time from a full redraw being requested to it being shown
+	private Histogram frames = new Histogram(); // Time painting the panel
+	private Histogram frameWindow = new Histogram(), lastFrameWindow = new Histogram(); // Frames in the current and last whole second
+	private Histogram latencyWindow = new Histogram(), lastLatencyWindow = new Histogram(); // Latencies in the current and last whole second
+	private long windowStart = System.nanoTime(); // When the current window started
+	private long pendingEvent = -1; // When the oldest mouse event not yet painted was created (on the nanoTime clock), or -1 if none
+	private long redrawsFromSnapshot = 0, redrawsFromScratch = 0; // Full redraws which started from a snapshot or not
+	private long kernelHitsBase = 0, kernelMissesBase = 0; // Kernel cache counts when the metrics were last reset
+
+	/**
+	 * Creates the metrics for a panel
+	 * @param panel Panel to measure
+	 */
+	public DoilyMetrics(DoilyPanel panel){
+		this.panel = panel;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, replacing any registered by an earlier panel
+	 */
+	public void register(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)){
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e){
+			System.err.println("Unable to register performance metrics with JMX: " + e.getMessage());
+		}
+	}
+
+	/// RECORDING, ONLY CALLED ON THE EDT ///
+
+	/**
+	 * Notes that a mouse event has been handled, so its latency is measured when the next frame is painted.
+	 * If several events are handled before a frame, the latency of the oldest is measured
+	 * @param when Time the event was created, from MouseEvent.getWhen()
+	 */
+	void eventHandled(long when){
+		if (this.pendingEvent < 0){
+			// The event's time is only accurate to a millisecond, so only the time it spent queued is taken from it
+			long queued = Math.max(System.currentTimeMillis() - when, 0);
+			this.pendingEvent = System.nanoTime() - queued*1000000;
+		}
+	}
+
+	/**
+	 * Records painting part of a stroke into the tiles
+	 * @param event JFR event, begun when painting started
+	 * @param nanos Time spent painting
+	 * @param copies Number of copies of the stroke painted (one per sector, or two if reflected)
+	 * @param draft Whether the stroke was painted in draft
+	 */
+	void strokePainted(PaintStrokeEvent event, long nanos, int copies, boolean draft){
+		this.paintStroke.record(nanos);
+		event.copies = copies;
+		event.draft = draft;
+		event.commit();
+	}
+
+	/**
+	 * Records painting a frame of the panel, and the latency of any mouse event handled since the last frame
+	 * @param event JFR event, begun when painting started
+	 * @param start Time painting started, from System.nanoTime()
+	 */
+	synchronized void framePainted(FrameEvent event, long start){
+		long end = System.nanoTime();
+		this.rotateWindow(end);
+		this.frames.record(end - start);
+		this.frameWindow.record(end - start);
+		if (this.pendingEvent >= 0){
+			long latency = end - this.pendingEvent;
+			this.eventLatency.record(latency);
+			this.latencyWindow.record(latency);
+			this.pendingEvent = -1;
+			event.latency = latency;
+		}
+		event.commit();
+	}
+
+	/**
+	 * Records a full redraw being shown
+	 * @param event JFR event, begun when the redraw was requested
+	 * @param nanos Time from the redraw being requested to it being shown
+	 * @param fromSnapshot Whether the redraw started from a snapshot of the tiles
+	 */
+	void redrawFinished(RedrawEvent event, long nanos, boolean fromSnapshot){
+		this.redraw.record(nanos);
+		if (fromSnapshot){
+			this.redrawsFromSnapshot++;
+		} else {
+			this.redrawsFromScratch++;
+		}
+		event.commit();
+	}
+
+	/**
+	 * Starts a new window if the current one has lasted a second. If nothing has been painted for over a second, the last window is empty
+	 */
+	private synchronized void rotateWindow(long now){
+		if (now - this.windowStart < WINDOW){
+			return;
+		}
+		Histogram frameSpare = this.lastFrameWindow, latencySpare = this.lastLatencyWindow;
+		this.lastFrameWindow = this.frameWindow;
+		this.lastLatencyWindow = this.latencyWindow;
+		if (now - this.windowStart >= 2*WINDOW){
+			this.lastFrameWindow.reset();
+			this.lastLatencyWindow.reset();
+		}
+		frameSpare.reset();
+		latencySpare.reset();
+		this.frameWindow = frameSpare;
+		this.latencyWindow = latencySpare;
+		this.windowStart = now;
+	}
+
+	/// OVERLAY ///
+
+	/**
+	 * @return Median frame time in the last whole second, in milliseconds
+	 */
+	public double getRecentFrameP50(){
+		return millis(this.recentFrames().percentile(0.5));
+	}
+
+	/**
+	 * @return 99th percentile frame time in the last whole second, in milliseconds
+	 */
+	public double getRecentFrameP99(){
+		return millis(this.recentFrames().percentile(0.99));
+	}
+
+	/**
+	 * @return Median event latency in the last whole second, in milliseconds
+	 */
+	public synchronized double getRecentLatencyP50(){
+		this.rotateWindow(System.nanoTime());
+		return millis(this.lastLatencyWindow.percentile(0.5));
+	}
+
+	/**
+	 * @return 99th percentile event latency in the last whole second, in milliseconds
+	 */
+	public synchronized double getRecentLatencyP99(){
+		this.rotateWindow(System.nanoTime());
+		return millis(this.lastLatencyWindow.percentile(0.99));
+	}
+
+	/**
+	 * @return Frames painted in the last whole second
+	 */
+	private synchronized Histogram recentFrames(){
+		this.rotateWindow(System.nanoTime());
+		return this.lastFrameWindow;
+	}
+
+	/// MBEAN ///
+
+	@Override
+	public double getEventLatencyP50(){
+		return millis(this.eventLatency.percentile(0.5));
+	}
+
+	@Override
+	public double getEventLatencyP99(){
+		return millis(this.eventLatency.percentile(0.99));
+	}
+
+	@Override
+	public double getPaintStrokeP50(){
+		return millis(this.paintStroke.percentile(0.5));
+	}
+
+	@Override
+	public double getPaintStrokeP99(){
+		return millis(this.paintStroke.percentile(0.99));
+	}
+
+	@Override
+	public double getRedrawP50(){
+		return millis(this.redraw.percentile(0.5));
+	}
+
+	@Override
+	public double getRedrawP99(){
+		return millis(this.redraw.percentile(0.99));
+	}
+
+	@Override
+	public double getFrameP50(){
+		return millis(this.frames.percentile(0.5));
+	}
+
+	@Override
+	public double getFrameP99(){
+		return millis(this.frames.percentile(0.99));
+	}
+
+	@Override
+	public int getFramesPerSecond(){
+		return (int) this.recentFrames().getCount();
+	}
+
+	@Override
+	public long getRedrawCount(){
+		return this.redraw.getCount();
+	}
+
+	@Override
+	public double getCheckpointHitRate(){
+		return rate(this.redrawsFromSnapshot, this.redrawsFromScratch);
+	}
+
+	@Override
+	public double getKernelCacheHitRate(){
+		return rate(WedgeRenderer.getKernelHits() - this.kernelHitsBase, WedgeRenderer.getKernelMisses() - this.kernelMissesBase);
+	}
+
+	@Override
+	public int getStrokeCount(){
+		return this.panel.getDoilyDrawing().getStrokes().size();
+	}
+
+	@Override
+	public double getSimplifyReductionRatio(){
+		return this.panel.getDoilyDrawing().getSimplifier().getReductionRatio();
+	}
+
+	@Override
+	public int getPointCount(){
+		return this.panel.getDoilyDrawing().getStrokes().getTotalPoints();
+	}
+
+	@Override
+	public long getStrokeBytes(){
+		return this.panel.getDoilyDrawing().getStrokes().getByteSize();
+	}
+
+	@Override
+	public long getHistoryBytes(){
+		return this.panel.getDoilyDrawing().getHistoryBytes();
+	}
+
+	@Override
+	public long getCheckpointBytes(){
+		return this.panel.getCheckpointBytes();
+	}
+
+	@Override
+	public long getPyramidBytes(){
+		return this.panel.getPyramidBytes();
+	}
+
+	@Override
+	public int getZoomLevel(){
+		return this.panel.getZoomLevel();
+	}
+
+	@Override
+	public int getDraftTileCount(){
+		return this.panel.getDraftTileCount();
+	}
+
+	@Override
+	public synchronized void reset(){
+		this.eventLatency.reset();
+		this.paintStroke.reset();
+		this.redraw.reset();
+		this.frames.reset();
+		this.redrawsFromSnapshot = 0;
+		this.redrawsFromScratch = 0;
+		this.kernelHitsBase = WedgeRenderer.getKernelHits();
+		this.kernelMissesBase = WedgeRenderer.getKernelMisses();
+	}
+
+	/**
+	 * @return Nanoseconds converted to milliseconds
+	 */
+	private static double millis(long nanos){
+		return nanos/1e6;
+	}
+
+	/**
+	 * @return Fraction of hits out of all lookups, or 0 if there have been none
+	 */
+	private static double rate(long hits, long misses){
+		return (hits + misses == 0) ? 0 : (double) hits/(hits + misses);
+	}
+
+	/**
+	 * Histogram of times in nanoseconds, with four buckets for each power of two so that percentiles are accurate to within a quarter.
+	 * Recording a time only increments a counter, so does not allocate. Synchronised as times are recorded on the EDT but read by JMX
+	 */
+	static class Histogram {
+		private static final int SUB_BUCKETS = 4; // Buckets for each power of two
+
+		private long[] counts = new long[64*SUB_BUCKETS]; // Number of times recorded in each bucket
+		private long count = 0; // Total number of times recorded
+		private long max = 0; // Longest time recorded
+
+		/**
+		 * Adds a time to the histogram
+		 * @param nanos Time in nanoseconds
+		 */
+		synchronized void record(long nanos){
+			long v = Math.max(nanos, 1);
+			this.counts[bucket(v)]++;
+			this.count++;
+			this.max = Math.max(this.max, v);
+		}
+
+		/**
+		 * Estimates a percentile of the times recorded, as the upper bound of the bucket it falls in
+		 * @param p Percentile as a fraction, e.g. 0.99
+		 * @return Time in nanoseconds, or 0 if nothing has been recorded
+		 */
+		synchronized long percentile(double p){
+			long target = Math.max((long) Math.ceil(p*this.count), 1);
+			long seen = 0;
+			for (int b = 0; b < this.counts.length && this.count > 0; b++){
+				seen += this.counts[b];
+				if (seen >= target){
+					return Math.min(upperBound(b), this.max);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return Number of times recorded
+		 */
+		synchronized long getCount(){
+			return this.count;
+		}
+
+		/**
+		 * Removes every time recorded
+		 */
+		synchronized void reset(){
+			Arrays.fill(this.counts, 0);
+			this.count = 0;
+			this.max = 0;
+		}
+
+		/**
+		 * @return Bucket holding a time. Times under 4ns have a bucket each, above that each power of two is split into SUB_BUCKETS
+		 */
+		private static int bucket(long v){
+			int exp = 63 - Long.numberOfLeadingZeros(v);
+			if (exp < 2){
+				return (int) v;
+			}
+			return exp*SUB_BUCKETS + (int) ((v >>> (exp-2)) & (SUB_BUCKETS-1));
+		}
+
+		/**
+		 * @return Time just above the largest that falls in a bucket
+		 */
+		private static long upperBound(int bucket){
+			if (bucket < SUB_BUCKETS){
+				return bucket;
+			}
+			int exp = bucket/SUB_BUCKETS, sub = bucket%SUB_BUCKETS;
+			return (long) (SUB_BUCKETS + sub + 1) << (exp-2);
+		}
+	}
+
+	/// JFR EVENTS ///
+
+	/**
+	 * Painting the newest part of a stroke into the tiles, on every drag event
+	 */
+	@Name("DigitalDoily.PaintStroke")
+	@Label("Paint Stroke")
+	@Category("Digital Doily")
+	@Description("Newest part of a stroke painted into the tile cache in every sector")
+	static class PaintStrokeEvent extends Event {
+		@Label("Copies")
+		int copies;
+
+		@Label("Draft")
+		@Description("Whether the stroke was painted without antialiasing, as painting it at full quality was predicted to be too slow")
+		boolean draft;
+	}
+
+	/**
+	 * Painting the panel, with the latency of the oldest mouse event it shows
+	 */
+	@Name("DigitalDoily.Frame")
+	@Label("Frame")
+	@Category("Digital Doily")
+	@Description("Panel painted to the screen")
+	static class FrameEvent extends Event {
+		@Label("Event Latency")
+		@Description("Time from the oldest mouse event shown by this frame being created to the frame being painted, or 0 if it shows none")
+		@Timespan
+		long latency;
+	}
+
+	/**
+	 * A full redraw, from being requested to being shown
+	 */
+	@Name("DigitalDoily.Redraw")
+	@Label("Redraw")
+	@Category("Digital Doily")
+	@Description("Full redraw of the tile cache in the background, from being requested to being shown")
+	static class RedrawEvent extends Event {
+		@Label("Strokes")
+		int strokes;
+
+		@Label("Replayed Strokes")
+		@Description("Strokes drawn on top of the snapshot the redraw started from")
+		int replayed;
+
+		@Label("Tiles")
+		int tiles;
+
+		@Label("Wedge")
+		@Description("Whether one sector was drawn and copied into the others")
+		boolean wedge;
+
+		@Label("Draft")
+		@Description("Whether the strokes were drawn without antialiasing, to be redrawn at full quality once input is idle")
+		boolean draft;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Management interface of DoilyMetrics, so the performance of a running DoilyPanel can be watched from JConsole or any other JMX client.
+ * Times are in milliseconds, and percentiles are accurate to within about a fifth of their value
+ * @author Dan
+ *
+ */
+public interface DoilyMetricsMBean {
+	/**
+	 * @return Median time from a mouse event being created to its pixels being painted
+	 */
+	double getEventLatencyP50();
+
+	/**
+	 * @return 99th percentile time from a mouse event being created to its pixels being painted
+	 */
+	double getEventLatencyP99();
+
+	/**
+	 * @return Median time to paint the newest part of a stroke into the tiles
+	 */
+	double getPaintStrokeP50();
+
+	/**
+	 * @return 99th percentile time to paint the newest part of a stroke into the tiles
+	 */
+	double getPaintStrokeP99();
+
+	/**
+	 * @return Median time from a full redraw being requested to it being shown
+	 */
+	double getRedrawP50();
+
+	/**
+	 * @return 99th percentile time from a full redraw being requested to it being shown
+	 */
+	double getRedrawP99();
+
+	/**
+	 * @return Median time to paint the panel
+	 */
+	double getFrameP50();
+
+	/**
+	 * @return 99th percentile time to paint the panel
+	 */
+	double getFrameP99();
+
+	/**
+	 * @return Number of times the panel was painted in the last whole second
+	 */
+	int getFramesPerSecond();
+
+	/**
+	 * @return Number of full redraws that have been shown
+	 */
+	long getRedrawCount();
+
+	/**
+	 * @return Fraction of full redraws which started from a snapshot rather than from nothing
+	 */
+	double getCheckpointHitRate();
+
+	/**
+	 * @return Fraction of wedge renders which found their kernel already calculated
+	 */
+	double getKernelCacheHitRate();
+
+	/**
+	 * @return Number of strokes in the current drawing
+	 */
+	int getStrokeCount();
+
+	/**
+	 * @return Fraction of the points drawn with the mouse which stroke simplification has removed, since the application started
+	 */
+	double getSimplifyReductionRatio();
+
+	/**
+	 * @return Number of points in the current drawing
+	 */
+	int getPointCount();
+
+	/**
+	 * @return Bytes used by the strokes of the current drawing
+	 */
+	long getStrokeBytes();
+
+	/**
+	 * @return Bytes used by cleared drawings which are still in memory (not including those moved to disk)
+	 */
+	long getHistoryBytes();
+
+	/**
+	 * @return Bytes used by snapshots of the tile cache
+	 */
+	long getCheckpointBytes();
+
+	/**
+	 * @return Bytes used by tiles kept while out of view
+	 */
+	long getPyramidBytes();
+
+	/**
+	 * @return Zoom level of the view, where level L shows the drawing at a scale of 2^L
+	 */
+	int getZoomLevel();
+
+	/**
+	 * @return Number of tiles drawn in draft (without antialiasing) which are waiting to be redrawn at full quality
+	 */
+	int getDraftTileCount();
+
+	/**
+	 * Clears the histograms and counters
+	 */
+	void reset();
+}
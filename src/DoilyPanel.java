@@ -1,198 +1,960 @@
-import java.awt.BasicStroke;
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
-import java.awt.event.ComponentAdapter;
-import java.awt.event.ComponentEvent;
-import java.awt.image.BufferedImage;
-import java.util.Iterator;
-import javax.swing.JPanel;
-
-/**
- * JPanel that provides the main drawing area. Draws information that is stored in a DoilyDrawing Object
- * @author dmh2g16
- *
- */
-public class DoilyPanel extends JPanel{
-	private DoilyDrawing drawing; // DoilyDrawing which this panel is drawing
-	private int centX, centY; // Centre position of the panel
-	private BufferedImage drawingImg; // Stores a cache of the current image to improve performance
-	
-	/**
-	 * Sets up the panel for drawing by attaching it to a DoilyDrawing and setting up mouse listeners
-	 */
-	public DoilyPanel(){		
-		this.setBackground(Color.BLACK);
-		this.drawing = new DoilyDrawing(this);
-		
-		// Attaches listeners that control drawing
-		DoilyMouseListener listener = new DoilyMouseListener();
-		this.addMouseListener(listener);
-		this.addMouseMotionListener(listener);
-		
-		this.addComponentListener(new ComponentAdapter(){
-			@Override
-			public void componentResized(ComponentEvent e) {
-				redrawImage();
-			}
-		});
-	}
-
-	public void init(){
-		this.drawingImg = new BufferedImage(getWidth(),getHeight(),BufferedImage.TYPE_INT_ARGB);
-	}
-	
-	/**
-	 * Returns the doily drawing used by this panel. Provided so listeners can control this
-	 * @return
-	 */
-	public DoilyDrawing getDoilyDrawing(){
-		return this.drawing;
-	}
-
-	/**
-	 * Forces a complete redraw of the image to the BufferedImage cache
-	 */
-	public void redrawImage(){
-		init();
-		Iterator<DrawStroke> it = this.drawing.getStrokes().iterator();
-		while (it.hasNext()){			
-			this.paintStroke(it.next());
-		}
-		repaint();
-	}
-	
-	/// GRAPHICS FUNCTIONS ///
-
-	/**
-	 * Main drawing function. Draws sector lines if option enabled and a point under the mouse cursor (for preview).
-	 * Then either draws all of the strokes in the stack, or the BufferedImage cache and the most recent stroke (depending on whether repaint is full)
-	 */
-	@Override
-	protected void paintComponent(Graphics g) {
-		super.paintComponent(g);
-
-		this.centX = (this.getWidth()/2);
-		this.centY = (this.getHeight()/2);
-		
-		Graphics2D g2d = (Graphics2D) g;
-		g2d.translate(centX, centY); // Translates so 0,0 is in centre (allows relative drawing)
-		
-		
-		// Only draw the image if it is initialised
-		if (this.drawingImg != null){
-			int height = this.drawingImg.getHeight();
-			int width = this.drawingImg.getWidth();
-			g2d.drawImage(this.drawingImg, -(width/2), -(height/2), null);
-		}	
-		
-		if (this.drawing.drawSectorLines()){
-			this.paintSectorLines(g2d);
-		}
-			
-		// If the mouse is in the panel then paint it
-		if (this.drawing.getMouseStroke()!=null){
-			DrawStroke mouseStroke = this.drawing.getMouseStroke();
-			g2d.setColor(mouseStroke.getColour());
-			g2d.setStroke(new BasicStroke(mouseStroke.getDiameter(),BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND));
-			g2d.draw(mouseStroke);
-		}
-	}
-	
-	/**
-	 * Paints a stroke object onto the graphics context
-	 * @param g2d Graphics context to draw this to
-	 * @param ds DrawStroke object to draw
-	 */
-	private void paintStroke(DrawStroke ds){
-		Graphics2D g2d = this.drawingImg.createGraphics();
-		g2d.translate(getWidth()/2, getHeight()/2);
-		g2d.setColor(ds.getColour());
-		g2d.setStroke(new BasicStroke(ds.getDiameter(),BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND));
-		for (int i = 0; i < this.drawing.getSectorCount(); i++){
-			g2d.draw(ds); // Draws the Path2D in every sector
-			if (ds.isReflected()){ // Reflects the drawing context if point needs to be reflected
-				g2d.scale(-1, 1);
-				g2d.draw(ds);
-				g2d.scale(-1, 1); // Reflects back for next stroke to be drawn correctly
-			}
-			g2d.rotate(2*Math.PI/this.drawing.getSectorCount());
-		}
-	}
-
-	/**
-	 * Paints the sector lines denoting the edge of sectors
-	 * @param g2d Graphics object to do drawing
-	 */
-	private void paintSectorLines(Graphics2D g2d){
-		g2d.setColor(Color.WHITE);
-		for (int i = 0; i < this.drawing.getSectorCount(); i++){
-			// Draws to the edge of whichever size component is larger
-			if (getHeight() > getWidth()){
-				g2d.drawLine(0, 0, 0, -(getHeight()/2));
-			} else {
-				g2d.drawLine(0, 0, 0, -(getWidth()/2));
-			}
-			g2d.rotate(2*Math.PI/this.drawing.getSectorCount());
-		}
-	}
-	
-	/// PANEL LISTENER ///
-
-	/**
-	 * Listener that detects when mouse clicked or dragged to control points in drawing
-	 * @author dan
-	 */
-	class DoilyMouseListener extends MouseAdapter{
-		int pointCount;
-	
-		/**
-		 * If the mouse is dragged, add a point to the stroke. If the stroke is long enough, break it
-		 */
-		@Override
-		public void mouseDragged(MouseEvent e) {
-			drawing.newPoint(e.getX()-centX, e.getY()-centY, false);
-			paintStroke(drawing.getStrokes().peek());
-			if (pointCount++ >=DigitalDoily.MAX_STROKE_SIZE){
-				drawing.newPoint(e.getX()-centX, e.getY()-centY, true);
-				pointCount=1;
-			}
-			
-			repaint();
-		}
-
-		/**
-		 * When the mouse is pressed down, remove the cursor point from the screen, add a new entry to the drawing stack
-		 * and add the first point to the stroke. Re-enables the undo button if previously disabled
-		 */
-		@Override
-		public void mousePressed(MouseEvent e) {
-			drawing.clearMouseStroke();
-			drawing.newPoint(e.getX()-centX,e.getY()-centY, true);
-			paintStroke(drawing.getStrokes().peek());
-			pointCount=1;
-			repaint();
-		}
-
-		/**
-		 * When the mouse is moved inside the panel, move the mouseStroke so the preview point follows the mouse
-		 */
-		@Override
-		public void mouseMoved(MouseEvent e) {
-			drawing.setMouseStroke(e.getX()-centX, e.getY()-centY);
-			repaint();
-		}
-
-		/**
-		 * When the mouse leaves the panel remove the preview point
-		 */
-		@Override
-		public void mouseExited(MouseEvent e) {
-			drawing.clearMouseStroke();
-			repaint();
-		}
-
-	}
-}
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * JPanel that provides the main drawing area. Draws information that is stored in a DoilyDrawing Object.
+ * The view can be panned by dragging with the right (or middle) mouse button and zoomed with the mouse wheel, in steps of a power of two so that tiles
+ * are always drawn at the scale they are shown
+ * @author dmh2g16
+ *
+ */
+public class DoilyPanel extends JPanel{
+	private static final int OVERLAY_REFRESH_MS = 500; // How often the performance overlay is repainted while visible
+	private static final Rectangle OVERLAY_AREA = new Rectangle(0, 0, 360, 82); // Area of the panel covered by the performance overlay
+	private static final int INPUT_CAPACITY = 1024; // Drag samples which can wait for the next frame (a 1000Hz mouse gives under 20 a frame)
+	private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 180); // Translucent so the drawing can still be seen behind the overlay
+
+	private DoilyDrawing drawing; // DoilyDrawing which this panel is drawing
+	private int centX, centY; // Centre position of the panel
+	private int panX, panY; // Position of the centre of the panel in pixels at the current zoom level, relative to the centre of the drawing
+	private double scale = 1; // Pixels per unit of the drawing at the current zoom level
+	private TileCache tiles = new TileCache(); // Stores a cache of the current image, split into tiles, to improve performance
+	private TilePyramid pyramid = new TilePyramid(DigitalDoily.PYRAMID_BUDGET); // Tiles which have been drawn but are not visible, at every zoom level
+	private HashSet<Long> stale = new HashSet<Long>(); // Tiles in the cache which are blank or out of date, waiting to be drawn in the background
+	private StrokeIndex index = new StrokeIndex(); // Which strokes overlap each tile, so redrawing a tile only looks at those strokes
+	private CheckpointStore checkpoints = new CheckpointStore(DigitalDoily.CHECKPOINT_BUDGET); // Snapshots of the tile cache used to speed up full redraws
+	private StrokeStore checkpointedStrokes; // Store of strokes which the snapshots were taken from
+	private long paintCost = 0; // Nanoseconds spent painting strokes since the last snapshot was taken
+	private RedrawPipeline pipeline = new RedrawPipeline(this, DigitalDoily.PROGRESSIVE_REDRAW); // Performs full redraws in the background
+	private boolean dragging = false; // Whether a stroke is currently being drawn
+	private boolean panning = false; // Whether the view is currently being dragged
+	private int panFromX, panFromY; // Position of the mouse when the view was last moved by dragging
+	private DoilyMetrics metrics = new DoilyMetrics(this); // Measures the time taken by painting, redraws and mouse events
+	private boolean overlayVisible = false; // Whether the performance overlay is drawn over the panel
+	private Timer overlayTimer = new Timer(OVERLAY_REFRESH_MS, e -> repaint(OVERLAY_AREA)); // Keeps the overlay up to date while it is visible
+	private DoilyMouseListener mouseListener = new DoilyMouseListener(); // Records drag samples and draws them
+	private InputRing samples = new InputRing(INPUT_CAPACITY); // Drag samples waiting to be drawn in the next frame
+	private Timer frameTimer = new Timer(frameInterval(), e -> mouseListener.flush()); // Draws the waiting samples once per frame while dragging
+	private int mouseX, mouseY; // Position of the cursor preview point, relative to the centre of the panel
+	private SessionRecorder recorder; // Records the session so it can be replayed, or null if it is not being recorded
+	private QualityGovernor quality = new QualityGovernor(); // Decides whether strokes are drawn in draft, from how long drawing them has been taking
+	private HashSet<Long> drafted = new HashSet<Long>(); // Tiles in the cache containing strokes drawn in draft, waiting to be redrawn at full quality
+	private Timer refineTimer = new Timer(DigitalDoily.REFINE_IDLE_MS, e -> refine()); // Redraws the draft tiles once input has been idle
+	private boolean draftFrame = false; // Whether the stroke is being painted in draft this frame
+
+	// Reused on every drag event so that drawing does not allocate
+	private Path2D.Float tail = new Path2D.Float(); // Newest points of the stroke being drawn
+	private float[] unpaintedX = new float[64], unpaintedY = new float[64]; // Points not yet painted when a long stroke is split, kept while it is simplified
+	private Rectangle2D.Double shapeBounds = new Rectangle2D.Double(); // Bounds of the shape being painted
+	private Rectangle2D[] copies = new Rectangle2D[0]; // Bounds of each copy of the shape being painted (may be longer than the number of copies)
+	private Rectangle changed = new Rectangle(); // Area of the panel changed by the last shape painted
+	private Rectangle frameArea = new Rectangle(); // Area of the panel changed by the samples drawn in a frame
+	private Rectangle cursorArea = new Rectangle(); // Area of the panel covered by the cursor preview point
+	private Color penColour = null; // Colour of the last shape painted
+	
+	/**
+	 * Sets up the panel for drawing by attaching it to a DoilyDrawing and setting up mouse listeners
+	 */
+	public DoilyPanel(){		
+		this.setBackground(Color.BLACK);
+		this.drawing = new DoilyDrawing(this);
+		
+		// Attaches listeners that control drawing
+		this.addMouseListener(this.mouseListener);
+		this.addMouseMotionListener(this.mouseListener);
+		this.addMouseWheelListener(this.mouseListener);
+		
+		this.setOverlayVisible(DigitalDoily.START_SHOW_OVERLAY);
+		this.refineTimer.setRepeats(false);
+
+		this.addComponentListener(new ComponentAdapter(){
+			@Override
+			public void componentResized(ComponentEvent e) {
+				init(); // Only the newly exposed tiles need drawing
+			}
+		});
+	}
+
+	/**
+	 * Sets up the tile cache for the current size of the panel, drawing the strokes into any tiles which have just become visible
+	 */
+	public void init(){
+		this.updateView();
+	}
+
+	/**
+	 * Moves the view, e.g. when it is dragged. Tiles which come into view are taken from the pyramid or drawn in the background
+	 * @param dx Pixels to move the view right
+	 * @param dy Pixels to move the view down
+	 */
+	public void pan(int dx, int dy){
+		this.panX += dx;
+		this.panY += dy;
+		this.updateView();
+		repaint();
+	}
+
+	/**
+	 * Zooms in or out by a number of steps, each doubling or halving the scale, keeping the same point of the drawing under the mouse
+	 * @param steps Number of steps to zoom in (negative to zoom out)
+	 * @param x X co-ordinate to zoom around, relative to the centre of the panel
+	 * @param y Y co-ordinate to zoom around, relative to the centre of the panel
+	 */
+	public void zoom(int steps, int x, int y){
+		int level = Math.max(DigitalDoily.MIN_ZOOM_LEVEL, Math.min(DigitalDoily.MAX_ZOOM_LEVEL, this.tiles.getLevel() + steps));
+		double factor = TileCache.scale(level - this.tiles.getLevel());
+		this.setView(level, (int) Math.round((x + this.panX)*factor) - x, (int) Math.round((y + this.panY)*factor) - y);
+	}
+
+	/**
+	 * Returns to the view the panel starts with, at the original scale with the centre of the drawing in the centre of the panel
+	 */
+	public void resetView(){
+		this.setView(0, 0, 0);
+	}
+
+	/**
+	 * @return Zoom level of the view, where level L shows the drawing at a scale of 2^L
+	 */
+	public int getZoomLevel(){
+		return this.tiles.getLevel();
+	}
+
+	/**
+	 * @return Position of the centre of the panel in pixels at the current zoom level, relative to the centre of the drawing
+	 */
+	int getPanX(){
+		return this.panX;
+	}
+
+	/**
+	 * @return Position of the centre of the panel in pixels at the current zoom level, relative to the centre of the drawing
+	 */
+	int getPanY(){
+		return this.panY;
+	}
+
+	/**
+	 * Sets the recorder which the controls report to, so that they are recorded along with the panel's mouse events
+	 * @param recorder Recorder of the session, or null to stop recording
+	 */
+	public void setRecorder(SessionRecorder recorder){
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Returns the recorder of the session, if it is being recorded, so that the controls can report to it
+	 * @return Recorder of the session, or null if it is not being recorded
+	 */
+	public SessionRecorder getRecorder(){
+		return this.recorder;
+	}
+
+	/**
+	 * Changes the zoom level and position of the view. Tiles of the old level are kept in the pyramid, and are scaled to preview the tiles
+	 * of the new level which are not in the pyramid until they have been drawn in the background. Ignored while a stroke is being drawn
+	 * @param level New zoom level
+	 * @param panX New position of the centre of the panel in pixels at the new level
+	 * @param panY New position of the centre of the panel in pixels at the new level
+	 */
+	private void setView(int level, int panX, int panY){
+		if (this.dragging){
+			return;
+		}
+		if (level == this.tiles.getLevel()){
+			this.pan(panX - this.panX, panY - this.panY);
+			return;
+		}
+		int previousLevel = this.tiles.getLevel();
+		Map<Long, BufferedImage> previous = this.tiles.setLevel(level);
+		this.keep(previous, previousLevel);
+		this.checkpoints.clear(); // Snapshots are of tiles at the old level
+		this.scale = TileCache.scale(level);
+		this.panX = panX;
+		this.panY = panY;
+		this.fill(this.tiles.setVisible(this.viewBounds(), new HashMap<Long, BufferedImage>()), previous, previousLevel);
+		repaint();
+	}
+
+	/**
+	 * Updates the tile cache for the area currently in view, after the panel has been resized or panned
+	 */
+	private void updateView(){
+		HashMap<Long, BufferedImage> hidden = new HashMap<Long, BufferedImage>();
+		Collection<Long> exposed = this.tiles.setVisible(this.viewBounds(), hidden);
+		this.keep(hidden, this.tiles.getLevel());
+		this.fill(exposed, null, 0);
+	}
+
+	/**
+	 * @return Area of the drawing in view, in pixels at the current zoom level
+	 */
+	private Rectangle viewBounds(){
+		return new Rectangle(this.panX - getWidth()/2, this.panY - getHeight()/2, getWidth(), getHeight());
+	}
+
+	/**
+	 * Keeps tiles which have left the cache in the pyramid, unless they were still waiting to be drawn or drawn in draft
+	 * @param removed Images of the tiles, indexed by key
+	 * @param level Zoom level of the tiles
+	 */
+	private void keep(Map<Long, BufferedImage> removed, int level){
+		int count = this.drawing.getStrokes().size();
+		if (this.dragging){
+			count--; // The stroke being drawn is only partly in the tiles, so it is painted again when they are taken back
+		}
+		for (Map.Entry<Long, BufferedImage> tile : removed.entrySet()){
+			boolean stale = this.stale.remove(tile.getKey());
+			if (!this.drafted.remove(tile.getKey()) && !stale){
+				this.pyramid.put(level, tile.getKey(), tile.getValue(), count);
+			}
+		}
+	}
+
+	/**
+	 * Fills in tiles which have just been added to the cache. Tiles kept in the pyramid are used straight away, painting any strokes drawn since over them,
+	 * and the rest are drawn in the background
+	 * @param exposed Keys of the new tiles
+	 * @param previous Tiles of the previous zoom level, scaled into the new tiles as a preview until they are drawn (may be null)
+	 * @param previousLevel Zoom level of the previous tiles
+	 */
+	private void fill(Collection<Long> exposed, Map<Long, BufferedImage> previous, int previousLevel){
+		int count = this.drawing.getStrokes().size();
+		for (long key : exposed){
+			TilePyramid.Entry kept = this.pyramid.take(this.tiles.getLevel(), key);
+			if (kept != null){
+				this.tiles.replace(Collections.singletonMap(key, kept.getImage()), false);
+				this.paintStrokes(Collections.singletonList(key), kept.getStrokeCount(), count);
+			} else if (count > 0){ // Tiles of an empty drawing are already finished
+				if (previous != null){
+					this.preview(key, previous, previousLevel);
+				}
+				this.stale.add(key);
+			}
+		}
+		if (!this.stale.isEmpty() && !exposed.isEmpty()){
+			this.request(false, true);
+		}
+	}
+
+	/**
+	 * Scales the tiles of another zoom level into a tile, so something is shown while it is drawn
+	 * @param key Key of the tile to draw into
+	 * @param previous Tiles of the other level, indexed by key
+	 * @param previousLevel Zoom level of the other tiles
+	 */
+	private void preview(long key, Map<Long, BufferedImage> previous, int previousLevel){
+		Rectangle2D area = TileCache.getArea(key, this.tiles.getLevel());
+		int size = (int) (TileCache.TILE_SIZE/TileCache.scale(previousLevel)); // Size of the other tiles in units of the drawing (exact while the levels are within 8 of 0)
+		Graphics2D g2d = this.tiles.createGraphics(key);
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		for (Map.Entry<Long, BufferedImage> tile : previous.entrySet()){
+			int x = TileCache.tileX(tile.getKey())*size, y = TileCache.tileY(tile.getKey())*size;
+			if (area.intersects(x, y, size, size)){
+				g2d.drawImage(tile.getValue(), x, y, size, size, null);
+			}
+		}
+		g2d.dispose();
+	}
+	
+	/**
+	 * Returns the doily drawing used by this panel. Provided so listeners can control this
+	 * @return
+	 */
+	public DoilyDrawing getDoilyDrawing(){
+		return this.drawing;
+	}
+
+	/**
+	 * Draws any drag samples still waiting for the next frame straight away. Must be called on the EDT
+	 */
+	void flushInput(){
+		this.mouseListener.flush();
+	}
+
+	/**
+	 * Finds the time between frames of the screen, so that drag samples are drawn at the rate the screen can show them
+	 * @return Milliseconds between frames, using DigitalDoily.DEFAULT_REFRESH_RATE if the rate is unknown (e.g. headless)
+	 */
+	private static int frameInterval(){
+		int rate = DisplayMode.REFRESH_RATE_UNKNOWN;
+		if (!GraphicsEnvironment.isHeadless()){
+			rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+		}
+		return 1000/(rate > 0 ? rate : DigitalDoily.DEFAULT_REFRESH_RATE);
+	}
+
+	/**
+	 * Returns the metrics measuring this panel, e.g. so they can be registered with JMX
+	 * @return Metrics of the panel
+	 */
+	public DoilyMetrics getMetrics(){
+		return this.metrics;
+	}
+
+	/**
+	 * Shows or hides the performance overlay, which shows the frame rate, frame times and event latency in the corner of the panel
+	 * @param visible Whether the overlay should be shown
+	 */
+	public void setOverlayVisible(boolean visible){
+		this.overlayVisible = visible;
+		if (visible){
+			this.overlayTimer.start();
+		} else {
+			this.overlayTimer.stop();
+		}
+		repaint(OVERLAY_AREA);
+	}
+
+	/**
+	 * @return Whether the performance overlay is shown
+	 */
+	public boolean isOverlayVisible(){
+		return this.overlayVisible;
+	}
+
+	/**
+	 * @return Approximate bytes used by snapshots of the tile cache
+	 */
+	long getCheckpointBytes(){
+		return this.checkpoints.getBytesUsed();
+	}
+
+	/**
+	 * @return Approximate bytes used by tiles kept in the pyramid
+	 */
+	long getPyramidBytes(){
+		return this.pyramid.getBytesUsed();
+	}
+
+	/**
+	 * @return Number of tiles drawn in draft which are waiting to be redrawn at full quality
+	 */
+	int getDraftTileCount(){
+		return this.drafted.size();
+	}
+
+	/**
+	 * Returns the governor deciding whether strokes are drawn in draft, so the pipeline can report how long redraws took
+	 * @return Quality governor of the panel
+	 */
+	QualityGovernor getQualityGovernor(){
+		return this.quality;
+	}
+
+	/**
+	 * Requests a complete redraw of the image. The redraw happens in the background, starting from the nearest snapshot if there is one
+	 * so only the strokes drawn after the snapshot need to be replayed. The old tiles are shown until the new ones are published
+	 */
+	public void redrawImage(){
+		StrokeStore strokes = this.validateCheckpoints();
+		this.checkpoints.truncate(strokes.size()); // Snapshots containing undone strokes are no longer valid
+		this.pyramid.clear(); // Kept tiles may contain undone strokes, or be drawn with a different number of sectors
+		this.stale.addAll(this.tiles.getKeys());
+		this.request(true, true);
+	}
+
+	/**
+	 * Requests every stale tile is drawn in the background
+	 * @param replace Whether the tiles are out of date, rather than blank, so the old ones are shown until all of the new ones are drawn
+	 * @param allowDraft Whether the tiles can be drawn in draft if drawing them at full quality is predicted to be too slow, or rendered with a wedge
+	 * (false when refining draft tiles, which must be drawn at full quality)
+	 */
+	private void request(boolean replace, boolean allowDraft){
+		StrokeStore strokes = this.validateCheckpoints();
+
+		// The stroke being drawn is still changing, so it is left out and painted once the redraw is published
+		int count = this.dragging ? strokes.size()-1 : strokes.size();
+		int sectorCount = this.drawing.getSectorCount();
+		CheckpointStore.Checkpoint cp = this.checkpoints.nearest(count, sectorCount);
+		int replayed = count - (cp == null ? 0 : cp.getStrokeCount());
+		boolean draft = allowDraft && this.quality.draftRedraw(replayed, sectorCount, this.stale.size());
+		this.index.sync(strokes, sectorCount); // Also notices any strokes removed by undo
+		this.pipeline.request(strokes.snapshot(), count, sectorCount, this.tiles.getLevel(), this.index.snapshot(),
+				new ArrayList<Long>(this.stale), cp, replace, draft, allowDraft);
+	}
+
+	/**
+	 * Replaces tiles in the cache with ones redrawn by the pipeline, taking a snapshot if they finish a redraw at full quality. Must be called on the EDT
+	 * @param redrawn Redrawn tiles, indexed by key
+	 * @param strokeCount Number of strokes drawn into the redrawn tiles. Any strokes drawn since are painted over them
+	 * @param level Zoom level the tiles were drawn at, as they are ignored if the view has been zoomed since
+	 * @param draft Whether the tiles were drawn in draft, so are redrawn at full quality once input is idle
+	 */
+	void publishTiles(Map<Long, BufferedImage> redrawn, int strokeCount, int level, boolean draft){
+		if (level != this.tiles.getLevel()){
+			return;
+		}
+		Collection<Long> replaced = this.tiles.replace(redrawn, draft);
+		this.stale.removeAll(replaced);
+		if (draft){
+			this.drafted.addAll(replaced);
+			this.refineTimer.restart();
+		} else {
+			this.drafted.removeAll(replaced);
+		}
+		this.paintStrokes(replaced, strokeCount, this.drawing.getStrokes().size());
+		if (!this.dragging){
+			this.checkpoint(); // Only taken once every tile is finished, which may be the first chance since strokes were drawn in draft
+		}
+		repaint();
+	}
+
+	/**
+	 * Redraws the tiles drawn in draft at full quality in the background, once input has been idle for DigitalDoily.REFINE_IDLE_MS.
+	 * Waits again if a stroke is being drawn, the view is being dragged or a redraw has not been published yet. The draft tiles are shown until each is redrawn
+	 */
+	private void refine(){
+		if (this.drafted.isEmpty()){
+			return;
+		}
+		if (this.dragging || this.panning || this.pipeline.isPending()){
+			this.refineTimer.restart();
+			return;
+		}
+		this.refineNow();
+	}
+
+	/**
+	 * Redraws the tiles drawn in draft at full quality in the background straight away, e.g. so a replayed session finishes at full quality. Must be called on the EDT
+	 */
+	void refineNow(){
+		this.refineTimer.stop();
+		if (this.drafted.isEmpty()){
+			return;
+		}
+		this.stale.addAll(this.drafted);
+		this.drafted.clear();
+		this.request(false, false);
+	}
+
+	/**
+	 * Returns whether a redraw has been requested but not yet published. Must be called on the EDT
+	 * @return True if the tiles are out of date
+	 */
+	public boolean isRedrawPending(){
+		return this.pipeline.isPending();
+	}
+
+	/**
+	 * Paints a range of the strokes in the drawing into the given tiles only, at full quality
+	 * @param keys Keys of the tiles to draw into
+	 * @param from Index of the first stroke to paint
+	 * @param to Index after the last stroke to paint
+	 */
+	private void paintStrokes(Collection<Long> keys, int from, int to){
+		if (from >= to || keys.isEmpty()){
+			return;
+		}
+		long start = System.nanoTime();
+		int sectorCount = this.drawing.getSectorCount();
+		StrokeStore strokes = this.drawing.getStrokes();
+		StrokeIndex overlapping = this.index;
+		overlapping.sync(strokes, sectorCount);
+
+		// The EDT waits for all of the tiles, so the strokes and index cannot change during the redraw and are read directly.
+		// Snapshots are only taken for the pipeline, as they make the next undo or simplification copy the arrays
+		int level = this.tiles.getLevel();
+		DoilyRenderer.renderTiles(keys, key -> DoilyRenderer.paintTile(this.tiles.createGraphics(key), key, level, strokes, from, to, overlapping, sectorCount, false, null));
+		this.paintCost += System.nanoTime() - start;
+	}
+
+	/**
+	 * Discards the snapshots if they were taken from a different store of strokes (i.e. the drawing has been cleared since)
+	 * @return The current store of strokes
+	 */
+	private StrokeStore validateCheckpoints(){
+		StrokeStore strokes = this.drawing.getStrokes();
+		if (strokes != this.checkpointedStrokes){
+			this.checkpoints.clear();
+			this.checkpointedStrokes = strokes;
+		}
+		return strokes;
+	}
+
+	/**
+	 * Takes a snapshot of the tile cache if enough strokes have been drawn, or enough time spent painting, since the previous one.
+	 * Must only be called when the tiles contain exactly the strokes currently in the drawing
+	 */
+	private void checkpoint(){
+		if (this.pipeline.isPending() || !this.stale.isEmpty() || !this.drafted.isEmpty()){ // Tiles are out of date, or in draft, until they are redrawn
+			return;
+		}
+		StrokeStore strokes = this.validateCheckpoints();
+		CheckpointStore.Checkpoint cp = this.checkpoints.nearest(strokes.size(), this.drawing.getSectorCount());
+		int since = strokes.size() - (cp == null ? 0 : cp.getStrokeCount());
+		if (since >= DigitalDoily.CHECKPOINT_INTERVAL || (since > 0 && this.paintCost >= DigitalDoily.CHECKPOINT_COST_MS*1000000)){
+			this.checkpoints.add(strokes.size(), this.drawing.getSectorCount(), this.tiles);
+			this.paintCost = 0;
+		}
+	}
+	
+	/// GRAPHICS FUNCTIONS ///
+
+	/**
+	 * Main drawing function. Draws sector lines if option enabled and a point under the mouse cursor (for preview).
+	 * Then draws the tile cache, which already contains every stroke
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		DoilyMetrics.FrameEvent event = new DoilyMetrics.FrameEvent();
+		event.begin();
+		long start = System.nanoTime();
+		super.paintComponent(g);
+
+		this.centX = (this.getWidth()/2);
+		this.centY = (this.getHeight()/2);
+		
+		Graphics2D g2d = (Graphics2D) g;
+		g2d.translate(centX - panX, centY - panY); // Translates so 0,0 is the centre of the drawing (allows relative drawing)
+		
+		
+		this.tiles.paint(g2d); // Only tiles inside the repainted area are drawn
+		
+		if (this.drawing.drawSectorLines()){
+			this.paintSectorLines(g2d);
+		}
+			
+		// If the mouse is in the panel then paint it
+		if (this.drawing.getMouseStroke()!=null){
+			DrawStroke mouseStroke = this.drawing.getMouseStroke();
+			g2d.setColor(this.drawing.getColour()); // Same colour as the mouse stroke, without creating a Color
+			g2d.setStroke(DoilyRenderer.pen(mouseStroke.getDiameter()));
+			DoilyRenderer.setQuality(g2d, false);
+			g2d.scale(this.scale, this.scale);
+			g2d.draw(mouseStroke);
+			g2d.scale(1/this.scale, 1/this.scale); // Exact, as the scale is a power of two
+		}
+
+		if (this.overlayVisible){
+			g2d.translate(-(centX - panX), -(centY - panY));
+			this.paintOverlay(g2d);
+		}
+		this.metrics.framePainted(event, start);
+	}
+
+	/**
+	 * Paints the performance overlay in the top left corner, showing the last whole second. Only allocates (for the text) while it is visible
+	 * @param g2d Graphics context of the panel, not translated
+	 */
+	private void paintOverlay(Graphics2D g2d){
+		StrokeStore strokes = this.drawing.getStrokes();
+		StrokeSimplifier simplifier = this.drawing.getSimplifier();
+		String[] lines = {
+			String.format("%d fps   frame p50 %.1f ms   p99 %.1f ms", this.metrics.getFramesPerSecond(), this.metrics.getRecentFrameP50(), this.metrics.getRecentFrameP99()),
+			String.format("event to pixel p50 %.1f ms   p99 %.1f ms", this.metrics.getRecentLatencyP50(), this.metrics.getRecentLatencyP99()),
+			String.format("%d strokes   %d points   %d redraws   %d draft tiles", strokes.size(), strokes.getTotalPoints(), this.metrics.getRedrawCount(), this.drafted.size()),
+			String.format("simplified away %.1f%% of %d points drawn", 100*simplifier.getReductionRatio(), simplifier.getPointsIn())
+		};
+		g2d.setColor(OVERLAY_BACKGROUND);
+		g2d.fill(OVERLAY_AREA);
+		g2d.setColor(Color.GREEN);
+		FontMetrics fm = g2d.getFontMetrics();
+		for (int i = 0; i < lines.length; i++){
+			g2d.drawString(lines[i], OVERLAY_AREA.x + 6, OVERLAY_AREA.y + 6 + fm.getAscent() + i*fm.getHeight());
+		}
+	}
+	
+	/**
+	 * Creates a copy of the drawing as it appears on the panel (including sector lines if visible, but not the cursor preview point).
+	 * Built directly from the tile cache, so no strokes need to be redrawn. Must be called on the EDT
+	 * @return Opaque image the same size as the panel
+	 */
+	public BufferedImage snapshotImage(){
+		BufferedImage img = new BufferedImage(Math.max(getWidth(), 1), Math.max(getHeight(), 1), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(getBackground());
+		g2d.fillRect(0, 0, img.getWidth(), img.getHeight());
+		g2d.translate(getWidth()/2 - this.panX, getHeight()/2 - this.panY);
+		this.tiles.paint(g2d);
+		if (this.drawing.drawSectorLines()){
+			this.paintSectorLines(g2d);
+		}
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * Paints a whole stroke into the tile cache, e.g. the first point of a new stroke
+	 * @param strokes Store containing the stroke
+	 * @param stroke Index of the stroke
+	 * @return Area of the panel which has been changed by the stroke (reused by the next call)
+	 */
+	private Rectangle paintStroke(StrokeStore strokes, int stroke){
+		DrawStroke ds = strokes.get(stroke);
+		return this.paintSectors(ds, ds.getBounds2D(), strokes, stroke);
+	}
+
+	/**
+	 * Paints only the newest points of the last stroke, as a single line through them, so the cost of each frame depends on how far the mouse has moved
+	 * rather than the length of the stroke. The round caps and joins overlap the part already painted, giving the same result as painting the whole stroke
+	 * @param strokes Store containing the stroke (provides colour, diameter and reflection)
+	 * @param from Index in the store of the last point already painted, which the new points are joined to
+	 * @return Area of the panel which has been changed by the new points (reused by the next call)
+	 */
+	private Rectangle paintTail(StrokeStore strokes, int from){
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		this.tail.reset(); // Keeps its arrays, so only allocates if more points are painted at once than ever before
+		for (int i = from; i < strokes.getTotalPoints(); i++){
+			float x = strokes.getX(i), y = strokes.getY(i);
+			if (i == from){
+				this.tail.moveTo(x, y);
+			} else {
+				this.tail.lineTo(x, y);
+			}
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		this.shapeBounds.setFrameFromDiagonal(minX, minY, maxX, maxY);
+		return this.paintSectors(this.tail, this.shapeBounds, strokes, strokes.size()-1);
+	}
+
+	/**
+	 * Paints a shape into the tile cache once in every sector, reflecting it if required, in draft if the frame is being painted in draft.
+	 * Each copy of the shape is only drawn into the tiles that it overlaps, using the tiles' own graphics contexts, so nothing is allocated
+	 * (other than when a tile is first drawn into in draft)
+	 * @param s Shape to draw (either a whole stroke or a segment of one)
+	 * @param bounds Bounds of the shape, not including the width of the pen
+	 * @param strokes Store containing the stroke the shape belongs to
+	 * @param stroke Index of the stroke, providing the colour, diameter and reflection of the shape
+	 * @return Area of the panel covered by every copy of the shape, so only it needs repainting (reused by the next call)
+	 */
+	private Rectangle paintSectors(Shape s, Rectangle2D bounds, StrokeStore strokes, int stroke){
+		DoilyMetrics.PaintStrokeEvent event = new DoilyMetrics.PaintStrokeEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int sectorCount = this.drawing.getSectorCount();
+		int diameter = strokes.getDiameter(stroke);
+		boolean reflect = strokes.isReflected(stroke);
+		int copyCount = sectorCount*(reflect ? 2 : 1);
+		if (this.copies.length < copyCount){
+			this.copies = new Rectangle2D[copyCount];
+			for (int c = 0; c < copyCount; c++){
+				this.copies[c] = new Rectangle2D.Double();
+			}
+		}
+		DoilyRenderer.copyBounds(bounds, diameter, reflect, sectorCount, this.copies);
+		if (this.penColour == null || this.penColour.getRGB() != strokes.getColour(stroke)){
+			this.penColour = new Color(strokes.getColour(stroke), true);
+		}
+
+		for (TileCache.Tile tile : this.tiles.getTiles()){
+			boolean penSet = false; // The pen is only changed if a copy of the shape lands in this tile
+			for (int c = 0; c < copyCount; c++){
+				if (this.copies[c].intersects(tile.area)){
+					Graphics2D g2d = tile.getGraphics(this.draftFrame); // Also resets the transform left by the previous copy
+					if (!penSet){
+						g2d.setColor(this.penColour);
+						g2d.setStroke(DoilyRenderer.pen(diameter));
+						penSet = true;
+						if (this.draftFrame && !tile.draft){
+							tile.draft = true;
+							this.drafted.add(tile.key);
+						}
+					}
+					DoilyRenderer.transformCopy(g2d, c, reflect, sectorCount);
+					g2d.draw(s);
+				}
+			}
+		}
+
+		// Finds the area of the panel covered by every copy
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int c = 0; c < copyCount; c++){
+			minX = Math.min(minX, this.copies[c].getMinX());
+			minY = Math.min(minY, this.copies[c].getMinY());
+			maxX = Math.max(maxX, this.copies[c].getMaxX());
+			maxY = Math.max(maxY, this.copies[c].getMaxY());
+		}
+		int x = (int) Math.floor(minX*this.scale), y = (int) Math.floor(minY*this.scale);
+		this.changed.setBounds(x - this.panX + getWidth()/2, y - this.panY + getHeight()/2,
+				(int) Math.ceil(maxX*this.scale) - x, (int) Math.ceil(maxY*this.scale) - y);
+		long cost = System.nanoTime() - start;
+		this.paintCost += cost;
+		this.metrics.strokePainted(event, cost, copyCount, this.draftFrame);
+		return this.changed;
+	}
+
+	/**
+	 * Calculates the area of the panel covered by the cursor preview point
+	 * @return Rectangle in panel co-ordinates (reused by the next call), or null if there is no preview point
+	 */
+	private Rectangle cursorBounds(){
+		DrawStroke mouseStroke = this.drawing.getMouseStroke();
+		if (mouseStroke == null){
+			return null;
+		}
+		int pad = (int) Math.ceil(mouseStroke.getDiameter()*this.scale/2) + 1;
+		this.cursorArea.setBounds(this.mouseX - pad + getWidth()/2, this.mouseY - pad + getHeight()/2, 2*pad, 2*pad);
+		return this.cursorArea;
+	}
+
+	/**
+	 * Repaints only the area given, or nothing if no area is given
+	 * @param area Area of the panel to repaint (may be null)
+	 */
+	private void repaintArea(Rectangle area){
+		if (area != null){
+			repaint(area);
+		}
+	}
+
+	/**
+	 * Paints the sector lines denoting the edge of sectors
+	 * @param g2d Graphics object to do drawing
+	 */
+	private void paintSectorLines(Graphics2D g2d){
+		// Draws to the furthest corner of the panel from the centre of the drawing
+		int length = (int) Math.ceil(Math.hypot(Math.abs(this.panX) + getWidth()/2, Math.abs(this.panY) + getHeight()/2));
+		DoilyRenderer.paintSectorLines(g2d, this.drawing.getSectorCount(), length);
+	}
+
+	/**
+	 * Converts a position in the panel to the drawing
+	 * @param x Position relative to the centre of the panel
+	 * @return Position in units of the drawing, relative to its centre
+	 */
+	private double toDrawingX(int x){
+		return (x + this.panX)/this.scale;
+	}
+
+	/**
+	 * Converts a position in the panel to the drawing
+	 * @param y Position relative to the centre of the panel
+	 * @return Position in units of the drawing, relative to its centre
+	 */
+	private double toDrawingY(int y){
+		return (y + this.panY)/this.scale;
+	}
+	
+	/// PANEL LISTENER ///
+
+	/**
+	 * Listener that detects when mouse clicked or dragged to control points in drawing, and moves and zooms the view.
+	 * Drag events are only recorded as they arrive, and are drawn together once per frame by flush(), as a fast mouse sends far more events than the screen
+	 * can show. Every sample is still added to the stroke
+	 * @author dan
+	 */
+	class DoilyMouseListener extends MouseAdapter{
+		int pointCount;
+	
+		/**
+		 * If the mouse is dragged, record the sample to be drawn in the next frame (or straight away if frames are not paced), or move the view if it is being dragged
+		 */
+		@Override
+		public void mouseDragged(MouseEvent e) {
+			if (panning){
+				pan(panFromX - e.getX(), panFromY - e.getY());
+				panFromX = e.getX();
+				panFromY = e.getY();
+				metrics.eventHandled(e.getWhen());
+				return;
+			}
+			while (!samples.offer(e.getX()-centX, e.getY()-centY, e.getWhen())){
+				this.flush(); // The EDT has fallen far behind, so catches up now rather than losing the sample
+			}
+			if (!DigitalDoily.FRAME_PACED_INPUT){
+				this.flush();
+			} else if (!frameTimer.isRunning()){
+				frameTimer.start();
+			}
+		}
+
+		/**
+		 * Adds every waiting sample to the stroke and paints the new points in a single pass, breaking the stroke if it is long enough.
+		 * The frame is painted in draft if the quality governor predicts it would take too long at full quality, and the time it took is reported back.
+		 * Stops the frame timer if there was nothing waiting, so it only runs while the mouse is being dragged
+		 */
+		void flush(){
+			if (samples.isEmpty()){
+				frameTimer.stop();
+				return;
+			}
+			metrics.eventHandled(samples.getWhen()); // Latency is measured from the oldest sample in the frame
+			int copyCount = drawing.getSectorCount()*(drawing.isReflected() ? 2 : 1);
+			draftFrame = quality.draftFrame(copyCount);
+			long start = System.nanoTime();
+			StrokeStore strokes = drawing.getStrokes();
+			int from = strokes.getTotalPoints()-1; // Last point already painted
+			boolean painted = false;
+			while (!samples.isEmpty()){
+				int x = samples.getX(), y = samples.getY();
+				samples.remove();
+				if (!drawing.newPoint(toDrawingX(x), toDrawingY(y), false, scale)){
+					continue; // Point was too close to the previous one to be stored
+				}
+				if (pointCount++ >=DigitalDoily.MAX_STROKE_SIZE){
+					this.addToFrame(paintSplit(strokes, from), painted);
+					painted = true;
+					drawing.newPoint(toDrawingX(x), toDrawingY(y), true, scale);
+					pointCount=1;
+					from = strokes.getTotalPoints()-1;
+				}
+			}
+			if (strokes.getTotalPoints()-1 > from){
+				this.addToFrame(paintTail(strokes, from), painted);
+				painted = true;
+			}
+			if (painted){
+				quality.framePainted(System.nanoTime() - start, copyCount, draftFrame);
+				repaint(frameArea); // Only the area covered by the new points in each sector needs repainting
+			}
+		}
+
+		/**
+		 * Finishes a stroke which has reached DigitalDoily.MAX_STROKE_SIZE, simplifying it before its newest points are painted so that the tiles hold
+		 * the same points a redraw would. Simplifying keeps the points in order, so the newest ones are found by matching the points which had not been painted
+		 * back from the end of the stroke
+		 * @param strokes Store containing the stroke
+		 * @param from Index in the store of the last point already painted
+		 * @return Area of the panel which has been changed by the new points
+		 */
+		private Rectangle paintSplit(StrokeStore strokes, int from){
+			int unpainted = strokes.getTotalPoints() - from - 1;
+			if (unpainted > unpaintedX.length){
+				unpaintedX = new float[Math.max(unpainted, unpaintedX.length*2)];
+				unpaintedY = new float[unpaintedX.length];
+			}
+			for (int i = 0; i < unpainted; i++){
+				unpaintedX[i] = strokes.getX(from + 1 + i);
+				unpaintedY[i] = strokes.getY(from + 1 + i);
+			}
+			drawing.endStroke(scale);
+
+			int first = strokes.getStart(strokes.size()-1), point = strokes.getTotalPoints()-1;
+			for (int u = unpainted-1; point > first; point--, u--){
+				while (u >= 0 && (strokes.getX(point) != unpaintedX[u] || strokes.getY(point) != unpaintedY[u])){
+					u--;
+				}
+				if (u < 0){
+					break; // Reached a point which had already been painted
+				}
+			}
+			return paintTail(strokes, point);
+		}
+
+		/**
+		 * Adds an area to the area changed in this frame
+		 * @param extend False if this is the first area of the frame, replacing the area of the previous frame
+		 */
+		private void addToFrame(Rectangle area, boolean extend){
+			if (extend){
+				frameArea.add(area);
+			} else {
+				frameArea.setBounds(area);
+			}
+		}
+
+		/**
+		 * When the mouse is pressed down, remove the cursor point from the screen, add a new entry to the drawing stack
+		 * and add the first point to the stroke. Re-enables the undo button if previously disabled.
+		 * Any button other than the left one starts dragging the view instead
+		 */
+		@Override
+		public void mousePressed(MouseEvent e) {
+			if (!SwingUtilities.isLeftMouseButton(e)){
+				if (!dragging){
+					panning = true;
+					panFromX = e.getX();
+					panFromY = e.getY();
+				}
+				return;
+			}
+			if (panning){
+				return;
+			}
+			this.flush(); // Any samples from the previous stroke belong to it
+			repaintArea(cursorBounds());
+			drawing.clearMouseStroke();
+			checkpoint(); // Tiles currently contain every stroke, so a snapshot can be taken
+			drawing.newPoint(toDrawingX(e.getX()-centX), toDrawingY(e.getY()-centY), true, scale);
+			dragging = true;
+			refineTimer.stop(); // Input is no longer idle
+			draftFrame = quality.draftFrame(drawing.getSectorCount()*(drawing.isReflected() ? 2 : 1));
+			StrokeStore strokes = drawing.getStrokes();
+			Rectangle changed = paintStroke(strokes, strokes.size()-1);
+			pointCount=1;
+			repaint(changed);
+			metrics.eventHandled(e.getWhen());
+		}
+
+		/**
+		 * When the mouse is released the stroke is complete, so can be simplified. Any tiles drawn in draft are refined once input has been idle for long enough
+		 */
+		@Override
+		public void mouseReleased(MouseEvent e) {
+			if (!SwingUtilities.isLeftMouseButton(e)){
+				panning = false;
+			} else if (dragging){
+				this.flush(); // The rest of the stroke is drawn before it is simplified
+				drawing.endStroke(scale); // Simplifies the stroke now it is finished
+				dragging = false;
+			}
+			if (!drafted.isEmpty()){
+				refineTimer.restart();
+			}
+		}
+
+		/**
+		 * When the mouse is moved inside the panel, move the mouseStroke so the preview point follows the mouse
+		 */
+		@Override
+		public void mouseMoved(MouseEvent e) {
+			repaintArea(cursorBounds()); // Erases the old preview point
+			mouseX = e.getX()-centX;
+			mouseY = e.getY()-centY;
+			drawing.setMouseStroke(toDrawingX(mouseX), toDrawingY(mouseY));
+			repaintArea(cursorBounds());
+			metrics.eventHandled(e.getWhen());
+		}
+
+		/**
+		 * When the mouse wheel is turned, zoom in (away from the user) or out around the mouse
+		 */
+		@Override
+		public void mouseWheelMoved(MouseWheelEvent e) {
+			repaintArea(cursorBounds());
+			zoom(-e.getWheelRotation(), e.getX()-centX, e.getY()-centY);
+			if (!dragging){ // The preview point is hidden while a stroke is drawn
+				drawing.setMouseStroke(toDrawingX(mouseX), toDrawingY(mouseY)); // The same point of the panel is now a different point of the drawing
+			}
+			metrics.eventHandled(e.getWhen());
+		}
+
+		/**
+		 * When the mouse leaves the panel remove the preview point
+		 */
+		@Override
+		public void mouseExited(MouseEvent e) {
+			repaintArea(cursorBounds());
+			drawing.clearMouseStroke();
+		}
+
+	}
+}
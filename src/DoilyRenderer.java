@@ -0,0 +1,301 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Draws strokes in every sector of a doily, independently of any Swing component, so drawings can be rendered headless at any resolution.
+ * Used by DoilyPanel and RedrawPipeline to draw into the tile cache, and by DoilyExport to render saved drawings to images.
+ * Every method works relative to the centre of the drawing, so graphics contexts must be translated so that 0,0 is the centre
+ * @author Dan
+ *
+ */
+public class DoilyRenderer {
+	private static final ForkJoinPool RENDER_POOL = new ForkJoinPool(); // Threads used to draw tiles in parallel (one per core)
+	private static final BasicStroke[] PENS = new BasicStroke[128]; // Pen for each diameter a stroke can have, created when first used (BasicStroke is immutable so can be shared)
+
+	/**
+	 * Renders a whole drawing into a new image, centred in the image
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param scale Pixels per unit of the drawing (1 is the size it was drawn on screen)
+	 * @param sectorLines Whether to draw the sector lines over the drawing
+	 * @return Opaque image of the drawing on a black background
+	 */
+	public static BufferedImage render(StrokeStore strokes, int sectorCount, int width, int height, double scale, boolean sectorLines){
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(Color.BLACK);
+		g2d.fillRect(0, 0, width, height);
+		g2d.translate(width/2, height/2);
+		g2d.scale(scale, scale);
+		setQuality(g2d, false);
+		paintStrokes(g2d, strokes, 0, strokes.size(), sectorCount); // Not rendered with a wedge, as its nearest pixel copies are only good enough for the screen
+		if (sectorLines){
+			paintSectorLines(g2d, sectorCount, (int) Math.ceil(Math.max(width, height)/2/scale));
+		}
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * Calculates the largest scale at which every copy of every stroke fits inside an image, when centred
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors the strokes are drawn in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return Scale to pass to render(), or 1 if the drawing is empty
+	 */
+	public static double fitScale(StrokeStore strokes, int sectorCount, int width, int height){
+		double extentX = 0, extentY = 0; // Furthest any copy reaches from the centre
+		for (int i = 0; i < strokes.size(); i++){
+			DrawStroke ds = strokes.get(i);
+			for (Rectangle2D copy : copyBounds(ds, ds.getDiameter(), ds.isReflected(), sectorCount)){
+				extentX = Math.max(extentX, Math.max(-copy.getMinX(), copy.getMaxX()));
+				extentY = Math.max(extentY, Math.max(-copy.getMinY(), copy.getMaxY()));
+			}
+		}
+		if (extentX == 0 || extentY == 0){
+			return 1;
+		}
+		return Math.min(width/2/extentX, height/2/extentY);
+	}
+
+	/**
+	 * Paints a range of strokes in every sector, skipping copies which lie outside the clip of the graphics context
+	 * @param g2d Graphics context to draw to, translated so that 0,0 is the centre of the drawing
+	 * @param strokes Store containing the strokes
+	 * @param from Index of the first stroke to draw
+	 * @param to Index after the last stroke to draw
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 */
+	public static void paintStrokes(Graphics2D g2d, StrokeStore strokes, int from, int to, int sectorCount){
+		Rectangle clip = g2d.getClipBounds();
+		for (int i = from; i < to; i++){
+			DrawStroke ds = strokes.get(i);
+			Rectangle2D[] copies = copyBounds(ds, ds.getDiameter(), ds.isReflected(), sectorCount);
+			boolean penSet = false; // The pen is only changed if a copy of this stroke is visible
+			for (int c = 0; c < copies.length; c++){
+				if (clip == null || copies[c].intersects(clip)){
+					if (!penSet){
+						g2d.setColor(ds.getColour());
+						g2d.setStroke(pen(ds.getDiameter()));
+						penSet = true;
+					}
+					drawCopy(g2d, ds, c, ds.isReflected(), sectorCount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the round pen used to draw strokes of a diameter, so that one is not created for every stroke drawn
+	 * @param diameter Diameter of the pen (0 to 127, the range a StrokeStore can hold)
+	 * @return Pen with round caps and joins
+	 */
+	static BasicStroke pen(int diameter){
+		BasicStroke pen = PENS[diameter];
+		if (pen == null){
+			pen = new BasicStroke(diameter,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
+			PENS[diameter] = pen; // Threads may race to create the same pen, which does no harm
+		}
+		return pen;
+	}
+
+	/**
+	 * Sets the quality strokes are drawn at. Full quality is antialiased with exact stroke geometry, while draft leaves both off (as Java2D does by default),
+	 * which is several times quicker for the round pens used by strokes
+	 * @param g2d Graphics context to change
+	 * @param draft Whether to draw in draft, rather than at full quality. Everything is drawn in draft if DigitalDoily.ANTIALIAS is off
+	 */
+	static void setQuality(Graphics2D g2d, boolean draft){
+		boolean full = DigitalDoily.ANTIALIAS && !draft;
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, full ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+		g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, full ? RenderingHints.VALUE_STROKE_PURE : RenderingHints.VALUE_STROKE_DEFAULT);
+	}
+
+	/**
+	 * Runs an action for each tile in parallel. Each tile is independent so no synchronisation is needed between them
+	 * @param keys Keys of the tiles
+	 * @param action Action to run for each tile (typically drawing strokes into it)
+	 */
+	static void renderTiles(Collection<Long> keys, Consumer<Long> action){
+		Long[] tileKeys = keys.toArray(new Long[0]);
+		if (tileKeys.length > 0){
+			RENDER_POOL.invoke(new TileRenderTask(tileKeys, 0, tileKeys.length, action));
+		}
+	}
+
+	/**
+	 * Paints a set of strokes into a single tile, only drawing the strokes which the index says overlap the tile, and only the copies of them which do
+	 * @param g2d Graphics context of the tile, translated so that 0,0 is the centre of the drawing and scaled to its level. Disposed once finished
+	 * @param key Key of the tile to draw into
+	 * @param level Zoom level of the tile
+	 * @param strokes Store containing the strokes to draw
+	 * @param from Index of the first stroke to draw
+	 * @param to Index after the last stroke to draw
+	 * @param index Spatial index of the strokes, synced with the same sector count
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param draft Whether to draw the strokes in draft rather than at full quality
+	 * @param cancelled Checked between strokes so that a redraw which is no longer needed can stop early (may be null)
+	 */
+	static void paintTile(Graphics2D g2d, long key, int level, StrokeStore strokes, int from, int to, StrokeIndex index, int sectorCount, boolean draft,
+			BooleanSupplier cancelled){
+		setQuality(g2d, draft);
+		Rectangle2D tile = TileCache.getArea(key, level);
+		int[] overlapping = (level == 0) ? index.query(key, from, to) : index.query(tile, from, to);
+		for (int n = 0; n < overlapping.length; n++){
+			if (cancelled != null && (n & 63) == 0 && cancelled.getAsBoolean()){
+				break;
+			}
+			DrawStroke ds = strokes.get(overlapping[n]);
+			Rectangle2D[] copies = index.copyBounds(overlapping[n]);
+			boolean penSet = false; // The pen is only changed if a copy of this stroke lands in the tile
+			for (int c = 0; c < copies.length; c++){
+				if (copies[c].intersects(tile)){
+					if (!penSet){
+						g2d.setColor(ds.getColour());
+						g2d.setStroke(pen(ds.getDiameter()));
+						penSet = true;
+					}
+					drawCopy(g2d, ds, c, ds.isReflected(), sectorCount);
+				}
+			}
+		}
+		g2d.dispose();
+	}
+
+	/**
+	 * Draws a single copy of a shape, rotated into its sector and reflected if it is the reflected copy
+	 * @param g2d Graphics context to draw to, translated so that 0,0 is the centre of the drawing
+	 * @param s Shape to draw
+	 * @param copy Index of the copy, in the same order as copyBounds
+	 * @param reflect Whether the shape is reflected in each sector
+	 * @param sectorCount Number of sectors in the drawing
+	 */
+	static void drawCopy(Graphics2D g2d, Shape s, int copy, boolean reflect, int sectorCount){
+		AffineTransform base = g2d.getTransform();
+		transformCopy(g2d, copy, reflect, sectorCount);
+		g2d.draw(s);
+		g2d.setTransform(base);
+	}
+
+	/**
+	 * Rotates (and reflects) a graphics context into the sector of a copy, without restoring it afterwards. Used instead of drawCopy where the
+	 * caller resets the transform itself, as saving it allocates
+	 * @param g2d Graphics context to transform, translated so that 0,0 is the centre of the drawing
+	 * @param copy Index of the copy, in the same order as copyBounds
+	 * @param reflect Whether the shape is reflected in each sector
+	 * @param sectorCount Number of sectors in the drawing
+	 */
+	static void transformCopy(Graphics2D g2d, int copy, boolean reflect, int sectorCount){
+		int copiesPerSector = reflect ? 2 : 1;
+		g2d.rotate((copy/copiesPerSector)*2*Math.PI/sectorCount); // Rotates into the sector of this copy
+		if (copy % copiesPerSector == 1){ // Reflects the drawing context if this is the reflected copy
+			g2d.scale(-1, 1);
+		}
+	}
+
+	/**
+	 * Calculates the bounds of each copy of a shape once it has been drawn in every sector (and reflected if required)
+	 * @param s Shape that has been drawn, relative to the centre of the drawing
+	 * @param diameter Diameter of the pen used to draw the shape
+	 * @param reflect Whether the shape was also drawn reflected in each sector
+	 * @param sectorCount Number of sectors the shape is drawn in
+	 * @return Bounds of each copy relative to the centre, with the reflected copy of a sector following the normal copy
+	 */
+	static Rectangle2D[] copyBounds(Shape s, int diameter, boolean reflect, int sectorCount){
+		Rectangle2D.Double[] copies = new Rectangle2D.Double[sectorCount*(reflect ? 2 : 1)];
+		for (int c = 0; c < copies.length; c++){
+			copies[c] = new Rectangle2D.Double();
+		}
+		copyBounds(s.getBounds2D(), diameter, reflect, sectorCount, copies);
+		return copies;
+	}
+
+	/**
+	 * Calculates the bounds of each copy of an area into existing rectangles, so that nothing is allocated on the interactive paint path
+	 * @param b Bounds of the shape that has been drawn, relative to the centre of the drawing
+	 * @param diameter Diameter of the pen used to draw the shape
+	 * @param reflect Whether the shape was also drawn reflected in each sector
+	 * @param sectorCount Number of sectors the shape is drawn in
+	 * @param copies Set to the bounds of each copy, in the same order as copyBounds(). Must hold at least one rectangle per copy
+	 */
+	static void copyBounds(Rectangle2D b, int diameter, boolean reflect, int sectorCount, Rectangle2D[] copies){
+		double pad = diameter/2.0 + 1; // Half the pen width plus a pixel for rounding
+		double x0 = b.getMinX()-pad, y0 = b.getMinY()-pad, x1 = b.getMaxX()+pad, y1 = b.getMaxY()+pad;
+		int copiesPerSector = reflect ? 2 : 1;
+
+		// Rotates each corner of the bounding box into every sector, matching the transforms used by drawCopy
+		for (int c = 0; c < sectorCount*copiesPerSector; c++){
+			double angle = (c/copiesPerSector)*2*Math.PI/sectorCount;
+			double cos = Math.cos(angle), sin = Math.sin(angle);
+			int m = (c % copiesPerSector == 1) ? -1 : 1; // m = -1 is the reflected copy
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			for (int i = 0; i < 4; i++){
+				double cx = (i == 0 || i == 3) ? x0 : x1, cy = (i < 2) ? y0 : y1;
+				double x = m*cx*cos - cy*sin;
+				double y = m*cx*sin + cy*cos;
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+			}
+			copies[c].setRect(minX, minY, maxX-minX, maxY-minY);
+		}
+	}
+
+	/**
+	 * Paints the sector lines denoting the edge of sectors, leaving the graphics context as it was
+	 * @param g2d Graphics object to do drawing, translated so that 0,0 is the centre of the drawing
+	 * @param sectorCount Number of sectors in the drawing
+	 * @param length Length of each line from the centre
+	 */
+	static void paintSectorLines(Graphics2D g2d, int sectorCount, int length){
+		g2d.setColor(Color.WHITE);
+		for (int i = 0; i < sectorCount; i++){
+			// End of the line is found directly rather than rotating the context, so the context does not need saving and restoring
+			double angle = i*2*Math.PI/sectorCount;
+			g2d.drawLine(0, 0, (int) Math.round(length*Math.sin(angle)), (int) Math.round(-length*Math.cos(angle)));
+		}
+	}
+
+	/**
+	 * Task that runs an action for a range of tiles, splitting the range in half until each task handles a single tile
+	 */
+	static class TileRenderTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		private Long[] keys; // Keys of all the tiles
+		private int lo, hi; // Range of keys handled by this task
+		private Consumer<Long> action; // Action to run for each tile
+
+		TileRenderTask(Long[] keys, int lo, int hi, Consumer<Long> action){
+			this.keys = keys;
+			this.lo = lo;
+			this.hi = hi;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute(){
+			if (hi - lo == 1){
+				action.accept(keys[lo]);
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new TileRenderTask(keys, lo, mid, action), new TileRenderTask(keys, mid, hi, action));
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes drawings as SVG images, which stay sharp at any size and can be opened by browsers and vector editors.
+ * The points of each stroke are written once, as a path in the first sector, and the other copies are use elements which rotate (and reflect) it,
+ * so the file grows with the number of points rather than the number of points times the number of sectors. Strokes are streamed straight from the store
+ * in the order they were drawn, so overlapping copies are layered the same as on screen
+ * @author Dan
+ *
+ */
+public class DoilySvg {
+	public static final String EXTENSION = "svg"; // File extension used for SVG images
+	private static final int PRECISION = 100; // Co-ordinates are written to the nearest 1/100th of a pixel
+
+	/**
+	 * Saves a drawing as an SVG image, replacing anything already there
+	 * @param path File to write to
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param scale Pixels per unit of the drawing (1 is the size it was drawn on screen)
+	 * @param sectorLines Whether to draw the sector lines over the drawing
+	 */
+	public static void save(Path path, StrokeStore strokes, int sectorCount, int width, int height, double scale, boolean sectorLines) throws IOException{
+		save(path, strokes, sectorCount, width, height, width/2, height/2, scale, sectorLines);
+	}
+
+	/**
+	 * Saves part of a drawing as an SVG image, e.g. the area shown in a panned view, replacing anything already there
+	 * @param path File to write to
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param originX X position in the image of the centre of the drawing
+	 * @param originY Y position in the image of the centre of the drawing
+	 * @param scale Pixels per unit of the drawing (1 is the size it was drawn on screen)
+	 * @param sectorLines Whether to draw the sector lines over the drawing
+	 */
+	public static void save(Path path, StrokeStore strokes, int sectorCount, int width, int height, double originX, double originY, double scale,
+			boolean sectorLines) throws IOException{
+		try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)){
+			write(out, strokes, sectorCount, width, height, originX, originY, scale, sectorLines);
+		}
+	}
+
+	/**
+	 * Writes a drawing as an SVG image, centred in the image on a black background to match DoilyRenderer.render()
+	 * @param out Writer to write to (not closed afterwards)
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param scale Pixels per unit of the drawing (1 is the size it was drawn on screen)
+	 * @param sectorLines Whether to draw the sector lines over the drawing
+	 */
+	public static void write(Writer out, StrokeStore strokes, int sectorCount, int width, int height, double scale, boolean sectorLines) throws IOException{
+		write(out, strokes, sectorCount, width, height, width/2, height/2, scale, sectorLines);
+	}
+
+	/**
+	 * Writes part of a drawing as an SVG image on a black background, with the centre of the drawing at the given position in the image
+	 * @param out Writer to write to (not closed afterwards)
+	 * @param strokes Strokes of the drawing
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param originX X position in the image of the centre of the drawing
+	 * @param originY Y position in the image of the centre of the drawing
+	 * @param scale Pixels per unit of the drawing (1 is the size it was drawn on screen)
+	 * @param sectorLines Whether to draw the sector lines over the drawing
+	 */
+	public static void write(Writer out, StrokeStore strokes, int sectorCount, int width, int height, double originX, double originY, double scale,
+			boolean sectorLines) throws IOException{
+		StringBuilder sb = new StringBuilder(); // Reused for each element, so each stroke is written to the writer in one go
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"").append(width)
+				.append("\" height=\"").append(height).append("\" viewBox=\"0 0 ").append(width).append(' ').append(height).append("\">\n");
+		sb.append("<rect width=\"100%\" height=\"100%\" fill=\"#000000\"/>\n");
+		sb.append("<g transform=\"translate(");
+		appendNumber(sb, originX);
+		sb.append(' ');
+		appendNumber(sb, originY);
+		sb.append(") scale(").append(scale).append(")\" fill=\"none\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+		out.write(sb.toString());
+
+		for (int s = 0; s < strokes.size(); s++){
+			sb.setLength(0);
+			appendStroke(sb, strokes, s, sectorCount);
+			out.write(sb.toString());
+		}
+
+		sb.setLength(0);
+		if (sectorLines){
+			appendSectorLines(sb, sectorCount, Math.hypot(Math.max(originX, width - originX), Math.max(originY, height - originY))/scale); // To the furthest corner
+		}
+		sb.append("</g>\n</svg>\n");
+		out.write(sb.toString());
+		out.flush();
+	}
+
+	/**
+	 * Appends a stroke and all of its copies. Copies of the same stroke can be drawn in any order without changing the result, so rather than a use element
+	 * per copy, each level of nested groups doubles the copies of the level inside it by adding a rotated use of that level. The copies left over when
+	 * the sector count is not a power of two are added by a rotated use of the level with that many copies, so only around log2(sectorCount) elements are
+	 * written per stroke
+	 * @param sb Builder to append to
+	 * @param strokes Store containing the stroke
+	 * @param stroke Index of the stroke
+	 * @param sectorCount Number of sectors to draw the stroke in
+	 */
+	private static void appendStroke(StringBuilder sb, StrokeStore strokes, int stroke, int sectorCount){
+		int levels = 31 - Integer.numberOfLeadingZeros(sectorCount); // Level j holds the copies in the first 2^j sectors
+		for (int j = levels; j > 0; j--){
+			sb.append("<g id=\"s").append(stroke).append('-').append(j).append("\">");
+		}
+
+		// Level 0 is the stroke in the first sector, and its reflection
+		if (strokes.isReflected(stroke)){
+			sb.append("<g id=\"s").append(stroke).append("-0\">");
+			appendPath(sb, strokes, stroke, "s" + stroke);
+			sb.append("<use xlink:href=\"#s").append(stroke).append("\" transform=\"scale(-1 1)\"/></g>\n");
+		} else {
+			appendPath(sb, strokes, stroke, "s" + stroke + "-0");
+		}
+		for (int j = 1; j <= levels; j++){
+			appendRotatedUse(sb, stroke, j-1, 1 << (j-1), sectorCount);
+			sb.append("</g>\n");
+		}
+
+		int sector = 1 << levels; // First sector not yet drawn
+		for (int j = levels-1; j >= 0; j--){
+			if ((sectorCount & (1 << j)) != 0){
+				appendRotatedUse(sb, stroke, j, sector, sectorCount);
+				sector += 1 << j;
+			}
+		}
+	}
+
+	/**
+	 * Appends a stroke as a path in the first sector
+	 * @param sb Builder to append to
+	 * @param strokes Store containing the stroke
+	 * @param stroke Index of the stroke
+	 * @param id ID given to the path
+	 */
+	private static void appendPath(StringBuilder sb, StrokeStore strokes, int stroke, String id){
+		int argb = strokes.getColour(stroke);
+		sb.append("<path id=\"").append(id).append("\" stroke=\"#");
+		String rgb = Integer.toHexString(argb & 0xFFFFFF);
+		for (int i = rgb.length(); i < 6; i++){
+			sb.append('0');
+		}
+		sb.append(rgb).append("\" stroke-width=\"").append(strokes.getDiameter(stroke));
+		int alpha = argb >>> 24;
+		if (alpha != 0xFF){
+			sb.append("\" stroke-opacity=\"");
+			appendNumber(sb, alpha/255.0);
+		}
+
+		// The first point is absolute and the rest are relative to the point before, which keeps most of them short
+		sb.append("\" d=\"M");
+		int start = strokes.getStart(stroke), count = strokes.getPointCount(stroke);
+		long lastX = Math.round(strokes.getX(start)*PRECISION), lastY = Math.round(strokes.getY(start)*PRECISION);
+		appendFixed(sb, lastX);
+		sb.append(' ');
+		appendFixed(sb, lastY);
+		sb.append('l');
+		if (count == 1){
+			sb.append("0 0"); // A zero length line is drawn as a dot by the round caps, as a move on its own draws nothing
+		}
+		for (int i = start+1; i < start+count; i++){
+			long x = Math.round(strokes.getX(i)*PRECISION), y = Math.round(strokes.getY(i)*PRECISION);
+			if (i > start+1){
+				sb.append(' ');
+			}
+			appendFixed(sb, x - lastX);
+			sb.append(' ');
+			appendFixed(sb, y - lastY);
+			lastX = x;
+			lastY = y;
+		}
+		sb.append("\"/>\n");
+	}
+
+	/**
+	 * Appends a use element which rotates a level of a stroke's copies forward by a number of sectors
+	 * @param sb Builder to append to
+	 * @param stroke Index of the stroke
+	 * @param level Level to use
+	 * @param sectors Number of sectors to rotate by
+	 * @param sectorCount Number of sectors in the drawing
+	 */
+	private static void appendRotatedUse(StringBuilder sb, int stroke, int level, int sectors, int sectorCount){
+		sb.append("<use xlink:href=\"#s").append(stroke).append('-').append(level).append("\" transform=\"rotate(");
+		appendNumber(sb, sectors*360.0/sectorCount);
+		sb.append(")\"/>\n");
+	}
+
+	/**
+	 * Appends the sector lines, one pixel wide however the drawing is scaled
+	 * @param sb Builder to append to
+	 * @param sectorCount Number of sectors in the drawing
+	 * @param length Length of each line from the centre
+	 */
+	private static void appendSectorLines(StringBuilder sb, int sectorCount, double length){
+		sb.append("<g stroke=\"#ffffff\" stroke-width=\"1\">\n");
+		for (int i = 0; i < sectorCount; i++){
+			double angle = i*2*Math.PI/sectorCount;
+			sb.append("<line x2=\"");
+			appendNumber(sb, length*Math.sin(angle));
+			sb.append("\" y2=\"");
+			appendNumber(sb, -length*Math.cos(angle));
+			sb.append("\" vector-effect=\"non-scaling-stroke\"/>\n");
+		}
+		sb.append("</g>\n");
+	}
+
+	/**
+	 * Appends a number to the nearest 1/PRECISION, without a trailing fraction if it is whole
+	 */
+	private static void appendNumber(StringBuilder sb, double value){
+		appendFixed(sb, Math.round(value*PRECISION));
+	}
+
+	/**
+	 * Appends a number given as a whole number of 1/PRECISION units, without creating a string for it. Trailing zeros of the fraction are left off
+	 */
+	private static void appendFixed(StringBuilder sb, long units){
+		if (units < 0){
+			sb.append('-');
+			units = -units;
+		}
+		sb.append(units/PRECISION);
+		long fraction = units % PRECISION;
+		if (fraction != 0){
+			sb.append('.');
+			for (int digit = PRECISION/10; digit > 0 && fraction != 0; digit /= 10){
+				sb.append((char) ('0' + fraction/digit));
+				fraction %= digit;
+			}
+		}
+	}
+}
@@ -1,65 +1,213 @@
-import java.awt.Color;
-import java.awt.geom.Path2D;
-
-/**
- * Represents an individual stroke on the panel i.e. where the mouse is moved whilst pressed.
- * Extends Path2D to allow easy drawing into the image
- * @author Dan
- *
- */
-public class DrawStroke extends Path2D.Double{
-	private int diameter; // Diameter of the stroke
-	private Color colour; // Colour of the stroke
-	private boolean reflect; // Whether the stroke needs to be reflected in each sector
-	
-	/**
-	 * Creates a new instance with the properties for that particular stroke. Initial point not required
-	 * @param diameter Diameter of the stroke
-	 * @param colour Colour of the stroke
-	 * @param reflect Whether the stroke needs to be reflected in each sector
-	 */
-	public DrawStroke(int diameter, Color colour, boolean reflect){
-		super();
-		this.diameter = diameter;
-		this.colour = colour;
-		this.reflect = reflect;
-	}
-	
-	/**
-	 * Creates a new instance with the properties for that particular stroke. Initial point is required
-	 * @param x Initial x co-ordinate
-	 * @param y Initial y co-ordinate
-	 * @param diameter Diameter of stroke
-	 * @param colour Colour of stroke
-	 */
-	public DrawStroke(double x, double y,int diameter, Color colour){
-		super();
-		this.diameter = diameter;
-		this.colour = colour;
-		this.moveTo(x, y);
-	}
-	
-	/**
-	 * Retrieves the colour for the stroke
-	 * @return Colour of stroke
-	 */
-	public Color getColour(){
-		return this.colour;
-	}
-	
-	/**
-	 * Retrieves the diameter of the stroke
-	 * @return Diameter of stroke
-	 */
-	public int getDiameter(){
-		return this.diameter;
-	}	
-	
-	/**
-	 * Returns whether the points need reflecting
-	 * @return Boolean value where true means they need reflecting
-	 */
-	public boolean isReflected(){
-		return this.reflect;
-	}
-}
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Represents an individual stroke on the panel i.e. where the mouse is moved whilst pressed.
+ * The points are held in a StrokeStore, this is only a lightweight view of one stroke in the store which implements Shape to allow easy drawing into the image
+ * @author Dan
+ *
+ */
+public class DrawStroke implements Shape{
+	private static final int COLOUR_CACHE_SIZE = 256; // Number of colours kept by getColour(), a power of two
+	private static final AtomicReferenceArray<Color> colours = new AtomicReferenceArray<>(COLOUR_CACHE_SIZE); // Colours by a hash of their ARGB value, shared by every thread
+
+	private StrokeStore store; // Store holding the points and properties of the stroke
+	private int index; // Index of the stroke in the store
+
+	/**
+	 * Creates a view of a stroke in a store
+	 * @param store Store containing the stroke
+	 * @param index Index of the stroke in the store
+	 */
+	DrawStroke(StrokeStore store, int index){
+		this.store = store;
+		this.index = index;
+	}
+
+	/**
+	 * Creates a new stroke containing a single point, in a store of its own
+	 * @param x Initial x co-ordinate
+	 * @param y Initial y co-ordinate
+	 * @param diameter Diameter of stroke
+	 * @param colour Colour of stroke
+	 */
+	public DrawStroke(double x, double y,int diameter, Color colour){
+		this.store = new StrokeStore();
+		this.store.startStroke((float) x, (float) y, diameter, colour.getRGB(), false);
+		this.index = 0;
+	}
+
+	/**
+	 * Moves a stroke created by the constructor above to a new single point, reusing its store. Used for the cursor preview point,
+	 * so one is not created on every mouse move
+	 * @param x New x co-ordinate
+	 * @param y New y co-ordinate
+	 * @param diameter Diameter of stroke
+	 * @param colour Colour of stroke
+	 */
+	public void set(double x, double y, int diameter, Color colour){
+		this.store.clear();
+		this.store.startStroke((float) x, (float) y, diameter, colour.getRGB(), false);
+	}
+
+	/**
+	 * Retrieves the colour for the stroke. The render loops call this for every stroke they draw, so colours are cached by their ARGB value
+	 * and a new Color is only created when the slot for the value holds a different one
+	 * @return Colour of stroke
+	 */
+	public Color getColour(){
+		int argb = this.store.getColour(this.index);
+		int slot = (argb*0x9E3779B9 >>> 24) & (COLOUR_CACHE_SIZE - 1);
+		Color colour = colours.get(slot);
+		if (colour == null || colour.getRGB() != argb){
+			colour = new Color(argb, true);
+			colours.set(slot, colour);
+		}
+		return colour;
+	}
+
+	/**
+	 * Retrieves the diameter of the stroke
+	 * @return Diameter of stroke
+	 */
+	public int getDiameter(){
+		return this.store.getDiameter(this.index);
+	}
+
+	/**
+	 * Returns whether the points need reflecting
+	 * @return Boolean value where true means they need reflecting
+	 */
+	public boolean isReflected(){
+		return this.store.isReflected(this.index);
+	}
+
+	/**
+	 * Returns the number of points in the stroke
+	 * @return Number of points
+	 */
+	public int getPointCount(){
+		return this.store.getPointCount(this.index);
+	}
+
+	/**
+	 * Returns the last point in the stroke
+	 * @return Most recently added point
+	 */
+	public Point2D getCurrentPoint(){
+		int last = this.store.getStart(this.index) + this.getPointCount() - 1;
+		return new Point2D.Float(this.store.getX(last), this.store.getY(last));
+	}
+
+	/// SHAPE FUNCTIONS ///
+
+	@Override
+	public Rectangle getBounds(){
+		return this.getBounds2D().getBounds();
+	}
+
+	@Override
+	public Rectangle2D getBounds2D(){
+		return this.store.getBounds(this.index);
+	}
+
+	@Override
+	public boolean contains(double x, double y){
+		return Path2D.contains(this.getPathIterator(null), x, y);
+	}
+
+	@Override
+	public boolean contains(Point2D p){
+		return this.contains(p.getX(), p.getY());
+	}
+
+	@Override
+	public boolean intersects(double x, double y, double w, double h){
+		return Path2D.intersects(this.getPathIterator(null), x, y, w, h);
+	}
+
+	@Override
+	public boolean intersects(Rectangle2D r){
+		return this.intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+	}
+
+	@Override
+	public boolean contains(double x, double y, double w, double h){
+		return Path2D.contains(this.getPathIterator(null), x, y, w, h);
+	}
+
+	@Override
+	public boolean contains(Rectangle2D r){
+		return this.contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+	}
+
+	@Override
+	public PathIterator getPathIterator(AffineTransform at){
+		return new StrokeIterator(at);
+	}
+
+	@Override
+	public PathIterator getPathIterator(AffineTransform at, double flatness){
+		return new StrokeIterator(at); // Strokes only contain straight lines so are already flat
+	}
+
+	/**
+	 * Iterates through the points of the stroke directly from the store, as a move to the first point followed by lines to the rest.
+	 * A stroke of a single point is given a line back to the same point, as a move on its own draws nothing
+	 */
+	class StrokeIterator implements PathIterator{
+		private AffineTransform at; // Transform applied to each point (may be null)
+		private int point; // Index of the current point in the store
+		private int last; // Index of the last point of the stroke
+		private int end; // Index after the last segment (one past last, or two if the stroke is a single point)
+
+		StrokeIterator(AffineTransform at){
+			this.at = at;
+			this.point = store.getStart(index);
+			this.last = this.point + store.getPointCount(index) - 1;
+			this.end = Math.max(this.last + 1, this.point + 2);
+		}
+
+		@Override
+		public int getWindingRule(){
+			return WIND_NON_ZERO;
+		}
+
+		@Override
+		public boolean isDone(){
+			return this.point >= this.end;
+		}
+
+		@Override
+		public void next(){
+			this.point++;
+		}
+
+		@Override
+		public int currentSegment(float[] coords){
+			coords[0] = store.getX(Math.min(this.point, this.last));
+			coords[1] = store.getY(Math.min(this.point, this.last));
+			if (this.at != null){
+				this.at.transform(coords, 0, coords, 0, 1);
+			}
+			return this.point == store.getStart(index) ? SEG_MOVETO : SEG_LINETO;
+		}
+
+		@Override
+		public int currentSegment(double[] coords){
+			coords[0] = store.getX(Math.min(this.point, this.last));
+			coords[1] = store.getY(Math.min(this.point, this.last));
+			if (this.at != null){
+				this.at.transform(coords, 0, coords, 0, 1);
+			}
+			return this.point == store.getStart(index) ? SEG_MOVETO : SEG_LINETO;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EmptyStackException;
+
+/**
+ * Stack of drawings which have been cleared from the screen, so that they can be brought back by undo.
+ * Only the most recent drawings are kept in memory, up to a budget. Older drawings are written to a segment file on disk
+ * and read back in when undo reaches them. As it is a stack the oldest drawings are always the ones on disk, so the file is only ever
+ * appended to (when spilling) or truncated (when reading back the most recent drawing on disk).
+ * Snapshots share the drawings and the segment file, so until a snapshot is released the file is never truncated or overwritten below the drawings it may still be reading
+ * @author Dan
+ *
+ */
+public class DrawingHistory {
+	private ArrayList<Entry> entries = new ArrayList<Entry>(); // Cleared drawings, with the most recent last
+	private int spilled = 0; // Number of entries (from the bottom of the stack) which are on disk
+	private long memoryBudget; // Maximum bytes of drawings to keep in memory
+	private long memoryUsed = 0; // Bytes of drawings currently in memory
+	private Path segmentPath; // File that spilled drawings are written to (created when first needed)
+	private FileChannel segment; // Open channel to the segment file
+	private boolean spillFailed = false; // Set if the segment file cannot be written, after which everything stays in memory
+	private ArrayList<Long> shares = new ArrayList<Long>(); // Bytes at the start of the segment file which each unreleased snapshot can read (guarded by itself)
+	private boolean frozen = false; // Snapshots cannot be changed
+	private DrawingHistory owner; // History a snapshot was taken from, until the snapshot is released
+	private long share; // Bytes of the owner's segment file which a snapshot can read
+
+	/**
+	 * Creates a new empty history
+	 * @param memoryBudget Maximum number of bytes of drawings to keep in memory before spilling the oldest to disk
+	 */
+	public DrawingHistory(long memoryBudget){
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Adds a cleared drawing to the top of the stack. The drawing must not be changed afterwards, unless it is popped again
+	 * @param drawing Strokes of the drawing that has been cleared
+	 */
+	public void push(StrokeStore drawing){
+		this.checkWritable();
+		drawing.trimToSize(); // Finished drawings do not need room to grow
+		this.entries.add(new Entry(drawing));
+		this.memoryUsed += drawing.getByteSize();
+
+		// Moves the oldest drawings in memory to disk until back under budget (the newest always stays in memory)
+		while (this.memoryUsed > this.memoryBudget && this.spilled < this.entries.size()-1 && !this.spillFailed){
+			this.spill(this.entries.get(this.spilled));
+		}
+	}
+
+	/**
+	 * Removes the most recent drawing from the top of the stack, reading it back from disk if necessary
+	 * @return Strokes of the drawing
+	 */
+	public StrokeStore pop(){
+		this.checkWritable();
+		if (this.entries.isEmpty()){
+			throw new EmptyStackException();
+		}
+		Entry entry = this.entries.remove(this.entries.size()-1);
+		if (entry.drawing == null){
+			this.spilled--;
+			return this.load(entry);
+		}
+		this.memoryUsed -= entry.drawing.getByteSize();
+		return entry.drawing;
+	}
+
+	/**
+	 * Creates a read only snapshot of the history, which can be written by another thread while this history carries on changing. Drawings in memory
+	 * are shared using StrokeStore.snapshot(), and drawings on disk are read from the same segment file, so nothing is copied
+	 * @return Snapshot of the history as it currently is
+	 */
+	public DrawingHistory snapshot(){
+		DrawingHistory copy = new DrawingHistory(this.memoryBudget);
+		for (Entry entry : this.entries){
+			Entry shared = new Entry(entry.drawing == null ? null : entry.drawing.snapshot());
+			shared.offset = entry.offset;
+			shared.length = entry.length;
+			copy.entries.add(shared);
+		}
+		copy.spilled = this.spilled;
+		copy.segmentPath = this.segmentPath;
+		copy.segment = this.segment;
+		copy.frozen = true;
+		if (this.spilled > 0){
+			Entry newest = this.entries.get(this.spilled-1);
+			copy.owner = this;
+			copy.share = newest.offset + newest.length;
+			synchronized (this.shares){
+				this.shares.add(copy.share);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Releases a snapshot once it is no longer being read, so the history it was taken from can truncate and reuse the segment file again.
+	 * Does nothing if this is not a snapshot or has already been released. Can be called from any thread
+	 */
+	public void release(){
+		if (this.owner != null){
+			synchronized (this.owner.shares){
+				this.owner.shares.remove(Long.valueOf(this.share));
+			}
+			this.owner = null;
+		}
+	}
+
+	/**
+	 * @return Bytes at the start of the segment file which unreleased snapshots can read, so must not be truncated or overwritten
+	 */
+	private long sharedSegment(){
+		long shared = 0;
+		synchronized (this.shares){
+			for (long share : this.shares){
+				shared = Math.max(shared, share);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * @return True if there are no cleared drawings
+	 */
+	public boolean isEmpty(){
+		return this.entries.isEmpty();
+	}
+
+	/**
+	 * @return Number of cleared drawings, both in memory and on disk
+	 */
+	public int size(){
+		return this.entries.size();
+	}
+
+	/**
+	 * @return Bytes needed to write every cleared drawing using write()
+	 */
+	public long getByteSize(){
+		long size = 4;
+		for (Entry entry : this.entries){
+			size += entry.drawing == null ? entry.length : entry.drawing.getByteSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the number of cleared drawings followed by each drawing, oldest first, in the format of StrokeStore.write().
+	 * Drawings on disk are copied from the segment file, and are left there
+	 * @param buf Buffer with at least getByteSize() bytes remaining
+	 */
+	public void write(ByteBuffer buf){
+		buf.putInt(this.entries.size());
+		for (Entry entry : this.entries){
+			if (entry.drawing != null){
+				entry.drawing.write(buf);
+				continue;
+			}
+			try {
+				ByteBuffer copy = buf.slice();
+				copy.limit(entry.length);
+				while (copy.hasRemaining()){
+					if (this.segment.read(copy, entry.offset + copy.position()) < 0){
+						throw new IOException("Drawing history file is shorter than expected");
+					}
+				}
+				buf.position(buf.position() + entry.length);
+			} catch (IOException e){
+				throw new UncheckedIOException("Unable to read drawing history from " + this.segmentPath, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads a history previously written using write()
+	 * @param buf Buffer positioned at the start of the history
+	 * @param memoryBudget Maximum number of bytes of drawings to keep in memory before spilling the oldest to disk
+	 * @return New history containing the drawings read
+	 */
+	public static DrawingHistory read(ByteBuffer buf, long memoryBudget){
+		DrawingHistory history = new DrawingHistory(memoryBudget);
+		int count = buf.getInt();
+		for (int i = 0; i < count; i++){
+			history.push(StrokeStore.read(buf));
+		}
+		return history;
+	}
+
+	/**
+	 * @return Bytes used by the cleared drawings which are still in memory
+	 */
+	public long getMemoryUsed(){
+		return this.memoryUsed;
+	}
+
+	/**
+	 * Writes a drawing to the segment file, just after the newest drawing already there (or after what snapshots can read), and frees it from memory.
+	 * Anything in the file beyond that is no longer read, e.g. drawings read back while a snapshot was reading them, so it is truncated first
+	 * @param entry Entry of the drawing to spill
+	 */
+	private void spill(Entry entry){
+		try {
+			if (this.segment == null){
+				this.segmentPath = Files.createTempFile("doily-history", ".seg");
+				this.segmentPath.toFile().deleteOnExit();
+				this.segment = FileChannel.open(this.segmentPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			ByteBuffer buf = ByteBuffer.allocate(entry.drawing.getByteSize());
+			entry.drawing.write(buf);
+			buf.flip();
+			long offset = 0;
+			if (this.spilled > 0){
+				Entry newest = this.entries.get(this.spilled-1);
+				offset = newest.offset + newest.length;
+			}
+			entry.offset = Math.max(offset, this.sharedSegment());
+			if (this.segment.size() > entry.offset){
+				this.segment.truncate(entry.offset);
+			}
+			entry.length = buf.remaining();
+			while (buf.hasRemaining()){
+				this.segment.write(buf, entry.offset + entry.length - buf.remaining());
+			}
+		} catch (IOException e){
+			// Keeping the drawings in memory is better than losing them
+			System.err.println("Unable to write drawing history to disk, keeping it in memory: " + e.getMessage());
+			this.spillFailed = true;
+			return;
+		}
+		this.memoryUsed -= entry.drawing.getByteSize();
+		entry.drawing = null;
+		this.spilled++;
+	}
+
+	/**
+	 * Reads a drawing back from the end of the segment file, then truncates the file as the drawing is no longer stored there (unless a snapshot can still read it)
+	 * @param entry Entry of the drawing, which must be the last one written
+	 * @return Strokes of the drawing
+	 */
+	private StrokeStore load(Entry entry){
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(entry.length);
+			while (buf.hasRemaining()){
+				if (this.segment.read(buf, entry.offset + buf.position()) < 0){
+					throw new IOException("Drawing history file is shorter than expected");
+				}
+			}
+			buf.flip();
+			this.segment.truncate(Math.max(entry.offset, this.sharedSegment()));
+			return StrokeStore.read(buf);
+		} catch (IOException e){
+			throw new UncheckedIOException("Unable to read drawing history from " + this.segmentPath, e);
+		}
+	}
+
+	/**
+	 * Prevents snapshots from being changed
+	 */
+	private void checkWritable(){
+		if (this.frozen){
+			throw new IllegalStateException("Snapshots of a DrawingHistory cannot be changed");
+		}
+	}
+
+	/**
+	 * A single cleared drawing, either in memory or on disk
+	 */
+	static class Entry {
+		private StrokeStore drawing; // Strokes of the drawing, or null if on disk
+		private long offset; // Position of the drawing in the segment file
+		private int length; // Number of bytes the drawing takes up in the segment file
+
+		Entry(StrokeStore drawing){
+			this.drawing = drawing;
+		}
+	}
+}
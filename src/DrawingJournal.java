@@ -0,0 +1,533 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of every change made to a DoilyDrawing, so the drawing and its undo and redo history can be recovered if the application crashes or is closed.
+ * Changes are appended as small binary records to a buffer in memory, which never waits on the disk. A background writer collects the records made within
+ * DigitalDoily.JOURNAL_COMMIT_MS, appends them to a memory mapped log as a single frame and syncs it once (group commit), so at most that much drawing can be lost.
+ * Each frame holds the length of its records, the generation of the log and a CRC of the records, so a frame torn by a crash is detected and ignored.
+ * Once DigitalDoily.JOURNAL_COMPACT_SIZE bytes have been logged, the whole drawing is written to a snapshot file instead and the log starts a new generation,
+ * so recovery only ever replays a snapshot and a bounded amount of log
+ * @author Dan
+ *
+ */
+public class DrawingJournal {
+	private static final String LOG_NAME = "drawing.journal"; // Name of the log in the journal directory
+	private static final String SNAPSHOT_NAME = "drawing.snapshot"; // Name of the snapshot in the journal directory
+	public static final String CORRUPT_SUFFIX = ".corrupt"; // Added to the names of a log and snapshot which could not be replayed
+	private static final int LOG_MAGIC = 0x444F4A4C; // "DOJL" at the start of the log
+	private static final int SNAPSHOT_MAGIC = 0x444F534E; // "DOSN" at the start of the snapshot
+	private static final short VERSION = 2; // Version of the log format written
+	private static final short SNAPSHOT_VERSION = 3; // Version of the snapshot format written, which from 3 holds what can be undone and redone
+	private static final int LOG_HEADER_SIZE = 8; // Bytes before the first frame of the log
+	private static final int SNAPSHOT_HEADER_SIZE = 32; // Bytes before the history in the snapshot
+	private static final int FRAME_HEADER_SIZE = 16; // Length, generation and CRC before the records of each frame
+	private static final int INITIAL_MAP_SIZE = 1 << 20; // Size of the log when created, doubled whenever it fills up
+	private static final int INITIAL_PENDING = 64*1024; // Starting capacity of the buffers of records waiting to be written
+	private static final int REFLECT_FLAG = 0x80; // Top bit of the pen byte marks a reflected stroke
+
+	// Types of record
+	private static final byte STROKE = 1; // Start of a stroke: x, y, pen and colour
+	private static final byte POINT = 2; // Point added to the current stroke: x and y
+	private static final byte END = 3; // Current stroke finished and simplified at a scale of 1 (only in older logs)
+	private static final byte UNDO = 4; // Last change undone
+	private static final byte CLEAR = 5; // Drawing cleared into the history
+	private static final byte SECTORS = 6; // Number of sectors changed
+	private static final byte LOAD = 7; // Drawing opened from a file: number of sectors and the strokes
+	private static final byte REDO = 8; // Last change undone is redone
+	private static final byte COLOUR = 9; // Pen colour changed
+	private static final byte DIAMETER = 10; // Pen diameter changed
+	private static final byte REFLECT = 11; // Reflection turned on or off
+	private static final byte FINISH = 12; // Current stroke finished and simplified: scale it was drawn at
+
+	private Path snapshotPath; // File holding the most recent snapshot
+	private FileChannel log; // Open channel to the log, locked so that only one window uses the journal
+	private MappedByteBuffer map; // Mapping of the whole log (only used by the writer once replayed)
+	private int end; // Position after the last frame in the log (only used by the writer once replayed)
+	private long generation = 0; // Generation of the frames being written, increased by every snapshot (only used by the writer once replayed)
+	private CRC32 crc = new CRC32(); // Calculates the CRC of each frame (only used by the writer)
+	private Thread writer; // Background thread that writes the records and snapshots
+
+	// Guarded by this
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_PENDING); // Records waiting to be written
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_PENDING); // Buffer swapped in for pending while the writer writes its records
+	private DoilyDrawing snapshot; // Copy of the drawing waiting to be written as a snapshot before the pending records, or null if none
+	private long logged = 0; // Bytes logged since the last snapshot
+	private long snapshots = 0; // Number of snapshots requested, used as the generation of the log after each
+	private boolean closed = false; // Set once closed, after which changes are no longer recorded
+	private boolean failed = false; // Set if the journal cannot be written, after which changes are no longer recorded
+
+	/**
+	 * Opens the journal in a directory, creating it if needed. The journal must be replayed before any changes are recorded
+	 * @param dir Directory holding the journal
+	 */
+	public DrawingJournal(Path dir) throws IOException{
+		Files.createDirectories(dir);
+		this.snapshotPath = dir.resolve(SNAPSHOT_NAME);
+		this.log = FileChannel.open(dir.resolve(LOG_NAME), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		FileLock lock = this.log.tryLock();
+		if (lock == null){
+			this.log.close();
+			throw new IOException("The journal is already in use by another window");
+		}
+	}
+
+	/**
+	 * Moves a log and snapshot which could not be replayed out of the way, so a new journal can be started in the directory and they are kept to be looked at,
+	 * replacing any moved aside before. The journal using them must be closed first
+	 * @param dir Directory holding the journal
+	 */
+	public static void setAside(Path dir) throws IOException{
+		for (String name : new String[]{LOG_NAME, SNAPSHOT_NAME}){
+			Path path = dir.resolve(name);
+			if (Files.exists(path)){
+				Files.move(path, dir.resolve(name + CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the drawing, the settings and what can be undone and redone from the snapshot and the log, then starts recording changes.
+	 * The records are replayed by making the same changes to a drawing which is not shown, so they are undone and redone exactly as they were.
+	 * A torn frame at the end of the log is ignored, as are frames from before the snapshot
+	 * @param drawing Drawing to restore into, which is left unchanged if the journal is empty or cannot be replayed
+	 */
+	public void replay(DoilyDrawing drawing) throws IOException{
+		// Starts from the snapshot if there is one
+		DoilyDrawing replayed = new DoilyDrawing(null);
+		boolean restored = false;
+		if (Files.exists(this.snapshotPath)){
+			try (FileChannel channel = FileChannel.open(this.snapshotPath, StandardOpenOption.READ)){
+				ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				short version;
+				if (buf.remaining() < SNAPSHOT_HEADER_SIZE || buf.getInt() != SNAPSHOT_MAGIC || (version = buf.getShort()) < 2 || version > SNAPSHOT_VERSION){
+					throw new IOException("Not a drawing snapshot");
+				}
+				buf.getShort();
+				this.generation = buf.getLong();
+				int sectorCount = buf.getInt();
+				Color colour = new Color(buf.getInt(), true);
+				int diameter = buf.getInt();
+				boolean reflect = buf.getInt() != 0;
+				DrawingHistory history = DrawingHistory.read(buf, DigitalDoily.HISTORY_MEMORY_BUDGET);
+				if (version == 2){
+					replayed.restore(StrokeStore.read(buf), history, sectorCount, colour, diameter, reflect);
+				} else {
+					replayed.restore(StrokeStore.readWithUndone(buf), history, sectorCount, colour, diameter, reflect);
+					replayed.readChanges(buf);
+				}
+				restored = true;
+			}
+		}
+
+		// Replays every frame of the current generation
+		this.map = this.log.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.log.size(), INITIAL_MAP_SIZE));
+		if (this.map.getInt(0) == 0){
+			this.map.putInt(0, LOG_MAGIC);
+			this.map.putShort(4, VERSION);
+		} else if (this.map.getInt(0) != LOG_MAGIC || this.map.getShort(4) != VERSION){
+			throw new IOException("Not a drawing journal");
+		}
+		this.end = LOG_HEADER_SIZE;
+		while (this.end + FRAME_HEADER_SIZE <= this.map.capacity()){
+			int length = this.map.getInt(this.end);
+			if (length <= 0 || length > this.map.capacity() - this.end - FRAME_HEADER_SIZE || this.map.getLong(this.end + 4) != this.generation){
+				break;
+			}
+			ByteBuffer records = this.map.duplicate();
+			records.limit(this.end + FRAME_HEADER_SIZE + length).position(this.end + FRAME_HEADER_SIZE);
+			this.crc.reset();
+			this.crc.update(records.duplicate());
+			if ((int) this.crc.getValue() != this.map.getInt(this.end + 12)){
+				break; // Torn by a crash while being written
+			}
+			while (records.hasRemaining()){
+				switch (records.get()){
+					case STROKE:
+						float x = records.getFloat(), y = records.getFloat();
+						int pen = records.get();
+						replayed.startStroke(x, y, pen & 0x7F, records.getInt(), (pen & REFLECT_FLAG) != 0);
+						break;
+					case POINT:
+						replayed.addPoint(records.getFloat(), records.getFloat());
+						break;
+					case END:
+						replayed.endStroke(1);
+						break;
+					case FINISH:
+						replayed.endStroke(records.getFloat());
+						break;
+					case UNDO:
+						replayed.undo();
+						break;
+					case REDO:
+						replayed.redo();
+						break;
+					case CLEAR:
+						replayed.clear();
+						break;
+					case SECTORS:
+						replayed.setSectorCount(records.getInt());
+						break;
+					case LOAD:
+						int sectorCount = records.getInt();
+						replayed.load(new DoilyFile(StrokeStore.read(records), sectorCount));
+						break;
+					case COLOUR:
+						replayed.setColour(new Color(records.getInt(), true));
+						break;
+					case DIAMETER:
+						replayed.setDiameter(records.getInt());
+						break;
+					case REFLECT:
+						replayed.setReflect(records.get() != 0);
+						break;
+					default:
+						throw new IOException("Unknown record in drawing journal");
+				}
+			}
+			this.end += FRAME_HEADER_SIZE + length;
+			restored = true;
+		}
+		this.logged = this.end - LOG_HEADER_SIZE;
+		this.snapshots = this.generation;
+		if (restored){
+			drawing.restore(replayed);
+		}
+
+		this.writer = new Thread(this::write, "Doily journal");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/// RECORDING, ONLY CALLED ON THE EDT ///
+
+	/**
+	 * Records the start of a stroke
+	 * @param x X co-ordinate of the first point
+	 * @param y Y co-ordinate of the first point
+	 * @param diameter Diameter of the stroke
+	 * @param argb Colour of the stroke as packed ARGB
+	 * @param reflect Whether the stroke is reflected in each sector
+	 */
+	public synchronized void logStroke(float x, float y, int diameter, int argb, boolean reflect){
+		ByteBuffer buf = this.record(STROKE, 13);
+		if (buf != null){
+			buf.putFloat(x).putFloat(y).put((byte) ((diameter & 0x7F) | (reflect ? REFLECT_FLAG : 0))).putInt(argb);
+		}
+	}
+
+	/**
+	 * Records a point being added to the current stroke
+	 * @param x X co-ordinate of the point
+	 * @param y Y co-ordinate of the point
+	 */
+	public synchronized void logPoint(float x, float y){
+		ByteBuffer buf = this.record(POINT, 8);
+		if (buf != null){
+			buf.putFloat(x).putFloat(y);
+		}
+	}
+
+	/**
+	 * Records the current stroke being finished and simplified
+	 * @param scale Pixels per unit of the drawing that the stroke was drawn at, which the simplification depends on
+	 */
+	public synchronized void logEnd(double scale){
+		ByteBuffer buf = this.record(FINISH, 4);
+		if (buf != null){
+			buf.putFloat((float) scale);
+		}
+	}
+
+	/**
+	 * Records an undo
+	 */
+	public synchronized void logUndo(){
+		this.record(UNDO, 0);
+	}
+
+	/**
+	 * Records a redo
+	 */
+	public synchronized void logRedo(){
+		this.record(REDO, 0);
+	}
+
+	/**
+	 * Records the drawing being cleared
+	 */
+	public synchronized void logClear(){
+		this.record(CLEAR, 0);
+	}
+
+	/**
+	 * Records the number of sectors being changed
+	 * @param sectorCount New number of sectors
+	 */
+	public synchronized void logSectorCount(int sectorCount){
+		ByteBuffer buf = this.record(SECTORS, 4);
+		if (buf != null){
+			buf.putInt(sectorCount);
+		}
+	}
+
+	/**
+	 * Records the colour of the pen being changed
+	 * @param argb New colour as packed ARGB
+	 */
+	public synchronized void logColour(int argb){
+		ByteBuffer buf = this.record(COLOUR, 4);
+		if (buf != null){
+			buf.putInt(argb);
+		}
+	}
+
+	/**
+	 * Records the diameter of the pen being changed
+	 * @param diameter New diameter
+	 */
+	public synchronized void logDiameter(int diameter){
+		ByteBuffer buf = this.record(DIAMETER, 4);
+		if (buf != null){
+			buf.putInt(diameter);
+		}
+	}
+
+	/**
+	 * Records reflection being turned on or off
+	 * @param reflect Whether new strokes are reflected
+	 */
+	public synchronized void logReflect(boolean reflect){
+		ByteBuffer buf = this.record(REFLECT, 1);
+		if (buf != null){
+			buf.put((byte) (reflect ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Records a drawing being opened from a file
+	 * @param strokes Strokes of the drawing (not changed)
+	 * @param sectorCount Number of sectors of the drawing
+	 */
+	public synchronized void logLoad(StrokeStore strokes, int sectorCount){
+		ByteBuffer buf = this.record(LOAD, 4 + strokes.getByteSize());
+		if (buf != null){
+			buf.putInt(sectorCount);
+			strokes.write(buf);
+		}
+	}
+
+	/**
+	 * @return True once enough has been logged since the last snapshot that a new snapshot should be taken
+	 */
+	public synchronized boolean needsCompaction(){
+		return this.logged >= DigitalDoily.JOURNAL_COMPACT_SIZE && !this.closed && !this.failed;
+	}
+
+	/**
+	 * Replaces everything logged so far with a snapshot of the whole drawing, the settings and what can be undone and redone. Only a copy-on-write snapshot
+	 * of the drawing is taken here, which shares its strokes and history, and the writer writes it out (reading back any history which has been moved to disk)
+	 * and swaps it in
+	 * @param drawing Drawing to snapshot
+	 */
+	public synchronized void compact(DoilyDrawing drawing){
+		if (this.closed || this.failed){
+			return;
+		}
+		if (snapshotSize(drawing) > Integer.MAX_VALUE){
+			return; // Too large to snapshot in one buffer, so keeps logging instead
+		}
+		if (this.snapshot != null){
+			this.snapshot.release(); // Replaced before the writer took it
+		}
+		this.snapshot = drawing.snapshot();
+		this.snapshots++;
+		this.pending.clear(); // Records not yet written are part of the snapshot
+		this.logged = 0;
+		this.notifyAll();
+	}
+
+	/**
+	 * Writes any records still waiting, syncs them, and stops the writer. Called when the application exits
+	 */
+	public void close(){
+		synchronized (this){
+			this.closed = true;
+			this.notifyAll();
+		}
+		try {
+			if (this.writer != null){
+				this.writer.join();
+			}
+			this.log.close();
+		} catch (InterruptedException | IOException e){
+			System.err.println("Unable to close the drawing journal: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a record in the pending buffer, growing it if it is full and waking the writer if it was empty. Must hold the lock
+	 * @param type Type of the record
+	 * @param size Bytes following the type
+	 * @return Buffer to write the rest of the record to, or null if changes are no longer being recorded
+	 */
+	private ByteBuffer record(byte type, int size){
+		if (this.closed || this.failed){
+			return null;
+		}
+		if (this.pending.remaining() < size + 1){
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(this.pending.capacity()*2, this.pending.position() + size + 1));
+			this.pending.flip();
+			grown.put(this.pending);
+			this.pending = grown;
+		}
+		if (this.pending.position() == 0){
+			this.notifyAll();
+		}
+		this.logged += size + 1;
+		return this.pending.put(type);
+	}
+
+	/// WRITER ///
+
+	/**
+	 * Body of the writer thread. Waits for records, gives the EDT DigitalDoily.JOURNAL_COMMIT_MS to add more, then writes and syncs them all together
+	 */
+	private void write(){
+		while (true){
+			ByteBuffer records;
+			DoilyDrawing state;
+			long generation;
+			synchronized (this){
+				while (this.pending.position() == 0 && this.snapshot == null && !this.closed){
+					try {
+						this.wait();
+					} catch (InterruptedException e){
+						return;
+					}
+				}
+			}
+			try {
+				Thread.sleep(DigitalDoily.JOURNAL_COMMIT_MS); // Lets more records arrive, so they share one sync
+			} catch (InterruptedException e){
+				return;
+			}
+			boolean last;
+			synchronized (this){
+				records = this.pending;
+				this.pending = this.spare;
+				this.spare = null;
+				state = this.snapshot;
+				generation = this.snapshots;
+				this.snapshot = null;
+				last = this.closed;
+			}
+			try {
+				if (state != null){
+					this.writeSnapshot(state, generation);
+				}
+				if (records.position() > 0){
+					this.writeFrame(records);
+				}
+			} catch (IOException e){
+				// The drawing itself is unaffected, it just can no longer be recovered
+				System.err.println("Unable to write the drawing journal, changes will not be recoverable: " + e.getMessage());
+				synchronized (this){
+					this.failed = true;
+				}
+				return;
+			} finally {
+				if (state != null){
+					state.release(); // Written (or abandoned), so its history no longer needs to be kept on disk
+				}
+			}
+			records.clear();
+			synchronized (this){
+				this.spare = records;
+			}
+			if (last){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Appends records to the log as a single frame and syncs it
+	 * @param records Buffer containing the records, from 0 to its position
+	 */
+	private void writeFrame(ByteBuffer records) throws IOException{
+		int length = records.position();
+		if (this.end + FRAME_HEADER_SIZE + length > this.map.capacity()){
+			long size = this.map.capacity();
+			while (this.end + FRAME_HEADER_SIZE + length > size){
+				size *= 2;
+			}
+			this.map = this.log.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		this.crc.reset();
+		this.crc.update(records.array(), 0, length);
+		this.map.put(this.end + FRAME_HEADER_SIZE, records.array(), 0, length);
+		this.map.putInt(this.end, length);
+		this.map.putLong(this.end + 4, this.generation);
+		this.map.putInt(this.end + 12, (int) this.crc.getValue());
+		this.map.force(this.end, FRAME_HEADER_SIZE + length);
+		this.end += FRAME_HEADER_SIZE + length;
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file, syncs it and moves it over the previous snapshot, then starts a new generation of the log.
+	 * Frames of earlier generations are ignored when replaying, so a crash at any point leaves either the old snapshot and log or the new snapshot
+	 * @param state Copy of the drawing to write
+	 * @param generation Generation of the log which follows the snapshot
+	 */
+	private void writeSnapshot(DoilyDrawing state, long generation) throws IOException{
+		StrokeStore strokes = state.getStrokes();
+		DrawingHistory history = state.getHistory();
+		ByteBuffer buf = ByteBuffer.allocate((int) snapshotSize(state));
+		buf.putInt(SNAPSHOT_MAGIC);
+		buf.putShort(SNAPSHOT_VERSION);
+		buf.putShort((short) 0);
+		buf.putLong(generation);
+		buf.putInt(state.getSectorCount());
+		buf.putInt(state.getColour().getRGB());
+		buf.putInt(state.getDiameter());
+		buf.putInt(state.isReflected() ? 1 : 0);
+		try {
+			history.write(buf);
+		} catch (UncheckedIOException e){
+			throw e.getCause();
+		}
+		strokes.writeWithUndone(buf);
+		state.writeChanges(buf);
+		buf.flip();
+
+		Path temp = this.snapshotPath.resolveSibling(SNAPSHOT_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (buf.hasRemaining()){
+				channel.write(buf);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.generation = generation;
+		this.end = LOG_HEADER_SIZE;
+	}
+
+	/**
+	 * @return Bytes needed to write a snapshot of a drawing
+	 */
+	private static long snapshotSize(DoilyDrawing drawing){
+		return SNAPSHOT_HEADER_SIZE + drawing.getHistory().getByteSize() + drawing.getStrokes().getByteSizeWithUndone() + drawing.getChangesByteSize();
+	}
+}
@@ -1,76 +1,117 @@
-import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Image;
-import java.awt.event.ItemEvent;
-import java.awt.event.ItemListener;
-import java.awt.image.BufferedImage;
-
-import javax.swing.JToggleButton;
-
-/**
- * Represents a single image that is used to save a state of the drawing into the gallery.
- * Is an extension of a JToggleButton as this allows ButtonGroups to be used to ensure only one image is selected at any one time
- * @author dmh2g16
- *
- */
-public class GalleryImage extends JToggleButton{
-	private BufferedImage img; // Buffered image containing actual drawing
-	private boolean selected = false; // Whether the image is currently selected
-	
-	/**
-	 * Constructs a new GalleryImage by drawing the current drawing on the panel to the specified width (to scale)
-	 * @param panel Panel that contains the drawing to be saved
-	 * @param width The width of the image
-	 */
-	public GalleryImage(DoilyPanel panel, int width){		
-		// Creates new image that is direct copy of what is on the panel
-		BufferedImage im = new BufferedImage(panel.getWidth(),panel.getHeight(),BufferedImage.TYPE_INT_ARGB);
-		panel.paint(im.getGraphics());
-		
-		// Calculates aspect ratio and sets height to conform to this ratio
-		double widthRatio = ((double)width/panel.getWidth());
-		int height = (int) (widthRatio*panel.getHeight());
-		
-		// Set the size of itself to the new dimensions
-		Dimension size = new Dimension(width,height);
-		this.setMaximumSize(size);
-		this.setPreferredSize(size);
-		
-		// Creates a new buffered image of new size and draws scaled image to it
-		this.img = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB);
-		this.img.createGraphics().drawImage(im.getScaledInstance(width, height, Image.SCALE_SMOOTH), 0, 0, null);
-		
-		// Anonymous class controlling logic when image is selected (using button group)
-		this.addItemListener(new ItemListener(){
-
-			@Override
-			public void itemStateChanged(ItemEvent e) {
-				// Updates variable depending on whether image is now selected
-				if (e.getStateChange() == ItemEvent.DESELECTED){
-					selected = false;
-				} else {
-					selected = true;
-				}
-			}
-			
-		});
-	}
-	
-	/**
-	 * Controls drawing of the image onto the component
-	 */
-	@Override
-	protected void paintComponent(Graphics g) {
-		// If it is selected create a blue border around the image, gray if not selected
-		if (selected == true){
-			g.setColor(Color.RED);
-		} else {
-			g.setColor(Color.GRAY);
-		}
-		g.fillRect(0, 0, this.getWidth(), this.getHeight());
-		g.setClip(5,5,this.getWidth()-10,this.getHeight()-10);
-		g.drawImage(img, 0, 0,null); // Paints the BufferedImage onto the component
-	}
-
-}
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Represents a single image that has been saved into the gallery.
+ * Only holds where the compressed thumbnail is stored, as the gallery may contain thousands of images. The thumbnail itself is decoded
+ * when it needs to be shown and kept in the ThumbnailStore's cache
+ * @author dmh2g16
+ *
+ */
+public class GalleryImage {
+	private int width; // Width of the thumbnail
+	private int height; // Height of the thumbnail
+	private long offset = -1; // Position of the compressed thumbnail in the store's file, or -1 if not yet written
+	private int length; // Number of bytes of the compressed thumbnail
+	private byte[] data; // Compressed thumbnail, only used if it could not be written to disk
+
+	/**
+	 * Constructs a new GalleryImage to hold a thumbnail of the current drawing on the panel, at the specified width (to scale)
+	 * @param panel Panel that contains the drawing to be saved
+	 * @param width The width of the image
+	 */
+	public GalleryImage(DoilyPanel panel, int width){
+		// Calculates aspect ratio and sets height to conform to this ratio
+		double widthRatio = ((double)width/panel.getWidth());
+		this.width = Math.max(width, 1);
+		this.height = Math.max((int) (widthRatio*panel.getHeight()), 1);
+	}
+
+	/**
+	 * @return Width of the thumbnail
+	 */
+	public int getWidth(){
+		return this.width;
+	}
+
+	/**
+	 * @return Height of the thumbnail
+	 */
+	public int getHeight(){
+		return this.height;
+	}
+
+	/**
+	 * @return True once the compressed thumbnail has been stored, so it can be decoded again
+	 */
+	boolean isStored(){
+		return this.offset >= 0 || this.data != null;
+	}
+
+	/**
+	 * @return Position of the compressed thumbnail in the store's file
+	 */
+	long getOffset(){
+		return this.offset;
+	}
+
+	/**
+	 * @return Number of bytes of the compressed thumbnail
+	 */
+	int getLength(){
+		return this.length;
+	}
+
+	/**
+	 * @return Compressed thumbnail if it is held in memory, otherwise null
+	 */
+	byte[] getData(){
+		return this.data;
+	}
+
+	/**
+	 * Records where the compressed thumbnail has been written
+	 * @param offset Position in the store's file
+	 * @param length Number of bytes written
+	 */
+	void setLocation(long offset, int length){
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Keeps the compressed thumbnail in memory, for when it cannot be written to disk
+	 * @param data Compressed thumbnail
+	 */
+	void setData(byte[] data){
+		this.data = data;
+	}
+
+	/**
+	 * Scales an image down by repeatedly halving it with bilinear filtering, then a final bilinear step to the exact size.
+	 * Gives a similar quality to area averaging but is far quicker
+	 * @param src Image to scale
+	 * @param width Width to scale to
+	 * @param height Height to scale to
+	 * @return Scaled image
+	 */
+	static BufferedImage scale(BufferedImage src, int width, int height){
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		BufferedImage current = src;
+		do {
+			// Halves each dimension until the next halving would go below the target size
+			int w = Math.max(current.getWidth()/2, width);
+			int h = Math.max(current.getHeight()/2, height);
+			BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = next.createGraphics();
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(current, 0, 0, w, h, null);
+			g2d.dispose();
+			current = next;
+		} while (current.getWidth() != width || current.getHeight() != height);
+		return current;
+	}
+
+}
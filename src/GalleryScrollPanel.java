@@ -1,86 +1,118 @@
-import java.awt.Dimension;
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import javax.swing.BoxLayout;
-import javax.swing.ButtonGroup;
-import javax.swing.JButton;
-import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-
-/**
- * Contains the GUI components for the GalleryScrollPane, and methods to control the images
- * @author Dan
- *
- */
-public class GalleryScrollPanel extends JScrollPane{
-	private JPanel galleryPanel; // Holds all the gallery images
-	private ArrayList<GalleryImage> images = new ArrayList<GalleryImage>(); // Images stored in gallery
-	private ButtonGroup imageGroup = new ButtonGroup(); // Restricts the user to selecting only one image at a time
-	private JButton saveBtn;
-	/**
-	 * Constructs a new scroll panel and add a gallery panel to it
-	 */
-	public GalleryScrollPanel(){
-		this.galleryPanel = new JPanel();
-		this.galleryPanel.setLayout(new BoxLayout(galleryPanel, BoxLayout.PAGE_AXIS));
-		this.setViewportView(this.galleryPanel);
-		
-		this.setPreferredSize(new Dimension(220, 700));
-		this.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-		this.getVerticalScrollBar().setUnitIncrement(10);
-	}
-	
-	/**
-	 * Attaches Save Button to this panel so that it can be enabled/disabled depening on the size of the gallery
-	 * @param saveBtn Save Button used to save to the gallery
-	 */
-	public void setSaveBtn(JButton saveBtn){
-		this.saveBtn = saveBtn;
-	}
-	
-	/**
-	 * Returns whether the gallery is currently full
-	 * @return False if gallery size is greater than MAX_GALLERY
-	 */
-	public boolean isFull(){
-		return this.images.size() >= DigitalDoily.MAX_GALLERY;
-	}
-	
-	/**
-	 * Saves a new image to the gallery by creating button and adding to group
-	 * @param dp DoilyPanel to be saved
-	 */
-	public void saveToGallery(DoilyPanel dp){
-		GalleryImage image = new GalleryImage(dp, this.getWidth()-20);
-		galleryPanel.add(image);
-		images.add(image);
-		imageGroup.add(image);
-		this.revalidate();
-		this.repaint();
-	}
-	
-	/**
-	 * Removes any selected image from the gallery
-	 */
-	public void removeSelectedFromGallery(){
-		Iterator<GalleryImage> it = images.iterator();
-		while (it.hasNext()){
-			GalleryImage gi = it.next();
-			// If the selected image is found, it is removed from the panel, button group and list of gallery images
-			if (gi.isSelected()){
-				it.remove();
-				galleryPanel.remove(gi);
-				imageGroup.remove(gi);
-				this.revalidate();
-				this.repaint();
-				break;
-			}
-		}
-		
-		// Re-enables the save button if present
-		if (this.saveBtn!=null && !isFull()){
-			this.saveBtn.setEnabled(true);
-		}
-	}
-}
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+
+/**
+ * Contains the GUI components for the GalleryScrollPane, and methods to control the images.
+ * The images are shown in a JList, so only the rows which are visible are ever painted, and their thumbnails are decoded on demand by a ThumbnailStore
+ * @author Dan
+ *
+ */
+public class GalleryScrollPanel extends JScrollPane{
+	private DefaultListModel<GalleryImage> images = new DefaultListModel<GalleryImage>(); // Images stored in gallery
+	private JList<GalleryImage> imageList; // Shows the images, restricting the user to selecting only one at a time
+	private ThumbnailStore thumbnails; // Compressed thumbnails of the images, with the visible ones decoded
+	private JButton saveBtn;
+	/**
+	 * Constructs a new scroll panel and add a gallery list to it
+	 */
+	public GalleryScrollPanel(){
+		this.imageList = new JList<GalleryImage>(this.images);
+		this.imageList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		this.imageList.setCellRenderer(new GalleryImageRenderer());
+		this.setViewportView(this.imageList);
+		this.thumbnails = new ThumbnailStore(DigitalDoily.GALLERY_CACHE_BUDGET, this.imageList::repaint);
+
+		this.setPreferredSize(new Dimension(220, 700));
+		this.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+		this.getVerticalScrollBar().setUnitIncrement(10);
+	}
+	
+	/**
+	 * Attaches Save Button to this panel so that it can be enabled/disabled depening on the size of the gallery
+	 * @param saveBtn Save Button used to save to the gallery
+	 */
+	public void setSaveBtn(JButton saveBtn){
+		this.saveBtn = saveBtn;
+	}
+	
+	/**
+	 * Returns whether the gallery is currently full
+	 * @return False if gallery size is greater than MAX_GALLERY
+	 */
+	public boolean isFull(){
+		return this.images.size() >= DigitalDoily.MAX_GALLERY;
+	}
+	
+	/**
+	 * Saves a new image to the gallery. The thumbnail is created in the background and shown once it is ready
+	 * @param dp DoilyPanel to be saved
+	 */
+	public void saveToGallery(DoilyPanel dp){
+		GalleryImage image = new GalleryImage(dp, this.getWidth()-20);
+		this.thumbnails.add(image, dp.snapshotImage());
+		images.addElement(image);
+		imageList.ensureIndexIsVisible(images.size()-1);
+	}
+	
+	/**
+	 * Removes any selected image from the gallery
+	 */
+	public void removeSelectedFromGallery(){
+		int index = imageList.getSelectedIndex();
+		// If an image is selected, it is removed from the list and its thumbnail is freed
+		if (index >= 0){
+			thumbnails.remove(images.remove(index));
+		}
+
+		// Re-enables the save button if present
+		if (this.saveBtn!=null && !isFull()){
+			this.saveBtn.setEnabled(true);
+		}
+	}
+	
+	/**
+	 * Paints a single image in the list, with a red border if it is selected and gray if not
+	 */
+	private class GalleryImageRenderer extends JComponent implements ListCellRenderer<GalleryImage>{
+		private static final long serialVersionUID = 1L;
+		private GalleryImage image; // Image currently being painted
+		private boolean selected; // Whether the image is selected
+
+		@Override
+		public Component getListCellRendererComponent(JList<? extends GalleryImage> list, GalleryImage value, int index, boolean isSelected, boolean cellHasFocus) {
+			this.image = value;
+			this.selected = isSelected;
+			return this;
+		}
+
+		@Override
+		public Dimension getPreferredSize() {
+			return new Dimension(this.image.getWidth(), this.image.getHeight());
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			if (this.selected){
+				g.setColor(Color.RED);
+			} else {
+				g.setColor(Color.GRAY);
+			}
+			g.fillRect(0, 0, this.getWidth(), this.getHeight());
+			g.setClip(5,5,this.getWidth()-10,this.getHeight()-10);
+			// Only looked up when painted, so thumbnails are only decoded for rows which are visible (nothing is drawn until it is ready)
+			BufferedImage thumb = thumbnails.get(this.image);
+			g.drawImage(thumb, 0, 0, null);
+		}
+	}
+}
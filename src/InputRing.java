@@ -0,0 +1,81 @@
+/**
+ * Fixed size ring buffer of mouse samples, so that drag events can be recorded as they arrive and drawn once per frame.
+ * It is lock free for a single producer and a single consumer: the producer only writes the tail and the consumer only writes the head,
+ * and as both are volatile a sample is always fully written before the consumer can see it. Nothing is allocated once the ring is created
+ * @author Dan
+ *
+ */
+public class InputRing {
+	private final int[] xs, ys; // Co-ordinates of each sample
+	private final long[] whens; // Time each sample was created, from MouseEvent.getWhen()
+	private final int mask; // Capacity minus one, used to wrap positions into the arrays
+	private volatile long head = 0; // Position of the oldest sample not yet consumed (only written by the consumer)
+	private volatile long tail = 0; // Position after the newest sample (only written by the producer)
+
+	/**
+	 * Creates an empty ring
+	 * @param capacity Maximum number of samples held at once, rounded up to a power of two
+	 */
+	public InputRing(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.xs = new int[size];
+		this.ys = new int[size];
+		this.whens = new long[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds a sample to the ring. Only called by the producer
+	 * @param x X co-ordinate of the sample
+	 * @param y Y co-ordinate of the sample
+	 * @param when Time the sample was created
+	 * @return False if the ring is full, in which case the sample was not added and the consumer must catch up first
+	 */
+	public boolean offer(int x, int y, long when){
+		long t = this.tail;
+		if (t - this.head > this.mask){
+			return false;
+		}
+		int i = (int) t & this.mask;
+		this.xs[i] = x;
+		this.ys[i] = y;
+		this.whens[i] = when;
+		this.tail = t + 1; // Publishes the sample
+		return true;
+	}
+
+	/**
+	 * @return True if there are no samples waiting to be consumed
+	 */
+	public boolean isEmpty(){
+		return this.head == this.tail;
+	}
+
+	/**
+	 * @return X co-ordinate of the oldest sample. Only called by the consumer when the ring is not empty
+	 */
+	public int getX(){
+		return this.xs[(int) this.head & this.mask];
+	}
+
+	/**
+	 * @return Y co-ordinate of the oldest sample. Only called by the consumer when the ring is not empty
+	 */
+	public int getY(){
+		return this.ys[(int) this.head & this.mask];
+	}
+
+	/**
+	 * @return Time the oldest sample was created. Only called by the consumer when the ring is not empty
+	 */
+	public long getWhen(){
+		return this.whens[(int) this.head & this.mask];
+	}
+
+	/**
+	 * Removes the oldest sample, freeing its space for the producer. Only called by the consumer when the ring is not empty
+	 */
+	public void remove(){
+		this.head = this.head + 1;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Decides whether strokes are painted at full quality (antialiased) or in draft (aliased, which is several times quicker), from how long painting has been taking.
+ * The cost of full quality is kept as a running average of measured times, normalised by the work done so that it can predict the cost of the next frame
+ * or redraw: drag frames per copy of the stroke (frames of a drag paint similar numbers of points, so the average follows the speed of the mouse),
+ * and redraws per copy of each stroke replayed into each tile. Whatever is predicted to take longer
+ * than its threshold is drawn in draft, and the panel redraws the draft tiles at full quality in the background once input is idle.
+ * Draft frames do not measure full quality, so while drafting the estimate decays, and a frame is tried at full quality again once it predicts one would fit,
+ * re-measuring it. Redraws are re-measured by the refinement of the draft tiles. Only used on the EDT
+ * @author Dan
+ *
+ */
+public class QualityGovernor {
+	private static final double SMOOTHING = 0.25; // Weight of each new measurement in the running averages
+	private static final double DECAY = 0.98; // Estimate of the cost of a frame kept after each draft frame, so full quality is tried again (about every 35 frames when twice over)
+
+	private double frameCost = 0; // Average nanoseconds to paint one copy of a frame of a stroke at full quality
+	private double redrawCost = 0; // Average nanoseconds to replay one copy of one stroke into one tile at full quality
+
+	/**
+	 * Decides whether the next frame of a stroke is painted in draft
+	 * @param copies Number of copies of the stroke (one per sector, or two if reflected)
+	 * @return True if painting the frame at full quality is predicted to take longer than DigitalDoily.DRAFT_FRAME_MS
+	 */
+	public boolean draftFrame(int copies){
+		return DigitalDoily.ANTIALIAS && this.frameCost*copies > DigitalDoily.DRAFT_FRAME_MS*1000000;
+	}
+
+	/**
+	 * Records the time taken to paint a frame of a stroke
+	 * @param nanos Time spent painting the frame
+	 * @param copies Number of copies of the stroke
+	 * @param draft Whether the frame was painted in draft, so says nothing about full quality
+	 */
+	public void framePainted(long nanos, int copies, boolean draft){
+		if (draft){
+			this.frameCost *= DECAY;
+		} else {
+			this.frameCost = average(this.frameCost, (double) nanos/copies);
+		}
+	}
+
+	/**
+	 * Decides whether a redraw is drawn in draft. Redraws which refine draft tiles are never drawn in draft
+	 * @param replayed Number of strokes drawn on top of the snapshot the redraw starts from
+	 * @param copies Number of copies of each stroke (the number of sectors)
+	 * @param tiles Number of tiles being drawn
+	 * @return True if the redraw is predicted to take longer than DigitalDoily.DRAFT_REDRAW_MS at full quality
+	 */
+	public boolean draftRedraw(int replayed, int copies, int tiles){
+		return DigitalDoily.ANTIALIAS && this.redrawCost*replayed*copies*tiles > DigitalDoily.DRAFT_REDRAW_MS*1000000;
+	}
+
+	/**
+	 * Records the time taken to draw a redraw in the background
+	 * @param nanos Time spent drawing (not including waiting to start)
+	 * @param replayed Number of strokes drawn on top of the snapshot
+	 * @param copies Number of copies of each stroke
+	 * @param tiles Number of tiles drawn
+	 * @param draft Whether the redraw was drawn in draft, so says nothing about full quality
+	 */
+	public void redrawFinished(long nanos, int replayed, int copies, int tiles, boolean draft){
+		if (!draft && replayed > 0 && tiles > 0){
+			this.redrawCost = average(this.redrawCost, (double) nanos/((long) replayed*copies*tiles));
+		}
+	}
+
+	/**
+	 * @return Running average including a new measurement, which is taken as it is if there have been none before
+	 */
+	private static double average(double average, double measured){
+		return (average == 0) ? measured : average + SMOOTHING*(measured - average);
+	}
+}
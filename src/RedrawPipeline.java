@@ -0,0 +1,245 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Performs full redraws of a DoilyPanel in the background, so that the EDT is never blocked replaying strokes.
+ * Requests are coalesced, so if several arrive while a redraw is running only the latest is drawn, and a redraw which has been
+ * superseded stops as soon as possible. Finished tiles are handed back to the panel on the EDT.
+ * A redraw either replaces tiles whose strokes have changed (e.g. after an undo), which are published all at once so old and new tiles are never shown together,
+ * or fills in tiles which have just become visible by panning or zooming, which are published one at a time as each is finished. A filled tile is still
+ * published if a newer request supersedes its redraw, as long as no replacing redraw has been requested since.
+ * A redraw can be drawn in draft, in which case the panel redraws its tiles again at full quality once input is idle
+ * @author Dan
+ *
+ */
+public class RedrawPipeline {
+	private DoilyPanel panel; // Panel that the tiles are drawn for
+	private boolean progressive; // Whether each tile is published as soon as it is finished
+	private ExecutorService worker; // Single background thread which prepares each redraw
+	private AtomicReference<Job> latest = new AtomicReference<Job>(); // Most recent request which has not been started
+	private volatile long generation = 0; // Number of the most recent request (only changed on the EDT)
+	private long published = 0; // Number of the most recent request to be published (only used on the EDT)
+	private long replaced = 0; // Number of the most recent request which replaces tiles, after which filled tiles from earlier requests are out of date (only used on the EDT)
+	private boolean replacing = false; // Whether a request which replaces tiles has not been published yet (only used on the EDT)
+
+	/**
+	 * Creates a new pipeline for a panel
+	 * @param panel Panel which the tiles are drawn for
+	 * @param progressive Whether tiles are published one at a time as they are finished, rather than all at once
+	 */
+	public RedrawPipeline(DoilyPanel panel, boolean progressive){
+		this.panel = panel;
+		this.progressive = progressive;
+		this.worker = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Doily redraw");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Requests a redraw, cancelling any redraw still in progress. Must be called on the EDT
+	 * @param strokes Snapshot of the strokes to draw
+	 * @param count Number of strokes from the snapshot to draw
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param level Zoom level of the tiles
+	 * @param index Snapshot of the spatial index of the strokes
+	 * @param keys Keys of the tiles to draw, which must include every tile still waiting for an earlier request
+	 * @param cp Snapshot to start from (may be null)
+	 * @param replace Whether the tiles are being replaced because the strokes have changed, rather than being filled in.
+	 * A request which fills in tiles while a replacing request is still waiting also replaces them
+	 * @param draft Whether to draw the strokes in draft rather than at full quality
+	 * @param allowWedge Whether the tiles can be rendered with a wedge. The wedge copies pixels rather than drawing strokes, so its tiles are published as draft
+	 * and redrawn by the refinement, which must not use it
+	 */
+	public void request(StrokeStore strokes, int count, int sectorCount, int level, StrokeIndex index, Collection<Long> keys, CheckpointStore.Checkpoint cp,
+			boolean replace, boolean draft, boolean allowWedge){
+		if (replace){
+			this.replaced = this.generation + 1;
+			this.replacing = true;
+		}
+		this.latest.set(new Job(++this.generation, this.replaced, strokes, count, sectorCount, level, index, keys, cp, this.replacing, draft, allowWedge));
+		this.worker.execute(this::drain);
+	}
+
+	/**
+	 * Returns whether a redraw has been requested but not yet published. Must be called on the EDT
+	 * @return True if the tiles in the panel are out of date
+	 */
+	public boolean isPending(){
+		return this.published != this.generation;
+	}
+
+	/**
+	 * Runs the most recent request, if it has not already been run. Requests made while another was running therefore only redraw once
+	 */
+	private void drain(){
+		Job job = this.latest.getAndSet(null);
+		if (job != null && !job.isCancelled()){
+			this.render(job);
+		}
+	}
+
+	/**
+	 * Draws every tile of a request in parallel, starting each tile from the snapshot if the snapshot contains it.
+	 * If replaying the strokes since the snapshot in every sector would cost more than drawing every stroke into a single wedge, the wedge is drawn instead,
+	 * unless the request does not allow it
+	 * @param job Request to draw
+	 */
+	private void render(Job job){
+		int replayed = job.count - ((job.cp == null) ? 0 : job.cp.getStrokeCount());
+		job.event.strokes = job.count;
+		job.event.replayed = replayed;
+		job.event.tiles = job.keys.size();
+		job.event.draft = job.draft;
+		job.started = System.nanoTime();
+		Rectangle canvas = canvas(job.keys);
+		if (job.allowWedge && canvas != null && WedgeRenderer.isQuicker(replayed, job.count, job.sectorCount) && WedgeRenderer.suits(canvas)){
+			job.event.wedge = true;
+			this.renderWedge(job, canvas);
+			return;
+		}
+		Map<Long, BufferedImage> redrawn = new ConcurrentHashMap<Long, BufferedImage>();
+		DoilyRenderer.renderTiles(job.keys, key -> {
+			if (job.isCancelled()){
+				return;
+			}
+			BufferedImage tile = TileCache.createTile();
+			BufferedImage saved = (job.cp == null) ? null : job.cp.getTiles().get(key);
+			int from = 0;
+			if (saved != null){
+				saved.copyData(tile.getRaster());
+				from = job.cp.getStrokeCount();
+			}
+			DoilyRenderer.paintTile(TileCache.createGraphics(tile, key, job.level), key, job.level, job.strokes, from, job.count, job.index, job.sectorCount, job.draft, job::isCancelled);
+			if (job.isCancelled()){
+				return; // May not have been finished
+			}
+			if (this.progressive || !job.replace){
+				this.publish(job, Collections.singletonMap(key, tile), false, job.draft);
+			} else {
+				redrawn.put(key, tile);
+			}
+		});
+		this.publish(job, redrawn, true, job.draft);
+	}
+
+	/**
+	 * Finds the area covered by a set of tiles
+	 * @return Bounds of all of the tiles in pixels, or null if there are none
+	 */
+	private static Rectangle canvas(Collection<Long> keys){
+		Rectangle canvas = null;
+		for (long key : keys){
+			if (canvas == null){
+				canvas = TileCache.getTileBounds(key);
+			} else {
+				canvas.add(TileCache.getTileBounds(key));
+			}
+		}
+		return canvas;
+	}
+
+	/**
+	 * Draws every stroke of a request into one wedge and copies it into every sector, then splits the result into tiles.
+	 * Copied pixels are looked up from the nearest pixel of the wedge rather than drawn, so the tiles are published as draft, to be redrawn at full quality
+	 * once input is idle and never kept as snapshots
+	 * @param job Request to draw
+	 * @param canvas Area covered by all of the tiles
+	 */
+	private void renderWedge(Job job, Rectangle canvas){
+		Map<Long, BufferedImage> redrawn = new HashMap<Long, BufferedImage>();
+		int[] pixels = WedgeRenderer.render(job.strokes, job.count, job.sectorCount, job.index, canvas, TileCache.scale(job.level), job.draft, job::isCancelled);
+		for (long key : job.keys){
+			BufferedImage tile = TileCache.createTile();
+			Rectangle bounds = TileCache.getTileBounds(key);
+			WedgeRenderer.copy(pixels, canvas, tile, bounds.x, bounds.y);
+			redrawn.put(key, tile);
+		}
+		this.publish(job, redrawn, true, true);
+	}
+
+	/**
+	 * Passes redrawn tiles to the panel on the EDT, unless the request has been superseded in the meantime
+	 * (tiles filled in one at a time are still passed, unless tiles have been replaced since)
+	 * @param job Request the tiles were drawn for
+	 * @param redrawn Redrawn tiles, indexed by key
+	 * @param complete Whether this is the last set of tiles for the request
+	 * @param draft Whether the tiles are not at full quality, so need redrawing once input is idle
+	 */
+	private void publish(Job job, Map<Long, BufferedImage> redrawn, boolean complete, boolean draft){
+		if (complete){
+			job.finished = System.nanoTime();
+		}
+		SwingUtilities.invokeLater(() -> {
+			if (!job.isCancelled()){
+				if (complete){
+					this.published = job.generation; // Before the tiles are handed over, so the panel can take a snapshot once they are all in place
+					this.replacing = false;
+				}
+				this.panel.publishTiles(redrawn, job.count, job.level, draft);
+				if (complete){
+					this.panel.getMetrics().redrawFinished(job.event, System.nanoTime() - job.requested, job.cp != null);
+					this.panel.getQualityGovernor().redrawFinished(job.finished - job.started, job.event.replayed, job.sectorCount, job.keys.size(), draft);
+				}
+			} else if (!complete && !job.replace && job.replaced == this.replaced){
+				this.panel.publishTiles(redrawn, job.count, job.level, draft);
+			}
+		});
+	}
+
+	/**
+	 * A single redraw request
+	 */
+	class Job {
+		private long generation; // Number of this request
+		private long replaced; // Number of the most recent request which replaces tiles, when this one was made
+		private StrokeStore strokes; // Snapshot of the strokes to draw
+		private int count; // Number of strokes from the snapshot to draw
+		private int sectorCount; // Number of sectors to draw in
+		private int level; // Zoom level of the tiles
+		private StrokeIndex index; // Snapshot of the spatial index of the strokes
+		private Collection<Long> keys; // Keys of the tiles to draw
+		private CheckpointStore.Checkpoint cp; // Snapshot to start from (may be null)
+		private boolean replace; // Whether the tiles are published all at once, as they replace tiles which are out of date
+		private boolean draft; // Whether the strokes are drawn in draft
+		private boolean allowWedge; // Whether the tiles can be rendered with a wedge
+		private long requested = System.nanoTime(); // When the redraw was requested
+		private long started, finished; // When drawing started and finished on the background threads, so the time spent waiting is not counted
+		private DoilyMetrics.RedrawEvent event = new DoilyMetrics.RedrawEvent(); // JFR event covering the whole redraw
+
+		Job(long generation, long replaced, StrokeStore strokes, int count, int sectorCount, int level, StrokeIndex index, Collection<Long> keys,
+				CheckpointStore.Checkpoint cp, boolean replace, boolean draft, boolean allowWedge){
+			this.generation = generation;
+			this.replaced = replaced;
+			this.strokes = strokes;
+			this.count = count;
+			this.sectorCount = sectorCount;
+			this.level = level;
+			this.index = index;
+			this.keys = keys;
+			this.cp = cp;
+			this.replace = replace;
+			this.draft = draft;
+			this.allowWedge = allowWedge;
+			this.event.begin();
+		}
+
+		/**
+		 * @return True if a newer request has been made, so this one no longer needs drawing
+		 */
+		boolean isCancelled(){
+			return this.generation != RedrawPipeline.this.generation;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records a drawing session to a compact trace file, so that a stutter seen by a user can be replayed exactly by SessionReplay.
+ * The trace starts with the size of the panel, the view, the settings and the drawing as they were when recording started, followed by every mouse event
+ * the panel receives and every control used, each with the time it happened. Mouse events are recorded as the panel received them (before any frame pacing),
+ * using the time they were created rather than handled, so a replay reproduces the input even if the panel fell behind when it was recorded.
+ * Records are a type byte, the milliseconds since the previous record and their values, mostly as varints, so a drag sample takes around 7 bytes.
+ * Only used on the EDT, except for close()
+ * @author Dan
+ *
+ */
+public class SessionRecorder {
+	public static final String EXTENSION = "trace"; // File extension used for session traces
+	static final int MAGIC = 0x444F5452; // "DOTR" at the start of the trace
+	static final short VERSION = 1; // Version of the format written
+	private static final int BUFFER_SIZE = 64*1024; // Records are written to the file once this many bytes are waiting
+	private static final int MAX_RECORD = 32; // Largest record, other than a drawing being opened
+
+	// Types of record. Mouse events are stored as their ID less MouseEvent.MOUSE_FIRST, so are below MOUSE_TYPES
+	static final int MOUSE_TYPES = 8; // Mouse events from MOUSE_CLICKED (0) to MOUSE_WHEEL (7): modifiers, button, x, y and the wheel rotation
+	public static final int SECTORS = 16; // Number of sectors changed
+	public static final int COLOUR = 17; // Pen colour changed, as ARGB
+	public static final int DIAMETER = 18; // Pen diameter changed
+	public static final int REFLECT = 19; // Reflection turned on (1) or off (0)
+	public static final int SECTOR_LINES = 20; // Sector lines shown (1) or hidden (0)
+	public static final int UNDO = 21; // Undo pressed
+	public static final int REDO = 22; // Redo pressed
+	public static final int CLEAR = 23; // Clear pressed
+	public static final int SAVE = 24; // Drawing saved to the gallery
+	public static final int ZOOM = 25; // View zoomed from the menu, by a number of steps around the centre
+	public static final int RESET_VIEW = 26; // View reset from the menu
+	static final int RESIZE = 27; // Panel resized: width and height
+	static final int OPEN = 28; // Drawing opened from a file: length and the .doily file
+
+	private DoilyPanel panel; // Panel being recorded
+	private FileChannel channel; // Trace file
+	private ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE); // Records waiting to be written
+	private long last; // Time of the previous record, from System.currentTimeMillis()
+	private int lastX, lastY; // Position of the previous mouse event, as positions are stored as the difference from it
+	private boolean failed = false; // Set if the trace cannot be written, after which nothing more is recorded
+	private Listener listener = new Listener(); // Records the mouse events of the panel
+	private ComponentAdapter resizeListener = new ComponentAdapter(){ // Records the panel being resized
+		@Override
+		public void componentResized(ComponentEvent e) {
+			resized();
+		}
+	};
+
+	/**
+	 * Starts recording a panel to a trace file, replacing anything already there. Must be called on the EDT
+	 * @param path File to write the trace to
+	 * @param panel Panel to record
+	 */
+	public SessionRecorder(Path path, DoilyPanel panel) throws IOException{
+		this.panel = panel;
+		this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.last = System.currentTimeMillis();
+
+		DoilyDrawing dd = panel.getDoilyDrawing();
+		byte[] drawing = drawingBytes(new DoilyFile(dd.getStrokes(), dd.getSectorCount()));
+		this.buf.putInt(MAGIC);
+		this.buf.putShort(VERSION);
+		this.buf.putShort((short) 0);
+		this.buf.putLong(this.last);
+		this.buf.putInt(panel.getWidth());
+		this.buf.putInt(panel.getHeight());
+		this.buf.putInt(panel.getZoomLevel());
+		this.buf.putInt(panel.getPanX());
+		this.buf.putInt(panel.getPanY());
+		this.buf.putInt(dd.getColour().getRGB());
+		this.buf.putInt(dd.getDiameter());
+		this.buf.put((byte) (dd.isReflected() ? 1 : 0));
+		this.buf.put((byte) (dd.drawSectorLines() ? 1 : 0));
+		this.buf.putInt(drawing.length);
+		this.writeBytes(drawing);
+
+		panel.addMouseListener(this.listener);
+		panel.addMouseMotionListener(this.listener);
+		panel.addMouseWheelListener(this.listener);
+		panel.addComponentListener(this.resizeListener);
+	}
+
+	/**
+	 * Records a control being used
+	 * @param type Type of the control, e.g. SECTORS
+	 * @param value New value of the control (ignored by controls without one, such as UNDO)
+	 */
+	public synchronized void action(int type, int value){
+		if (!this.start(type, System.currentTimeMillis())){
+			return;
+		}
+		if (type == COLOUR){
+			this.buf.putInt(value);
+		} else {
+			putVarint(this.buf, zigzag(value));
+		}
+	}
+
+	/**
+	 * Records a drawing being opened from a file, including the whole drawing so the trace does not depend on the file
+	 * @param file Drawing which was opened
+	 */
+	public synchronized void opened(DoilyFile file){
+		if (!this.start(OPEN, System.currentTimeMillis())){
+			return;
+		}
+		try {
+			byte[] drawing = drawingBytes(file);
+			putVarint(this.buf, drawing.length);
+			this.writeBytes(drawing);
+		} catch (IOException e){
+			this.fail(e);
+		}
+	}
+
+	/**
+	 * Stops recording and writes any records still waiting to the file. Does nothing if already closed
+	 */
+	public synchronized void close(){
+		if (this.channel == null){
+			return;
+		}
+		this.panel.removeMouseListener(this.listener);
+		this.panel.removeMouseMotionListener(this.listener);
+		this.panel.removeMouseWheelListener(this.listener);
+		this.panel.removeComponentListener(this.resizeListener);
+		try {
+			if (!this.failed){
+				this.flush();
+			}
+			this.channel.close();
+		} catch (IOException e){
+			System.err.println("Unable to finish the session trace: " + e.getMessage());
+		}
+		this.channel = null;
+	}
+
+	/**
+	 * Starts a record, writing out the waiting records first if the buffer is nearly full
+	 * @param type Type of the record
+	 * @param when Time of the record, from System.currentTimeMillis()
+	 * @return False if nothing more can be recorded, as the recorder is closed or has failed
+	 */
+	private boolean start(int type, long when){
+		if (this.channel == null || this.failed){
+			return false;
+		}
+		try {
+			if (this.buf.remaining() < MAX_RECORD){
+				this.flush();
+			}
+		} catch (IOException e){
+			this.fail(e);
+			return false;
+		}
+		this.buf.put((byte) type);
+		putVarint(this.buf, zigzag((int) (when - this.last))); // Events can be handled slightly out of order with controls
+		this.last = when;
+		return true;
+	}
+
+	/**
+	 * Records a mouse event
+	 */
+	private synchronized void mouse(MouseEvent e){
+		if (!this.start(e.getID() - MouseEvent.MOUSE_FIRST, e.getWhen())){
+			return;
+		}
+		putVarint(this.buf, e.getModifiersEx());
+		this.buf.put((byte) e.getButton());
+		putVarint(this.buf, zigzag(e.getX() - this.lastX));
+		putVarint(this.buf, zigzag(e.getY() - this.lastY));
+		this.lastX = e.getX();
+		this.lastY = e.getY();
+		if (e instanceof MouseWheelEvent){
+			putVarint(this.buf, zigzag(((MouseWheelEvent) e).getWheelRotation()));
+		}
+	}
+
+	/**
+	 * Records the panel being resized, as mouse positions are relative to its centre
+	 */
+	private synchronized void resized(){
+		if (this.start(RESIZE, System.currentTimeMillis())){
+			putVarint(this.buf, this.panel.getWidth());
+			putVarint(this.buf, this.panel.getHeight());
+		}
+	}
+
+	/**
+	 * Writes bytes after the records waiting in the buffer, going straight to the file if they do not fit
+	 */
+	private void writeBytes(byte[] bytes) throws IOException{
+		if (bytes.length <= this.buf.remaining()){
+			this.buf.put(bytes);
+			return;
+		}
+		this.flush();
+		ByteBuffer direct = ByteBuffer.wrap(bytes);
+		while (direct.hasRemaining()){
+			this.channel.write(direct);
+		}
+	}
+
+	/**
+	 * Writes the waiting records to the file
+	 */
+	private void flush() throws IOException{
+		this.buf.flip();
+		while (this.buf.hasRemaining()){
+			this.channel.write(this.buf);
+		}
+		this.buf.clear();
+	}
+
+	/**
+	 * Stops recording after the trace could not be written. The application carries on, only the trace is lost
+	 */
+	private void fail(IOException e){
+		this.failed = true;
+		System.err.println("Unable to write the session trace, recording has stopped: " + e.getMessage());
+	}
+
+	/**
+	 * @return A drawing in the .doily format
+	 */
+	private static byte[] drawingBytes(DoilyFile file) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		file.write(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes an unsigned value using 7 bits per byte, with the top bit set on every byte except the last
+	 */
+	private static void putVarint(ByteBuffer buf, int value){
+		while ((value & ~0x7F) != 0){
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Reads a value written by putVarint
+	 */
+	static int getVarint(ByteBuffer buf){
+		int value = 0;
+		for (int shift = 0; ; shift += 7){
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Maps signed values to unsigned ones so that small negative values also encode in few bytes
+	 */
+	private static int zigzag(int value){
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Reverses zigzag()
+	 */
+	static int unzigzag(int value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Records every mouse event the panel receives
+	 */
+	class Listener extends MouseAdapter {
+		@Override
+		public void mousePressed(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseReleased(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseEntered(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseExited(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseDragged(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseMoved(MouseEvent e) {
+			mouse(e);
+		}
+
+		@Override
+		public void mouseWheelMoved(MouseWheelEvent e) {
+			mouse(e);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * Headless command line tool which replays a session recorded by SessionRecorder through a real DoilyPanel, so that a stutter seen by a user becomes
+ * a repeatable performance test. Mouse events are dispatched to the panel as if they had come from the screen and controls are applied to its drawing,
+ * either as fast as possible or in time with the trace. A frame of the whole panel is painted at the end of every frame interval of the trace in which
+ * something happened, as the screen would, so frame times and the latency from each event to its pixels are measured by the panel's DoilyMetrics just as they are live.
+ * Each iteration replays the trace into a new panel and prints its timings and a checksum of the finished drawing, which is the same for every
+ * replay of the same trace. Run with e.g. java -Djava.awt.headless=true SessionReplay trace=session.trace speed=0 iterations=5
+ * @author Dan
+ *
+ */
+public class SessionReplay {
+	// Default parameters, which can be changed on the command line
+	private static String trace = null; // Trace to replay
+	private static double speed = 0; // Multiple of the recorded speed to replay at (1 for real time), or 0 to replay as fast as possible
+	private static int iterations = 1; // Number of times to replay the trace
+	private static String image = null; // PNG to write the panel to once the last replay has finished (optional)
+
+	/**
+	 * Replays the trace given on the command line
+	 * @param args Parameters in the form name=value
+	 */
+	public static void main(String[] args) throws Exception{
+		System.setProperty("java.awt.headless", "true");
+		for (String arg : args){
+			String[] kv = arg.split("=", 2);
+			switch (kv[0]){
+				case "trace": trace = kv[1]; break;
+				case "speed": speed = Double.parseDouble(kv[1]); break;
+				case "iterations": iterations = Integer.parseInt(kv[1]); break;
+				case "image": image = kv[1]; break;
+				default: throw new IllegalArgumentException("Unknown parameter " + kv[0]);
+			}
+		}
+		if (trace == null){
+			throw new IllegalArgumentException("No trace given, use trace=file." + SessionRecorder.EXTENSION);
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(trace)));
+
+		System.out.printf("%-9s %8s %7s %9s %10s %10s %10s %10s %10s %8s %8s %10s%n", "iteration", "events", "frames", "seconds",
+				"event p50", "event p99", "frame p50", "frame p99", "stroke p99", "redraws", "strokes", "checksum");
+		long checksum = -1;
+		boolean consistent = true;
+		for (int i = 0; i < iterations; i++){
+			Replay replay = new Replay(bytes.duplicate());
+			replay.run();
+			DoilyMetrics m = replay.dp.getMetrics();
+			System.out.printf("%-9d %8d %7d %9.2f %10.2f %10.2f %10.2f %10.2f %10.2f %8d %8d %10s%n", i + 1, replay.events, replay.frames,
+					replay.nanos/1e9, m.getEventLatencyP50(), m.getEventLatencyP99(), m.getFrameP50(), m.getFrameP99(), m.getPaintStrokeP99(),
+					m.getRedrawCount(), m.getStrokeCount(), Long.toHexString(replay.checksum));
+			consistent &= (checksum < 0 || checksum == replay.checksum);
+			checksum = replay.checksum;
+			if (image != null && i == iterations - 1){
+				BufferedImage[] snapshot = new BufferedImage[1];
+				SwingUtilities.invokeAndWait(() -> snapshot[0] = replay.dp.snapshotImage());
+				ImageIO.write(snapshot[0], "png", Paths.get(image).toFile());
+			}
+		}
+		if (!consistent){
+			System.err.println("Replays of the same trace finished with different drawings");
+		}
+		System.exit(consistent ? 0 : 1); // Also stops the background redraw threads
+	}
+
+	/**
+	 * A single replay of a trace into a new panel
+	 */
+	static class Replay {
+		private ByteBuffer buf; // Trace being replayed
+		private DoilyPanel dp; // Panel the trace is replayed into
+		private GalleryScrollPanel gp; // Gallery the drawing is saved to
+		private BufferedImage screen; // Frames of the panel are painted into this, as they would be to the screen
+		private int frameInterval = 1000/DigitalDoily.DEFAULT_REFRESH_RATE; // Milliseconds of the trace between frames
+		private int lastX, lastY; // Position of the previous mouse event, as positions are stored as the difference from it
+		private int events = 0; // Records replayed
+		private int frames = 0; // Frames painted
+		private long nanos; // Time taken to replay the trace, including waiting for the last redraw
+		private long checksum; // CRC of the finished drawing
+
+		Replay(ByteBuffer buf){
+			this.buf = buf;
+		}
+
+		/**
+		 * Sets up a panel as it was when the trace was recorded, then replays every record
+		 */
+		void run() throws Exception{
+			if (this.buf.remaining() < 50 || this.buf.getInt() != SessionRecorder.MAGIC || this.buf.getShort() != SessionRecorder.VERSION){
+				throw new IOException("Not a session trace");
+			}
+			this.buf.getShort();
+			this.buf.getLong(); // When recording started
+			int width = this.buf.getInt(), height = this.buf.getInt();
+			int level = this.buf.getInt(), panX = this.buf.getInt(), panY = this.buf.getInt();
+			Color colour = new Color(this.buf.getInt(), true);
+			int diameter = this.buf.getInt();
+			boolean reflect = this.buf.get() != 0, sectorLines = this.buf.get() != 0;
+			DoilyFile file = this.readDrawing(this.buf.getInt());
+			SwingUtilities.invokeAndWait(() -> {
+				this.dp = new DoilyPanel();
+				this.gp = new GalleryScrollPanel();
+				this.gp.setSize(220, 700);
+				this.resize(width, height);
+				DoilyDrawing dd = this.dp.getDoilyDrawing();
+				dd.setSectorLineVisible(sectorLines);
+				dd.restore(file.getStrokes(), new DrawingHistory(DigitalDoily.HISTORY_MEMORY_BUDGET), file.getSectorCount(), colour, diameter, reflect);
+				this.dp.zoom(level, 0, 0);
+				this.dp.pan(panX, panY);
+			});
+			this.waitForRedraw();
+			SwingUtilities.invokeAndWait(() -> this.dp.getMetrics().reset()); // Only the replay itself is measured
+			this.frames = 0;
+
+			long start = System.nanoTime();
+			long recorded = 0, time = 0, nextFrame = this.frameInterval; // Milliseconds into the trace
+			boolean changed = false; // Whether anything has happened since the last frame
+			while (this.buf.hasRemaining()){
+				int type = this.buf.get();
+				recorded += SessionRecorder.unzigzag(SessionRecorder.getVarint(this.buf));
+				time = Math.max(time, recorded); // Records slightly out of order are replayed together
+				if (time >= nextFrame){
+					if (changed){
+						this.waitUntil(start, nextFrame);
+						this.paintFrame();
+						changed = false;
+					}
+					nextFrame = (time/this.frameInterval + 1)*this.frameInterval;
+				}
+				Runnable record = this.read(type);
+				this.waitUntil(start, time);
+				SwingUtilities.invokeAndWait(record);
+				this.events++;
+				changed = true;
+			}
+			this.paintFrame();
+			this.waitForRedraw();
+			this.nanos = System.nanoTime() - start;
+			SwingUtilities.invokeAndWait(this.dp::refineNow); // Anything drawn in draft is finished at full quality, so the image does not depend on timing
+			this.waitForRedraw();
+
+			SwingUtilities.invokeAndWait(() -> {
+				DoilyDrawing dd = this.dp.getDoilyDrawing();
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try {
+					new DoilyFile(dd.getStrokes(), dd.getSectorCount()).write(Channels.newChannel(out));
+				} catch (IOException e){
+					throw new RuntimeException(e); // Cannot happen when writing to memory
+				}
+				CRC32 crc = new CRC32();
+				crc.update(out.toByteArray());
+				this.checksum = crc.getValue();
+			});
+		}
+
+		/**
+		 * Reads the next record, returning what it does so that it can be run on the EDT
+		 * @param type Type of the record, which has already been read along with its time
+		 */
+		private Runnable read(int type) throws IOException{
+			DoilyDrawing dd = this.dp.getDoilyDrawing();
+			if (type >= 0 && type < SessionRecorder.MOUSE_TYPES){
+				int modifiers = SessionRecorder.getVarint(this.buf);
+				int button = this.buf.get();
+				this.lastX += SessionRecorder.unzigzag(SessionRecorder.getVarint(this.buf));
+				this.lastY += SessionRecorder.unzigzag(SessionRecorder.getVarint(this.buf));
+				int id = MouseEvent.MOUSE_FIRST + type, x = this.lastX, y = this.lastY;
+				int clicks = (id == MouseEvent.MOUSE_PRESSED || id == MouseEvent.MOUSE_RELEASED || id == MouseEvent.MOUSE_CLICKED) ? 1 : 0;
+				if (id == MouseEvent.MOUSE_WHEEL){
+					int rotation = SessionRecorder.unzigzag(SessionRecorder.getVarint(this.buf));
+					return () -> this.dp.dispatchEvent(new MouseWheelEvent(this.dp, id, System.currentTimeMillis(), modifiers, x, y, 0, false,
+							MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, rotation));
+				}
+				// Created as it is dispatched, so the latency is measured from when the replay sent it
+				return () -> this.dp.dispatchEvent(new MouseEvent(this.dp, id, System.currentTimeMillis(), modifiers, x, y, clicks, false, button));
+			}
+			if (type == SessionRecorder.RESIZE){
+				int width = SessionRecorder.getVarint(this.buf), height = SessionRecorder.getVarint(this.buf);
+				return () -> this.resize(width, height);
+			}
+			if (type == SessionRecorder.OPEN){
+				DoilyFile file = this.readDrawing(SessionRecorder.getVarint(this.buf));
+				return () -> dd.load(file);
+			}
+			int value = (type == SessionRecorder.COLOUR) ? this.buf.getInt() : SessionRecorder.unzigzag(SessionRecorder.getVarint(this.buf));
+			switch (type){
+				case SessionRecorder.SECTORS: return () -> dd.setSectorCount(value);
+				case SessionRecorder.COLOUR: return () -> dd.setColour(new Color(value, true));
+				case SessionRecorder.DIAMETER: return () -> dd.setDiameter(value);
+				case SessionRecorder.REFLECT: return () -> dd.setReflect(value != 0);
+				case SessionRecorder.SECTOR_LINES: return () -> dd.setSectorLineVisible(value != 0);
+				case SessionRecorder.UNDO: return dd::undo;
+				case SessionRecorder.REDO: return dd::redo;
+				case SessionRecorder.CLEAR: return dd::clear;
+				case SessionRecorder.SAVE: return () -> this.gp.saveToGallery(this.dp);
+				case SessionRecorder.ZOOM: return () -> this.dp.zoom(value, 0, 0);
+				case SessionRecorder.RESET_VIEW: return this.dp::resetView;
+				default: throw new IOException("Corrupt session trace, unknown record type " + type);
+			}
+		}
+
+		/**
+		 * Reads a drawing in the .doily format from the trace
+		 * @param length Length of the drawing in bytes
+		 */
+		private DoilyFile readDrawing(int length) throws IOException{
+			byte[] drawing = new byte[length];
+			this.buf.get(drawing);
+			return DoilyFile.read(Channels.newChannel(new ByteArrayInputStream(drawing)));
+		}
+
+		/**
+		 * Resizes the panel, then paints it so that it knows where its centre is, as it would be after being resized on screen. Must be called on the EDT
+		 */
+		private void resize(int width, int height){
+			this.dp.setSize(width, height);
+			this.dp.init();
+			this.screen = new BufferedImage(Math.max(width, 1), Math.max(height, 1), BufferedImage.TYPE_INT_RGB);
+			Graphics g = this.screen.getGraphics();
+			this.dp.paint(g);
+			g.dispose();
+		}
+
+		/**
+		 * Draws the drag samples waiting for this frame and paints the whole panel, as the screen would once per frame
+		 */
+		private void paintFrame() throws Exception{
+			SwingUtilities.invokeAndWait(() -> {
+				this.dp.flushInput();
+				Graphics g = this.screen.getGraphics();
+				this.dp.paint(g);
+				g.dispose();
+			});
+			this.frames++;
+		}
+
+		/**
+		 * Waits until a time in the trace is due, when replaying in time with the trace
+		 * @param start When the replay started, from System.nanoTime()
+		 * @param time Milliseconds into the trace
+		 */
+		private void waitUntil(long start, long time) throws InterruptedException{
+			if (speed <= 0){
+				return;
+			}
+			long wait = start + (long) (time*1e6/speed) - System.nanoTime();
+			if (wait > 0){
+				Thread.sleep(wait/1000000, (int) (wait%1000000));
+			}
+		}
+
+		/**
+		 * Waits until the background redraw of the panel has been published
+		 */
+		private void waitForRedraw() throws Exception{
+			boolean[] pending = {true};
+			while (pending[0]){
+				SwingUtilities.invokeAndWait(() -> pending[0] = this.dp.isRedrawPending());
+				if (pending[0]){
+					Thread.sleep(1);
+				}
+			}
+		}
+	}
+}
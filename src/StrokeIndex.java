@@ -0,0 +1,296 @@
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uniform grid over the drawing which records, for each tile of the tile cache, the strokes that have a copy (in any sector, reflected or not)
+ * overlapping it. Redrawing a region therefore only needs to look at the strokes in its tiles rather than every stroke in the drawing.
+ * The index is brought up to date by sync(), which only processes what has changed since it was last called: new points of the last stroke,
+ * new strokes, or strokes removed by undo. Like the snapshots in CheckpointStore, it relies on sync() being called after every undo
+ * (which redrawImage() does) so that removed strokes are noticed before new ones take their place
+ * @author Dan
+ *
+ */
+public class StrokeIndex {
+	private static final int INITIAL_STROKES = 64; // Starting capacity of the stroke bounds
+
+	private StrokeStore strokes; // Store of strokes that is indexed (null until first synced)
+	private int sectorCount; // Number of sectors the strokes are drawn in
+	private float[] bounds = new float[INITIAL_STROKES*4]; // Bounds of the points of each stroke as minX, minY, maxX, maxY
+	private int count = 0; // Number of strokes indexed
+	private int lastPoints = 0; // Number of points of the last stroke which have been indexed
+	private HashMap<Long, Cell> cells = new HashMap<Long, Cell>(); // Strokes overlapping each tile, indexed by tile key
+	private boolean frozen = false; // Snapshots cannot be changed
+	private Rectangle2D[][] copies; // Bounds of the copies of each stroke, calculated when first needed (only used by snapshots, as their bounds cannot change)
+	private boolean shared = false; // Whether snapshots share the bounds and cells, so they must be copied before strokes are removed
+
+	/**
+	 * Creates a new empty index
+	 */
+	public StrokeIndex(){
+	}
+
+	/**
+	 * Creates a read only snapshot of another index
+	 */
+	private StrokeIndex(StrokeIndex source){
+		this.strokes = source.strokes == null ? null : source.strokes.snapshot();
+		this.sectorCount = source.sectorCount;
+		this.bounds = source.bounds;
+		this.count = source.count;
+		for (Map.Entry<Long, Cell> e : source.cells.entrySet()){
+			this.cells.put(e.getKey(), new Cell(e.getValue()));
+		}
+		this.copies = new Rectangle2D[this.count][];
+		this.frozen = true;
+		source.shared = true;
+	}
+
+	/**
+	 * Creates a read only snapshot of the index, which can be used by another thread while this index continues to be updated.
+	 * Takes time proportional to the number of tiles, not strokes. As with StrokeStore.snapshot(), the arrays are shared until this index would write
+	 * over something the snapshot can see, which only happens when strokes are removed
+	 * @return Snapshot of the index as it currently is
+	 */
+	public StrokeIndex snapshot(){
+		return new StrokeIndex(this);
+	}
+
+	/**
+	 * Brings the index up to date with a store of strokes, only processing what has changed since the last call
+	 * @param strokes Store of strokes to index
+	 * @param sectorCount Number of sectors the strokes are drawn in
+	 */
+	public void sync(StrokeStore strokes, int sectorCount){
+		if (this.frozen){
+			throw new IllegalStateException("Snapshots of a StrokeIndex cannot be changed");
+		}
+		if (strokes != this.strokes || sectorCount != this.sectorCount){
+			// A different drawing or sector count moves every copy, so the index is rebuilt
+			this.strokes = strokes;
+			this.sectorCount = sectorCount;
+			this.count = 0;
+			this.cells.clear();
+			if (this.shared){
+				this.bounds = new float[this.bounds.length]; // Snapshots keep the old bounds
+				this.shared = false;
+			}
+		}
+		if (strokes.size() < this.count){
+			this.truncate(strokes.size());
+		}
+		if (this.count > 0){
+			this.extend(this.count-1);
+		}
+		while (this.count < strokes.size()){
+			if (this.count*4 == this.bounds.length){
+				this.bounds = Arrays.copyOf(this.bounds, this.bounds.length*2);
+			}
+			this.lastPoints = 0;
+			this.count++;
+			this.extend(this.count-1);
+		}
+	}
+
+	/**
+	 * Finds the strokes in a range which have a copy overlapping a tile
+	 * @param key Key of the tile
+	 * @param from Index of the first stroke to include
+	 * @param to Index after the last stroke to include
+	 * @return Indexes of the strokes, in the order they were drawn
+	 */
+	public int[] query(long key, int from, int to){
+		Cell cell = this.cells.get(key);
+		if (cell == null){
+			return new int[0];
+		}
+		int lo = lowerBound(cell.items, cell.size, from);
+		int hi = lowerBound(cell.items, cell.size, to);
+		return Arrays.copyOfRange(cell.items, lo, Math.max(lo, hi));
+	}
+
+	/**
+	 * Finds the strokes in a range which may have a copy overlapping an area, e.g. a tile at another zoom level.
+	 * An area inside a single tile (as when zoomed in) is as quick as query(), a larger one merges the strokes of every tile it overlaps
+	 * @param area Area in units of the drawing, relative to the centre
+	 * @param from Index of the first stroke to include
+	 * @param to Index after the last stroke to include
+	 * @return Indexes of the strokes, in the order they were drawn
+	 */
+	public int[] query(Rectangle2D area, int from, int to){
+		int minTX = (int) Math.floor(area.getMinX()/TileCache.TILE_SIZE), maxTX = (int) Math.ceil(area.getMaxX()/TileCache.TILE_SIZE)-1;
+		int minTY = (int) Math.floor(area.getMinY()/TileCache.TILE_SIZE), maxTY = (int) Math.ceil(area.getMaxY()/TileCache.TILE_SIZE)-1;
+		if (minTX >= maxTX && minTY >= maxTY){
+			return this.query(TileCache.key(minTX, minTY), from, to);
+		}
+		int[] merged = new int[0];
+		int size = 0;
+		for (int tx = minTX; tx <= maxTX; tx++){
+			for (int ty = minTY; ty <= maxTY; ty++){
+				int[] strokes = this.query(TileCache.key(tx, ty), from, to);
+				if (size + strokes.length > merged.length){
+					merged = Arrays.copyOf(merged, Math.max(merged.length*2, size + strokes.length));
+				}
+				System.arraycopy(strokes, 0, merged, size, strokes.length);
+				size += strokes.length;
+			}
+		}
+
+		// Sorts back into the order they were drawn, removing strokes which overlap more than one tile
+		Arrays.sort(merged, 0, size);
+		int unique = 0;
+		for (int i = 0; i < size; i++){
+			if (unique == 0 || merged[i] != merged[unique-1]){
+				merged[unique++] = merged[i];
+			}
+		}
+		return Arrays.copyOf(merged, unique);
+	}
+
+	/**
+	 * Calculates the bounds of each copy of a stroke from its indexed bounds, without looking at its points.
+	 * Snapshots only calculate them once per stroke, however many tiles the stroke is drawn in. Different threads may calculate the same bounds at once,
+	 * but as the result is always the same this does no harm
+	 * @param stroke Index of the stroke
+	 * @return Bounds of each copy, in the same order as DoilyRenderer.copyBounds
+	 */
+	public Rectangle2D[] copyBounds(int stroke){
+		if (this.copies != null){
+			Rectangle2D[] cached = this.copies[stroke];
+			if (cached == null){
+				cached = this.calculateCopyBounds(stroke);
+				this.copies[stroke] = cached;
+			}
+			return cached;
+		}
+		return this.calculateCopyBounds(stroke);
+	}
+
+	/**
+	 * Calculates the bounds of each copy of a stroke, see copyBounds()
+	 */
+	private Rectangle2D[] calculateCopyBounds(int stroke){
+		Rectangle2D.Float b = new Rectangle2D.Float(this.bounds[stroke*4], this.bounds[stroke*4+1],
+				this.bounds[stroke*4+2] - this.bounds[stroke*4], this.bounds[stroke*4+3] - this.bounds[stroke*4+1]);
+		return DoilyRenderer.copyBounds(b, this.strokes.getDiameter(stroke), this.strokes.isReflected(stroke), this.sectorCount);
+	}
+
+	/**
+	 * Adds the points of a stroke which have not been indexed yet. Only the area covered by the new points (joined to the last indexed point)
+	 * is added to the grid, so the cost of each new point does not depend on the length of the stroke
+	 */
+	private void extend(int stroke){
+		int points = this.strokes.getPointCount(stroke);
+		if (points <= this.lastPoints){
+			this.lastPoints = points; // Points may have been removed by simplifying, which can only shrink the stroke
+			return;
+		}
+		int start = this.strokes.getStart(stroke);
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i = start + Math.max(this.lastPoints-1, 0); i < start+points; i++){
+			minX = Math.min(minX, this.strokes.getX(i));
+			minY = Math.min(minY, this.strokes.getY(i));
+			maxX = Math.max(maxX, this.strokes.getX(i));
+			maxY = Math.max(maxY, this.strokes.getY(i));
+		}
+
+		// Grows the bounds of the whole stroke
+		int b = stroke*4;
+		if (this.lastPoints == 0){
+			this.bounds[b] = minX;
+			this.bounds[b+1] = minY;
+			this.bounds[b+2] = maxX;
+			this.bounds[b+3] = maxY;
+		} else {
+			this.bounds[b] = Math.min(this.bounds[b], minX);
+			this.bounds[b+1] = Math.min(this.bounds[b+1], minY);
+			this.bounds[b+2] = Math.max(this.bounds[b+2], maxX);
+			this.bounds[b+3] = Math.max(this.bounds[b+3], maxY);
+		}
+		this.lastPoints = points;
+
+		// Adds the stroke to every tile overlapped by a copy of the new points
+		Rectangle2D.Float added = new Rectangle2D.Float(minX, minY, maxX-minX, maxY-minY);
+		for (Rectangle2D copy : DoilyRenderer.copyBounds(added, this.strokes.getDiameter(stroke), this.strokes.isReflected(stroke), this.sectorCount)){
+			int minTX = (int) Math.floor(copy.getMinX()/TileCache.TILE_SIZE), maxTX = (int) Math.floor(copy.getMaxX()/TileCache.TILE_SIZE);
+			int minTY = (int) Math.floor(copy.getMinY()/TileCache.TILE_SIZE), maxTY = (int) Math.floor(copy.getMaxY()/TileCache.TILE_SIZE);
+			for (int tx = minTX; tx <= maxTX; tx++){
+				for (int ty = minTY; ty <= maxTY; ty++){
+					this.cells.computeIfAbsent(TileCache.key(tx, ty), k -> new Cell()).add(stroke);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes strokes from the end of the index, e.g. after an undo. As strokes are added in order they are always at the end of each cell
+	 * @param size Number of strokes to keep
+	 */
+	private void truncate(int size){
+		if (this.shared){
+			// Later strokes will be written where the removed ones were, so snapshots are given the old arrays
+			this.bounds = this.bounds.clone();
+			for (Cell cell : this.cells.values()){
+				cell.items = cell.items.clone();
+			}
+			this.shared = false;
+		}
+		for (Cell cell : this.cells.values()){
+			while (cell.size > 0 && cell.items[cell.size-1] >= size){
+				cell.size--;
+			}
+		}
+		this.count = size;
+		this.lastPoints = (size == 0) ? 0 : this.strokes.getPointCount(size-1); // Earlier strokes are already fully indexed
+	}
+
+	/**
+	 * @return Position of the first item in a sorted array which is at least the given value
+	 */
+	private static int lowerBound(int[] items, int size, int value){
+		int lo = 0, hi = size;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (items[mid] < value){
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Indexes of the strokes overlapping a single tile, in increasing order
+	 */
+	static class Cell {
+		private int[] items; // Stroke indexes
+		private int size; // Number of indexes in use
+
+		Cell(){
+			this.items = new int[8];
+		}
+
+		/**
+		 * Creates a copy sharing the array of another cell, which is safe as new indexes are only ever appended
+		 */
+		Cell(Cell source){
+			this.items = source.items;
+			this.size = source.size;
+		}
+
+		/**
+		 * Adds a stroke, unless it is already the last stroke in the cell
+		 */
+		void add(int stroke){
+			if (this.size > 0 && this.items[this.size-1] == stroke){
+				return;
+			}
+			if (this.size == this.items.length){
+				this.items = Arrays.copyOf(this.items, this.size*2);
+			}
+			this.items[this.size++] = stroke;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Reduces the number of points in a stroke once it has been drawn, using the Ramer-Douglas-Peucker algorithm.
+ * Any point which lies within the tolerance of the line between the points kept either side of it is removed, so near-colinear
+ * and sub-pixel points from high polling rate mice are not stored or redrawn, without any visible change to the stroke.
+ * The tolerance is in pixels on screen, so it is divided by the scale the stroke is drawn at to give a distance in units of the drawing.
+ * Also keeps a count of the points received and kept so the reduction can be reported
+ * @author Dan
+ *
+ */
+public class StrokeSimplifier {
+	private double tolerance; // Maximum distance in pixels on screen that a removed point may be from the simplified stroke
+	private long pointsIn = 0; // Total number of points given to the simplifier
+	private long pointsKept = 0; // Total number of points kept after simplifying
+	private int[] stack = new int[64]; // Reused stack of ranges still to be checked
+
+	/**
+	 * Creates a new simplifier
+	 * @param tolerance Maximum distance in pixels on screen that a removed point may be from the simplified stroke (0 disables simplification)
+	 */
+	public StrokeSimplifier(double tolerance){
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return Maximum distance in pixels on screen that a removed point may be from the simplified stroke
+	 */
+	public double getTolerance(){
+		return this.tolerance;
+	}
+
+	/**
+	 * Returns whether a new point is too close to the previous point in the stroke to be worth storing. If so, it is counted as a removed point
+	 * @param lastX X co-ordinate of the previous point
+	 * @param lastY Y co-ordinate of the previous point
+	 * @param x X co-ordinate of the new point
+	 * @param y Y co-ordinate of the new point
+	 * @param scale Pixels per unit of the drawing that the stroke is being drawn at
+	 * @return True if the point can be dropped
+	 */
+	public boolean isRedundant(double lastX, double lastY, double x, double y, double scale){
+		double dx = x - lastX, dy = y - lastY;
+		double tolerance = this.tolerance/scale;
+		if (dx*dx + dy*dy < tolerance*tolerance){
+			this.pointsIn++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Simplifies the points of a stroke in place. Kept points are moved to the front of the range, in order
+	 * @param xs X co-ordinates of the points
+	 * @param ys Y co-ordinates of the points
+	 * @param start Index of the first point of the stroke
+	 * @param end Index after the last point of the stroke
+	 * @param scale Pixels per unit of the drawing that the stroke was drawn at
+	 * @return Number of points kept
+	 */
+	public int simplify(float[] xs, float[] ys, int start, int end, double scale){
+		int count = end - start;
+		this.pointsIn += count;
+		if (count <= 2 || this.tolerance <= 0){
+			this.pointsKept += count;
+			return count;
+		}
+
+		// Marks the points to keep, checking each range between two kept points for the point furthest from the line between them
+		boolean[] keep = new boolean[count];
+		keep[0] = true;
+		keep[count-1] = true;
+		int top = 0;
+		this.push(top++, 0);
+		this.push(top++, count-1);
+		double tolSq = (this.tolerance/scale)*(this.tolerance/scale);
+		while (top > 0){
+			int last = this.stack[--top];
+			int first = this.stack[--top];
+			double ax = xs[start+first], ay = ys[start+first];
+			double dx = xs[start+last] - ax, dy = ys[start+last] - ay;
+			double lenSq = dx*dx + dy*dy;
+			double maxDist = -1;
+			int furthest = -1;
+			for (int i = first+1; i < last; i++){
+				double px = xs[start+i] - ax, py = ys[start+i] - ay;
+				double dist; // Squared distance from the point to the line segment
+				if (lenSq == 0){
+					dist = px*px + py*py;
+				} else {
+					double t = Math.max(0, Math.min(1, (px*dx + py*dy)/lenSq));
+					double ex = px - t*dx, ey = py - t*dy;
+					dist = ex*ex + ey*ey;
+				}
+				if (dist > maxDist){
+					maxDist = dist;
+					furthest = i;
+				}
+			}
+			if (maxDist > tolSq){
+				keep[furthest] = true;
+				this.push(top++, first);
+				this.push(top++, furthest);
+				this.push(top++, furthest);
+				this.push(top++, last);
+			}
+		}
+
+		// Moves the kept points to the front of the range
+		int kept = 0;
+		for (int i = 0; i < count; i++){
+			if (keep[i]){
+				xs[start+kept] = xs[start+i];
+				ys[start+kept] = ys[start+i];
+				kept++;
+			}
+		}
+		this.pointsKept += kept;
+		return kept;
+	}
+
+	/**
+	 * Returns the proportion of points that have been removed by the simplifier so far
+	 * @return Ratio of points removed to points received, between 0 and 1
+	 */
+	public double getReductionRatio(){
+		return this.pointsIn == 0 ? 0 : 1 - (double) this.pointsKept/this.pointsIn;
+	}
+
+	/**
+	 * @return Total number of points received
+	 */
+	public long getPointsIn(){
+		return this.pointsIn;
+	}
+
+	/**
+	 * @return Total number of points kept
+	 */
+	public long getPointsKept(){
+		return this.pointsKept;
+	}
+
+	/**
+	 * Pushes a value onto the range stack, growing it if necessary
+	 */
+	private void push(int index, int value){
+		if (index == this.stack.length){
+			this.stack = Arrays.copyOf(this.stack, this.stack.length*2);
+		}
+		this.stack[index] = value;
+	}
+}
@@ -0,0 +1,480 @@
+import java.awt.geom.Rectangle2D;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores all of the strokes in a drawing using arrays of primitives rather than an object per stroke.
+ * The points of every stroke are held one after another in a single pair of float arrays, and each stroke records the index of its
+ * first point along with its colour (packed ARGB), diameter and whether it is reflected. DrawStroke objects are only lightweight views onto this store.
+ * Snapshots share the arrays rather than copying them, and the arrays are only copied if a point or stroke a snapshot can see is about to be written over.
+ * Strokes removed by removeLast() are left in the arrays until something else is written, so that restoreLast() can bring them back without copying
+ * @author Dan
+ *
+ */
+public class StrokeStore {
+	private static final int INITIAL_POINTS = 1024; // Starting capacity of the point arrays
+	private static final int INITIAL_STROKES = 64; // Starting capacity of the stroke arrays
+	private static final int REFLECT_FLAG = 0x80; // Top bit of the pen byte marks a reflected stroke
+
+	private float[] xs, ys; // Co-ordinates of every point, relative to the centre of the drawing
+	private int pointCount = 0; // Number of points in use
+	private int[] starts; // Index of the first point of each stroke
+	private int[] colours; // Colour of each stroke as packed ARGB
+	private byte[] pens; // Diameter of each stroke in the low 7 bits, with REFLECT_FLAG set if it is reflected
+	private int strokeCount = 0; // Number of strokes in use
+	private boolean frozen = false; // Snapshots cannot be changed
+	private int sharedPoints = 0, sharedStrokes = 0; // Points and strokes which snapshots can see, so the arrays are copied before they are written over
+	private int undoneStrokes = 0; // Strokes removed by removeLast() which are still in the arrays and can be restored
+	private int undonePoints = 0; // Number of points before the first of the undone strokes was removed
+
+	/**
+	 * Creates a new empty store
+	 */
+	public StrokeStore(){
+		this.xs = new float[INITIAL_POINTS];
+		this.ys = new float[INITIAL_POINTS];
+		this.starts = new int[INITIAL_STROKES];
+		this.colours = new int[INITIAL_STROKES];
+		this.pens = new byte[INITIAL_STROKES];
+	}
+
+	/**
+	 * Creates a new empty store with room for a known number of strokes and points, e.g. when loading a drawing
+	 * @param strokeCapacity Number of strokes to allocate room for
+	 * @param pointCapacity Number of points to allocate room for
+	 */
+	public StrokeStore(int strokeCapacity, int pointCapacity){
+		this.xs = new float[Math.max(pointCapacity, INITIAL_POINTS)];
+		this.ys = new float[this.xs.length];
+		this.starts = new int[Math.max(strokeCapacity, INITIAL_STROKES)];
+		this.colours = new int[this.starts.length];
+		this.pens = new byte[this.starts.length];
+	}
+
+	/**
+	 * Creates a read only snapshot sharing the arrays of another store
+	 */
+	private StrokeStore(StrokeStore source){
+		this.xs = source.xs;
+		this.ys = source.ys;
+		this.pointCount = source.pointCount;
+		this.starts = source.starts;
+		this.colours = source.colours;
+		this.pens = source.pens;
+		this.strokeCount = source.strokeCount;
+		this.frozen = true;
+	}
+
+	/**
+	 * Creates a read only snapshot of the store in constant time, which can be handed to other threads without locking. The snapshot shares the arrays
+	 * of this store, which are copied by this store before it writes over anything the snapshot can see (e.g. when drawing after an undo, or simplifying
+	 * a stroke the snapshot contains part of). Appending never needs a copy, so snapshots taken while drawing normally cost nothing
+	 * @return Snapshot of the store as it currently is
+	 */
+	public StrokeStore snapshot(){
+		this.sharedPoints = Math.max(this.sharedPoints, this.pointCount);
+		this.sharedStrokes = Math.max(this.sharedStrokes, this.strokeCount);
+		return new StrokeStore(this);
+	}
+
+	/**
+	 * Creates a read only snapshot like snapshot(), which also keeps the strokes removed by removeLast() that can still be restored, so that they can be
+	 * written by writeWithUndone(). Drawing after an undo then copies the arrays, so this is only used where it is rare (e.g. by the journal)
+	 * @return Snapshot of the store and its undone strokes as they currently are
+	 */
+	public StrokeStore snapshotWithUndone(){
+		StrokeStore copy = this.snapshot();
+		copy.undoneStrokes = this.undoneStrokes;
+		copy.undonePoints = this.undonePoints;
+		if (this.undoneStrokes > 0){
+			this.sharedPoints = Math.max(this.sharedPoints, this.undonePoints);
+			this.sharedStrokes = Math.max(this.sharedStrokes, this.strokeCount + this.undoneStrokes);
+		}
+		return copy;
+	}
+
+	/**
+	 * Starts a new stroke with its first point
+	 * @param x X co-ordinate of the first point
+	 * @param y Y co-ordinate of the first point
+	 * @param diameter Diameter of the stroke (at most 127)
+	 * @param argb Colour of the stroke as packed ARGB
+	 * @param reflect Whether the stroke is reflected in each sector
+	 */
+	public void startStroke(float x, float y, int diameter, int argb, boolean reflect){
+		this.checkWritable();
+		this.undoneStrokes = 0;
+		if (this.strokeCount < this.sharedStrokes){
+			this.unshare();
+		}
+		if (this.strokeCount == this.starts.length){
+			int capacity = Math.max(this.starts.length*2, INITIAL_STROKES);
+			this.starts = Arrays.copyOf(this.starts, capacity);
+			this.colours = Arrays.copyOf(this.colours, capacity);
+			this.pens = Arrays.copyOf(this.pens, capacity);
+		}
+		this.starts[this.strokeCount] = this.pointCount;
+		this.colours[this.strokeCount] = argb;
+		this.pens[this.strokeCount] = (byte) ((diameter & 0x7F) | (reflect ? REFLECT_FLAG : 0));
+		this.strokeCount++;
+		this.appendPoint(x, y);
+	}
+
+	/**
+	 * Adds a point to the end of the most recent stroke
+	 * @param x X co-ordinate of the point
+	 * @param y Y co-ordinate of the point
+	 */
+	public void addPoint(float x, float y){
+		this.checkWritable();
+		if (this.strokeCount == 0){
+			throw new IllegalStateException("No stroke has been started");
+		}
+		this.undoneStrokes = 0;
+		this.appendPoint(x, y);
+	}
+
+	/**
+	 * Simplifies the points of the most recent stroke in place, e.g. once it has finished being drawn
+	 * @param simplifier Simplifier used to remove unnecessary points
+	 * @param scale Pixels per unit of the drawing that the stroke was drawn at
+	 */
+	public void simplifyLast(StrokeSimplifier simplifier, double scale){
+		this.checkWritable();
+		this.undoneStrokes = 0;
+		if (this.strokeCount > 0){
+			int start = this.starts[this.strokeCount-1];
+			if (start < this.sharedPoints){
+				this.unshare(); // Points are moved within the stroke
+			}
+			this.pointCount = start + simplifier.simplify(this.xs, this.ys, start, this.pointCount, scale);
+		}
+	}
+
+	/**
+	 * Removes the most recent stroke. Its points are left in the arrays, so it can be restored by restoreLast() until anything else is changed
+	 */
+	public void removeLast(){
+		this.checkWritable();
+		if (this.strokeCount == 0){
+			throw new IllegalStateException("No strokes to remove");
+		}
+		if (this.undoneStrokes == 0){
+			this.undonePoints = this.pointCount;
+		}
+		this.strokeCount--;
+		this.undoneStrokes++;
+		this.pointCount = this.starts[this.strokeCount];
+	}
+
+	/**
+	 * Restores the stroke most recently removed by removeLast(), without copying it
+	 */
+	public void restoreLast(){
+		this.checkWritable();
+		if (this.undoneStrokes == 0){
+			throw new IllegalStateException("No strokes to restore");
+		}
+		this.strokeCount++;
+		this.undoneStrokes--;
+		this.pointCount = (this.undoneStrokes > 0) ? this.starts[this.strokeCount] : this.undonePoints;
+	}
+
+	/**
+	 * @return True if there are strokes removed by removeLast() which can be restored
+	 */
+	public boolean canRestore(){
+		return this.undoneStrokes > 0;
+	}
+
+	/**
+	 * Removes every stroke, keeping the arrays so the store can be refilled without allocating
+	 */
+	public void clear(){
+		this.checkWritable();
+		this.undoneStrokes = 0;
+		this.strokeCount = 0;
+		this.pointCount = 0;
+	}
+
+	/**
+	 * Returns a view of a stroke in the store
+	 * @param stroke Index of the stroke
+	 * @return View of the stroke which can be drawn as a Shape
+	 */
+	public DrawStroke get(int stroke){
+		if (stroke < 0 || stroke >= this.strokeCount){
+			throw new IndexOutOfBoundsException("Stroke " + stroke + " of " + this.strokeCount);
+		}
+		return new DrawStroke(this, stroke);
+	}
+
+	/**
+	 * Returns a view of the most recent stroke
+	 * @return View of the last stroke in the store
+	 */
+	public DrawStroke peek(){
+		return this.get(this.strokeCount-1);
+	}
+
+	/**
+	 * @return Number of strokes in the store
+	 */
+	public int size(){
+		return this.strokeCount;
+	}
+
+	/**
+	 * @return True if there are no strokes in the store
+	 */
+	public boolean isEmpty(){
+		return this.strokeCount == 0;
+	}
+
+	/**
+	 * @return Total number of points in all of the strokes
+	 */
+	public int getTotalPoints(){
+		return this.pointCount;
+	}
+
+	/**
+	 * Gets the index in the point arrays of the first point of a stroke
+	 * @param stroke Index of the stroke
+	 * @return Index of its first point
+	 */
+	int getStart(int stroke){
+		return this.starts[stroke];
+	}
+
+	/**
+	 * Gets the number of points in a stroke
+	 * @param stroke Index of the stroke
+	 * @return Number of points
+	 */
+	int getPointCount(int stroke){
+		int end = (stroke+1 < this.strokeCount) ? this.starts[stroke+1] : this.pointCount;
+		return end - this.starts[stroke];
+	}
+
+	/**
+	 * @param point Index of a point in the point arrays
+	 * @return X co-ordinate of the point
+	 */
+	float getX(int point){
+		return this.xs[point];
+	}
+
+	/**
+	 * @param point Index of a point in the point arrays
+	 * @return Y co-ordinate of the point
+	 */
+	float getY(int point){
+		return this.ys[point];
+	}
+
+	/**
+	 * @return X co-ordinate of the most recently added point
+	 */
+	float getLastX(){
+		return this.xs[this.pointCount-1];
+	}
+
+	/**
+	 * @return Y co-ordinate of the most recently added point
+	 */
+	float getLastY(){
+		return this.ys[this.pointCount-1];
+	}
+
+	/**
+	 * @param stroke Index of the stroke
+	 * @return Colour of the stroke as packed ARGB
+	 */
+	int getColour(int stroke){
+		return this.colours[stroke];
+	}
+
+	/**
+	 * @param stroke Index of the stroke
+	 * @return Diameter of the stroke
+	 */
+	int getDiameter(int stroke){
+		return this.pens[stroke] & 0x7F;
+	}
+
+	/**
+	 * @param stroke Index of the stroke
+	 * @return Whether the stroke is reflected in each sector
+	 */
+	boolean isReflected(int stroke){
+		return (this.pens[stroke] & REFLECT_FLAG) != 0;
+	}
+
+	/**
+	 * Calculates the bounding box of the points of a stroke (not including the width of the pen)
+	 * @param stroke Index of the stroke
+	 * @return Bounds of the stroke
+	 */
+	Rectangle2D getBounds(int stroke){
+		int start = this.starts[stroke], end = start + this.getPointCount(stroke);
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i = start; i < end; i++){
+			minX = Math.min(minX, this.xs[i]);
+			minY = Math.min(minY, this.ys[i]);
+			maxX = Math.max(maxX, this.xs[i]);
+			maxY = Math.max(maxY, this.ys[i]);
+		}
+		return new Rectangle2D.Float(minX, minY, maxX-minX, maxY-minY);
+	}
+
+	/**
+	 * Shrinks the arrays to the number of points and strokes in use, e.g. once the drawing will no longer be changed
+	 */
+	public void trimToSize(){
+		this.checkWritable();
+		this.undoneStrokes = 0;
+		this.xs = Arrays.copyOf(this.xs, this.pointCount);
+		this.ys = Arrays.copyOf(this.ys, this.pointCount);
+		this.starts = Arrays.copyOf(this.starts, this.strokeCount);
+		this.colours = Arrays.copyOf(this.colours, this.strokeCount);
+		this.pens = Arrays.copyOf(this.pens, this.strokeCount);
+		this.sharedPoints = 0; // Snapshots still have the old arrays
+		this.sharedStrokes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes needed to write the store using write(), which is also roughly the memory used by a trimmed store
+	 * @return Size of the store in bytes
+	 */
+	public int getByteSize(){
+		return 8 + this.strokeCount*9 + this.pointCount*8;
+	}
+
+	/**
+	 * Writes the store into a buffer as the stroke and point counts followed by each of the arrays in turn
+	 * @param buf Buffer with at least getByteSize() bytes remaining
+	 */
+	public void write(ByteBuffer buf){
+		this.write(buf, this.strokeCount, this.pointCount);
+	}
+
+	/**
+	 * Reads a store previously written using write()
+	 * @param buf Buffer positioned at the start of the store
+	 * @return New store containing the strokes read
+	 */
+	public static StrokeStore read(ByteBuffer buf){
+		StrokeStore store = new StrokeStore();
+		store.strokeCount = buf.getInt();
+		store.pointCount = buf.getInt();
+		store.starts = new int[Math.max(store.strokeCount, INITIAL_STROKES)];
+		store.colours = new int[store.starts.length];
+		store.pens = new byte[store.starts.length];
+		store.xs = new float[Math.max(store.pointCount, INITIAL_POINTS)];
+		store.ys = new float[store.xs.length];
+		buf.asIntBuffer().get(store.starts, 0, store.strokeCount);
+		buf.position(buf.position() + store.strokeCount*4);
+		buf.asIntBuffer().get(store.colours, 0, store.strokeCount);
+		buf.position(buf.position() + store.strokeCount*4);
+		buf.get(store.pens, 0, store.strokeCount);
+		buf.asFloatBuffer().get(store.xs, 0, store.pointCount);
+		buf.position(buf.position() + store.pointCount*4);
+		buf.asFloatBuffer().get(store.ys, 0, store.pointCount);
+		buf.position(buf.position() + store.pointCount*4);
+		return store;
+	}
+
+	/**
+	 * @return Bytes needed to write the store using writeWithUndone()
+	 */
+	public int getByteSizeWithUndone(){
+		return 12 + (this.strokeCount + this.undoneStrokes)*9 + this.getPointsWithUndone()*8;
+	}
+
+	/**
+	 * Writes the store like write(), including the strokes removed by removeLast() which can still be restored, followed by how many of those there are
+	 * @param buf Buffer with at least getByteSizeWithUndone() bytes remaining
+	 */
+	public void writeWithUndone(ByteBuffer buf){
+		this.write(buf, this.strokeCount + this.undoneStrokes, this.getPointsWithUndone());
+		buf.putInt(this.undoneStrokes);
+	}
+
+	/**
+	 * Reads a store previously written using writeWithUndone(), whose undone strokes can still be restored by restoreLast()
+	 * @param buf Buffer positioned at the start of the store
+	 * @return New store containing the strokes read
+	 */
+	public static StrokeStore readWithUndone(ByteBuffer buf){
+		StrokeStore store = read(buf);
+		int undone = buf.getInt();
+		for (int i = 0; i < undone; i++){
+			store.removeLast();
+		}
+		return store;
+	}
+
+	/**
+	 * @return Number of points in use, including those of the strokes which can be restored
+	 */
+	private int getPointsWithUndone(){
+		return (this.undoneStrokes > 0) ? this.undonePoints : this.pointCount;
+	}
+
+	/**
+	 * Writes the first strokes and points of the arrays, which may include strokes that have been removed
+	 */
+	private void write(ByteBuffer buf, int strokes, int points){
+		buf.putInt(strokes);
+		buf.putInt(points);
+		buf.asIntBuffer().put(this.starts, 0, strokes);
+		buf.position(buf.position() + strokes*4);
+		buf.asIntBuffer().put(this.colours, 0, strokes);
+		buf.position(buf.position() + strokes*4);
+		buf.put(this.pens, 0, strokes);
+		buf.asFloatBuffer().put(this.xs, 0, points);
+		buf.position(buf.position() + points*4);
+		buf.asFloatBuffer().put(this.ys, 0, points);
+		buf.position(buf.position() + points*4);
+	}
+
+	/**
+	 * Appends a point to the point arrays, growing them if they are full
+	 */
+	private void appendPoint(float x, float y){
+		if (this.pointCount < this.sharedPoints){
+			this.unshare();
+		}
+		if (this.pointCount == this.xs.length){
+			int capacity = Math.max(this.xs.length*2, INITIAL_POINTS);
+			this.xs = Arrays.copyOf(this.xs, capacity);
+			this.ys = Arrays.copyOf(this.ys, capacity);
+		}
+		this.xs[this.pointCount] = x;
+		this.ys[this.pointCount] = y;
+		this.pointCount++;
+	}
+
+	/**
+	 * Copies the arrays, so that snapshots sharing the old ones are not changed by writing to them
+	 */
+	private void unshare(){
+		this.xs = this.xs.clone();
+		this.ys = this.ys.clone();
+		this.starts = this.starts.clone();
+		this.colours = this.colours.clone();
+		this.pens = this.pens.clone();
+		this.sharedPoints = 0;
+		this.sharedStrokes = 0;
+	}
+
+	/**
+	 * Prevents snapshots from being changed
+	 */
+	private void checkWritable(){
+		if (this.frozen){
+			throw new IllegalStateException("Snapshots of a StrokeStore cannot be changed");
+		}
+	}
+}
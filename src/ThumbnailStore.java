@@ -0,0 +1,236 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * Stores the thumbnails of the gallery as compressed PNGs in a file on disk, and keeps the most recently shown ones decoded in memory
+ * up to a budget, so memory use stays the same however many images are saved.
+ * Scaling, compressing, writing and decoding all happen on a single background thread. Everything else must be called on the EDT
+ * @author Dan
+ *
+ */
+public class ThumbnailStore {
+	private LinkedHashMap<GalleryImage, BufferedImage> cache = new LinkedHashMap<GalleryImage, BufferedImage>(16, 0.75f, true); // Decoded thumbnails, least recently shown first
+	private long cacheBudget; // Maximum bytes of decoded thumbnails to keep
+	private long cacheUsed = 0; // Bytes of decoded thumbnails currently kept
+	private Set<GalleryImage> loading = new HashSet<GalleryImage>(); // Thumbnails waiting to be created or decoded, removed if their image is removed first
+	private Set<GalleryImage> failed = new HashSet<GalleryImage>(); // Thumbnails which could not be created or read back, so are not tried again
+	private Runnable onLoad; // Called when a thumbnail has been decoded and can be shown
+	private ExecutorService worker; // Single background thread which does all of the encoding, decoding and file access
+	private Path filePath; // File that the thumbnails are written to (created when first needed, only used by the worker)
+	private FileChannel file; // Open channel to the file (only used by the worker)
+
+	/**
+	 * Creates a new empty store
+	 * @param cacheBudget Maximum number of bytes of decoded thumbnails to keep in memory
+	 * @param onLoad Called on the EDT whenever a thumbnail becomes available
+	 */
+	public ThumbnailStore(long cacheBudget, Runnable onLoad){
+		this.cacheBudget = cacheBudget;
+		this.onLoad = onLoad;
+		this.worker = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Doily thumbnails");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Creates the thumbnail for a gallery image in the background by scaling down a copy of the drawing, then stores it
+	 * @param entry Gallery image the thumbnail is for
+	 * @param drawing Full size image of the drawing (must not be changed afterwards)
+	 */
+	public void add(GalleryImage entry, BufferedImage drawing){
+		this.loading.add(entry);
+		this.worker.execute(() -> {
+			BufferedImage thumb;
+			byte[] png;
+			try {
+				thumb = GalleryImage.scale(drawing, entry.getWidth(), entry.getHeight());
+				png = encode(thumb);
+			} catch (RuntimeException e){
+				System.err.println("Unable to create gallery image: " + e.getMessage());
+				SwingUtilities.invokeLater(() -> {
+					if (this.loading.remove(entry)){
+						this.failed.add(entry);
+					}
+				});
+				return;
+			}
+			long offset = -1;
+			try {
+				offset = this.append(png);
+			} catch (IOException e){
+				// Keeping the compressed thumbnail in memory is better than losing it
+				System.err.println("Unable to write gallery image to disk, keeping it in memory: " + e.getMessage());
+			}
+			long written = offset;
+			SwingUtilities.invokeLater(() -> {
+				if (!this.loading.remove(entry)){
+					return; // Removed from the gallery while it was being created
+				}
+				if (written < 0){
+					entry.setData(png);
+				} else {
+					entry.setLocation(written, png.length);
+				}
+				this.put(entry, thumb);
+			});
+		});
+	}
+
+	/**
+	 * Returns the decoded thumbnail for a gallery image if it is in memory. If not, it is decoded in the background and onLoad is called once it is ready.
+	 * A thumbnail which cannot be read back is reported once and never becomes available
+	 * @param entry Gallery image to get the thumbnail of
+	 * @return The thumbnail, or null if it is not available yet
+	 */
+	public BufferedImage get(GalleryImage entry){
+		BufferedImage thumb = this.cache.get(entry);
+		if (thumb == null && entry.isStored() && !this.failed.contains(entry) && this.loading.add(entry)){
+			long offset = entry.getOffset();
+			int length = entry.getLength();
+			byte[] data = entry.getData();
+			this.worker.execute(() -> {
+				BufferedImage decoded;
+				try {
+					decoded = decode(data != null ? data : this.read(offset, length));
+				} catch (RuntimeException e){
+					System.err.println("Unable to show gallery image: " + e.getMessage());
+					decoded = null;
+				}
+				BufferedImage result = decoded;
+				SwingUtilities.invokeLater(() -> {
+					if (!this.loading.remove(entry)){
+						return; // Removed from the gallery while it was being decoded
+					}
+					if (result == null){
+						this.failed.add(entry);
+					} else {
+						this.put(entry, result);
+					}
+				});
+			});
+		}
+		return thumb;
+	}
+
+	/**
+	 * Removes the thumbnail of a gallery image from memory. The space it used on disk is not reused
+	 * @param entry Gallery image that has been removed
+	 */
+	public void remove(GalleryImage entry){
+		this.loading.remove(entry);
+		this.failed.remove(entry);
+		BufferedImage thumb = this.cache.remove(entry);
+		if (thumb != null){
+			this.cacheUsed -= bytes(thumb);
+		}
+	}
+
+	/**
+	 * Adds a decoded thumbnail to the cache, removing the least recently shown ones until back under budget, then tells the gallery
+	 */
+	private void put(GalleryImage entry, BufferedImage thumb){
+		BufferedImage old = this.cache.put(entry, thumb);
+		if (old != null){
+			this.cacheUsed -= bytes(old);
+		}
+		this.cacheUsed += bytes(thumb);
+		Iterator<Map.Entry<GalleryImage, BufferedImage>> it = this.cache.entrySet().iterator();
+		while (this.cacheUsed > this.cacheBudget && this.cache.size() > 1){
+			Map.Entry<GalleryImage, BufferedImage> eldest = it.next();
+			this.cacheUsed -= bytes(eldest.getValue());
+			it.remove();
+		}
+		this.onLoad.run();
+	}
+
+	/**
+	 * Writes a compressed thumbnail to the end of the file
+	 * @param png Compressed thumbnail
+	 * @return Position it was written to
+	 */
+	private long append(byte[] png) throws IOException{
+		if (this.file == null){
+			this.filePath = Files.createTempFile("doily-gallery", ".seg");
+			this.filePath.toFile().deleteOnExit();
+			this.file = FileChannel.open(this.filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		long offset = this.file.size();
+		ByteBuffer buf = ByteBuffer.wrap(png);
+		while (buf.hasRemaining()){
+			this.file.write(buf, offset + buf.position());
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads a compressed thumbnail back from the file
+	 */
+	private byte[] read(long offset, int length){
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			while (buf.hasRemaining()){
+				if (this.file.read(buf, offset + buf.position()) < 0){
+					throw new IOException("Gallery file is shorter than expected");
+				}
+			}
+			return buf.array();
+		} catch (IOException e){
+			throw new UncheckedIOException("Unable to read gallery image from " + this.filePath, e);
+		}
+	}
+
+	/**
+	 * Compresses a thumbnail as a PNG
+	 */
+	private static byte[] encode(BufferedImage thumb){
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(thumb, "png", out);
+			return out.toByteArray();
+		} catch (IOException e){
+			throw new UncheckedIOException("Unable to compress gallery image", e);
+		}
+	}
+
+	/**
+	 * Decodes a thumbnail compressed with encode()
+	 */
+	private static BufferedImage decode(byte[] png){
+		try {
+			BufferedImage thumb = ImageIO.read(new ByteArrayInputStream(png));
+			if (thumb == null){
+				throw new IOException("Not a PNG image");
+			}
+			return thumb;
+		} catch (IOException e){
+			throw new UncheckedIOException("Unable to decode gallery image", e);
+		}
+	}
+
+	/**
+	 * @return Approximate memory used by a decoded thumbnail
+	 */
+	private static long bytes(BufferedImage thumb){
+		return (long) thumb.getWidth()*thumb.getHeight()*4;
+	}
+}
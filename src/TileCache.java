@@ -0,0 +1,330 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cache of the rendered drawing, split into square tiles. Tiles are positioned relative to the centre of the drawing rather than the corner of the panel,
+ * so when the panel is resized or panned any tile that is still visible stays valid and only newly exposed tiles need drawing.
+ * The tiles are drawn at a zoom level, where level L is drawn at a scale of 2^L pixels per unit of the drawing, so tiles are always drawn 1:1 on screen.
+ * Positions and keys of tiles are in pixels at the level of the cache, which is only the same as the drawing at level 0
+ * @author Dan
+ *
+ */
+public class TileCache {
+	public static final int TILE_SIZE = 256; // Width and height of each tile in pixels
+	private static final AffineTransform IDENTITY = new AffineTransform(); // Never changed, used to reset the transform of a tile's graphics context
+
+	private int level = 0; // Zoom level the tiles are drawn at
+	private HashMap<Long, Tile> tiles = new HashMap<Long, Tile>(); // Tiles currently in the cache, indexed by their key
+	private Tile[] tileArray = null; // Every tile in the cache, so they can be looped over without allocating (null until needed after the tiles change)
+	private Rectangle visible = new Rectangle(); // Area of the drawing currently visible in pixels, relative to the centre
+	private Rectangle clip = new Rectangle(); // Reused by paint() for the clip bounds
+
+	/**
+	 * Combines the column and row of a tile into a single key
+	 * @param tx Column of the tile (0 is the column to the right of the centre)
+	 * @param ty Row of the tile (0 is the row below the centre)
+	 * @return Key used to index the tile
+	 */
+	public static long key(int tx, int ty){
+		return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the column of a tile from its key
+	 * @param key Key of the tile
+	 * @return Column of the tile
+	 */
+	public static int tileX(long key){
+		return (int) (key >> 32);
+	}
+
+	/**
+	 * Gets the row of a tile from its key
+	 * @param key Key of the tile
+	 * @return Row of the tile
+	 */
+	public static int tileY(long key){
+		return (int) key;
+	}
+
+	/**
+	 * Gets the area covered by a tile in pixels at its level, relative to the centre
+	 * @param key Key of the tile
+	 * @return Bounds of the tile
+	 */
+	public static Rectangle getTileBounds(long key){
+		return new Rectangle(tileX(key)*TILE_SIZE, tileY(key)*TILE_SIZE, TILE_SIZE, TILE_SIZE);
+	}
+
+	/**
+	 * Gets the area of the drawing covered by a tile, in units of the drawing. When zoomed out it is grown by a pixel,
+	 * as a stroke just outside a tile can still be antialiased into its edge
+	 * @param key Key of the tile
+	 * @param level Zoom level of the tile
+	 * @return Bounds of the tile relative to the centre of the drawing
+	 */
+	public static Rectangle2D getArea(long key, int level){
+		double size = TILE_SIZE/scale(level);
+		double pad = level < 0 ? 1/scale(level) : 0;
+		return new Rectangle2D.Double(tileX(key)*size - pad, tileY(key)*size - pad, size + 2*pad, size + 2*pad);
+	}
+
+	/**
+	 * Gets the number of pixels per unit of the drawing at a zoom level
+	 * @param level Zoom level
+	 * @return 2 to the power of the level
+	 */
+	public static double scale(int level){
+		return Math.scalb(1.0, level);
+	}
+
+	/**
+	 * @return Zoom level the tiles are drawn at
+	 */
+	public int getLevel(){
+		return this.level;
+	}
+
+	/**
+	 * Removes every tile from the cache and changes the level that tiles are drawn at. No tiles are visible until setVisible() is called
+	 * @param level New zoom level
+	 * @return Images of the removed tiles, indexed by key, e.g. so they can be kept or scaled to the new level
+	 */
+	public Map<Long, BufferedImage> setLevel(int level){
+		HashMap<Long, BufferedImage> removed = new HashMap<Long, BufferedImage>();
+		for (Tile tile : this.tiles.values()){
+			removed.put(tile.key, tile.image);
+			tile.setImage(null); // Closes its graphics context
+		}
+		this.tiles.clear();
+		this.tileArray = null;
+		this.visible = new Rectangle();
+		this.level = level;
+		return removed;
+	}
+
+	/**
+	 * Updates the cache for a new visible area, e.g. when the panel is resized or panned. Tiles that are no longer visible are removed
+	 * and tiles that have become visible are created blank
+	 * @param visible Area now visible in pixels at the level of the cache, relative to the centre
+	 * @param hidden Filled with the images of the removed tiles, indexed by key, so they can be kept for when they are visible again
+	 * @return Keys of the newly created tiles, which need to be drawn
+	 */
+	public Collection<Long> setVisible(Rectangle visible, Map<Long, BufferedImage> hidden){
+		this.visible = new Rectangle(visible);
+		ArrayList<Long> exposed = new ArrayList<Long>();
+
+		// Removes any tiles which are now completely outside of the panel
+		Iterator<Tile> it = this.tiles.values().iterator();
+		while (it.hasNext()){
+			Tile tile = it.next();
+			if (!this.visible.intersects(tile.x, tile.y, TILE_SIZE, TILE_SIZE)){
+				hidden.put(tile.key, tile.image);
+				tile.setImage(null); // Closes its graphics context
+				it.remove();
+				this.tileArray = null;
+			}
+		}
+
+		// Creates any tiles which are now visible but not in the cache
+		if (!this.visible.isEmpty()){
+			int minTX = Math.floorDiv(this.visible.x, TILE_SIZE), maxTX = Math.floorDiv(this.visible.x+this.visible.width-1, TILE_SIZE);
+			int minTY = Math.floorDiv(this.visible.y, TILE_SIZE), maxTY = Math.floorDiv(this.visible.y+this.visible.height-1, TILE_SIZE);
+			for (int tx = minTX; tx <= maxTX; tx++){
+				for (int ty = minTY; ty <= maxTY; ty++){
+					long key = key(tx, ty);
+					if (!this.tiles.containsKey(key)){
+						this.tiles.put(key, new Tile(key, this.level, createTile()));
+						exposed.add(key);
+						this.tileArray = null;
+					}
+				}
+			}
+		}
+		return exposed;
+	}
+
+	/**
+	 * Takes a copy of every tile in the cache
+	 * @return Copies of the tiles, indexed by their key
+	 */
+	public HashMap<Long, BufferedImage> copyTiles(){
+		HashMap<Long, BufferedImage> copies = new HashMap<Long, BufferedImage>();
+		for (Tile tile : this.tiles.values()){
+			BufferedImage copy = createTile();
+			tile.image.copyData(copy.getRaster());
+			copies.put(tile.key, copy);
+		}
+		return copies;
+	}
+
+	/**
+	 * Overwrites tiles in the cache with previously copied tiles. Copies of tiles no longer in the cache are ignored
+	 * @param copies Copies of tiles, indexed by their key
+	 * @return Keys of the tiles in the cache which were not restored, and so still need drawing
+	 */
+	public Collection<Long> restore(Map<Long, BufferedImage> copies){
+		ArrayList<Long> missing = new ArrayList<Long>();
+		for (Tile tile : this.tiles.values()){
+			BufferedImage copy = copies.get(tile.key);
+			if (copy != null){
+				copy.copyData(tile.image.getRaster()); // Copied in place, so the tile's graphics context is still valid
+			} else {
+				missing.add(tile.key);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Replaces tiles in the cache with newly drawn ones. New tiles which are no longer in the cache (i.e. the panel has been resized) are ignored
+	 * @param redrawn New tiles, indexed by their key
+	 * @param draft Whether the new tiles were drawn in draft
+	 * @return Keys of the tiles which were replaced
+	 */
+	public Collection<Long> replace(Map<Long, BufferedImage> redrawn, boolean draft){
+		ArrayList<Long> replaced = new ArrayList<Long>();
+		for (Map.Entry<Long, BufferedImage> tile : redrawn.entrySet()){
+			Tile existing = this.tiles.get(tile.getKey());
+			if (existing != null){
+				existing.setImage(tile.getValue());
+				existing.draft = draft;
+				replaced.add(tile.getKey());
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * Returns the keys of every tile in the cache
+	 * @return Keys of all the tiles
+	 */
+	public Collection<Long> getKeys(){
+		return this.tiles.keySet();
+	}
+
+	/**
+	 * Returns every tile in the cache. The array is reused until tiles are added or removed, so must not be changed
+	 * @return Tiles in the cache
+	 */
+	public Tile[] getTiles(){
+		if (this.tileArray == null){
+			this.tileArray = this.tiles.values().toArray(new Tile[0]);
+		}
+		return this.tileArray;
+	}
+
+	/**
+	 * Creates a graphics context for drawing into a tile, translated so that 0,0 is the centre of the drawing and scaled to the level of the cache
+	 * @param key Key of the tile to draw into
+	 * @return Graphics context for the tile
+	 */
+	public Graphics2D createGraphics(long key){
+		return createGraphics(this.tiles.get(key).image, key, this.level);
+	}
+
+	/**
+	 * Creates a graphics context for drawing into a tile image which is not (yet) in the cache
+	 * @param tile Image of the tile
+	 * @param key Key of the tile
+	 * @param level Zoom level of the tile
+	 * @return Graphics context for the tile, translated so that 0,0 is the centre of the drawing and scaled so strokes can be drawn in units of the drawing
+	 */
+	public static Graphics2D createGraphics(BufferedImage tile, long key, int level){
+		Graphics2D g2d = tile.createGraphics();
+		g2d.translate(-tileX(key)*TILE_SIZE, -tileY(key)*TILE_SIZE);
+		if (level != 0){
+			g2d.scale(scale(level), scale(level));
+		}
+		return g2d;
+	}
+
+	/**
+	 * Creates a new blank image for a tile
+	 * @return Blank tile image
+	 */
+	public static BufferedImage createTile(){
+		return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * Paints all of the tiles that are inside the clip area of the graphics context, 1:1 as they are already drawn at the scale they are shown
+	 * @param g2d Graphics context to draw to, translated so that 0,0 is the centre of the drawing (but not scaled)
+	 */
+	public void paint(Graphics2D g2d){
+		this.clip.setBounds(Integer.MIN_VALUE/2, Integer.MIN_VALUE/2, Integer.MAX_VALUE, Integer.MAX_VALUE); // Left unchanged if there is no clip
+		g2d.getClipBounds(this.clip);
+		for (Tile tile : this.getTiles()){
+			if (this.clip.intersects(tile.x, tile.y, TILE_SIZE, TILE_SIZE)){
+				g2d.drawImage(tile.image, tile.x, tile.y, null);
+			}
+		}
+	}
+
+	/**
+	 * A single tile in the cache. Its graphics context is kept open between drag events, rather than one being created for every segment drawn,
+	 * and is only closed when the tile's image is replaced or the tile leaves the cache
+	 */
+	public static class Tile {
+		final long key; // Key of the tile
+		final int x, y; // Position of the top left of the tile in pixels, relative to the centre
+		final Rectangle2D area; // Area of the drawing covered by the tile, in units of the drawing
+		private double scale; // Pixels per unit of the drawing
+		private BufferedImage image; // Image of the tile
+		private Graphics2D graphics = null; // Context drawing into the image (null until first needed)
+		private boolean graphicsDraft; // Whether the context is set to draw in draft
+		boolean draft = false; // Whether strokes have been painted into the image in draft, so it needs redrawing at full quality
+
+		Tile(long key, int level, BufferedImage image){
+			this.key = key;
+			this.x = tileX(key)*TILE_SIZE;
+			this.y = tileY(key)*TILE_SIZE;
+			this.area = getArea(key, level);
+			this.scale = scale(level);
+			this.image = image;
+		}
+
+		/**
+		 * Returns the graphics context of the tile, translated so that 0,0 is the centre of the drawing and scaled to the level of the tile.
+		 * Any other transform left by the previous caller is reset, but the colour and stroke are not. The context belongs to the tile so must not be disposed
+		 * @param draft Whether the context should draw in draft rather than at full quality (only changed if it differs from the previous caller)
+		 * @return Graphics context for the tile
+		 */
+		public Graphics2D getGraphics(boolean draft){
+			if (this.graphics == null){
+				this.graphics = this.image.createGraphics();
+				DoilyRenderer.setQuality(this.graphics, draft);
+				this.graphicsDraft = draft;
+			} else if (this.graphicsDraft != draft){
+				DoilyRenderer.setQuality(this.graphics, draft);
+				this.graphicsDraft = draft;
+			}
+			this.graphics.setTransform(IDENTITY);
+			this.graphics.translate(-this.x, -this.y);
+			if (this.scale != 1){
+				this.graphics.scale(this.scale, this.scale);
+			}
+			return this.graphics;
+		}
+
+		/**
+		 * Changes the image of the tile, closing the graphics context of the old image
+		 */
+		private void setImage(BufferedImage image){
+			if (this.graphics != null){
+				this.graphics.dispose();
+				this.graphics = null;
+			}
+			this.image = image;
+			this.draft = false;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps rendered tiles which are not currently visible, from every zoom level, so that panning or zooming back to them does not need them drawn again.
+ * Together with the tiles of the TileCache (the level being shown) this forms a pyramid of the drawing at each scale, filled in lazily as it is viewed.
+ * Tiles are kept under a memory budget, with the least recently used being discarded first. Each tile records how many strokes it contains,
+ * so strokes drawn since it was put away can be painted over it; anything else that changes the drawing (e.g. undo) means the pyramid must be cleared
+ * @author Dan
+ *
+ */
+public class TilePyramid {
+	private static final int LEVEL_BITS = 8; // Bits of each key used for the level, leaving 28 for the column and the row
+	private static final int INDEX_BITS = (64 - LEVEL_BITS)/2; // Bits of each key used for the column and for the row
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+	private LinkedHashMap<Long, Entry> tiles = new LinkedHashMap<Long, Entry>(16, 0.75f, true); // Access ordered so the first entry is the least recently used
+	private long budget; // Maximum number of bytes of tiles to keep
+	private long used = 0; // Bytes of tiles currently kept
+
+	/**
+	 * Creates a new empty pyramid
+	 * @param budget Maximum number of bytes that the tiles may use
+	 */
+	public TilePyramid(long budget){
+		this.budget = budget;
+	}
+
+	/**
+	 * Combines the level of a tile with its key in the TileCache. Columns and rows wrap after 2^27 tiles either side of the centre,
+	 * which is far further than a float can place a stroke at any zoom level
+	 */
+	private static long key(int level, long key){
+		return ((long) level << (2*INDEX_BITS)) | ((TileCache.tileX(key) & INDEX_MASK) << INDEX_BITS) | (TileCache.tileY(key) & INDEX_MASK);
+	}
+
+	/**
+	 * Keeps a tile which is no longer visible. The least recently used tiles are discarded if the pyramid goes over budget
+	 * @param level Zoom level of the tile
+	 * @param key Key of the tile in the TileCache
+	 * @param image Image of the tile, which must not be changed afterwards
+	 * @param strokeCount Number of strokes drawn into the tile
+	 */
+	public void put(int level, long key, BufferedImage image, int strokeCount){
+		Entry old = this.tiles.put(key(level, key), new Entry(image, strokeCount));
+		if (old != null){
+			this.used -= old.getBytes();
+		}
+		this.used += bytes(image);
+
+		Iterator<Entry> it = this.tiles.values().iterator();
+		while (this.used > this.budget && it.hasNext()){
+			this.used -= it.next().getBytes();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes a tile from the pyramid, e.g. as it has become visible again
+	 * @param level Zoom level of the tile
+	 * @param key Key of the tile in the TileCache
+	 * @return The tile, or null if it is not kept
+	 */
+	public Entry take(int level, long key){
+		Entry entry = this.tiles.remove(key(level, key));
+		if (entry != null){
+			this.used -= entry.getBytes();
+		}
+		return entry;
+	}
+
+	/**
+	 * Discards every tile, e.g. after an undo, as they contain strokes which may no longer be in the drawing
+	 */
+	public void clear(){
+		this.tiles.clear();
+		this.used = 0;
+	}
+
+	/**
+	 * @return Approximate bytes used by the tiles
+	 */
+	public long getBytesUsed(){
+		return this.used;
+	}
+
+	/**
+	 * @return Approximate memory used by a tile image
+	 */
+	private static long bytes(BufferedImage image){
+		return (long) image.getWidth()*image.getHeight()*4;
+	}
+
+	/**
+	 * A tile kept in the pyramid
+	 */
+	static class Entry {
+		private BufferedImage image; // Image of the tile
+		private int strokeCount; // Number of strokes drawn into the tile
+
+		Entry(BufferedImage image, int strokeCount){
+			this.image = image;
+			this.strokeCount = strokeCount;
+		}
+
+		/**
+		 * @return Image of the tile
+		 */
+		BufferedImage getImage(){
+			return this.image;
+		}
+
+		/**
+		 * @return Number of strokes drawn into the tile
+		 */
+		int getStrokeCount(){
+			return this.strokeCount;
+		}
+
+		/**
+		 * @return Approximate memory used by the tile
+		 */
+		long getBytes(){
+			return bytes(this.image);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Renders a drawing by rasterising a single sector (the wedge between angle 0 and 2*PI/sectorCount) and copying it into every other sector,
+ * rather than stroking every copy of every stroke. As each stroke is drawn in every sector, the whole drawing is unchanged by rotating it one sector,
+ * so every pixel can be looked up in the wedge by rotating it back into the wedge. Only the copies of each stroke which overlap the wedge need stroking,
+ * about one or two per stroke instead of one per sector (or two with reflection).
+ * The position in the wedge of every pixel of a canvas is calculated once per canvas and sector count, then cached unless the canvas is very large
+ * @author Dan
+ *
+ */
+public class WedgeRenderer {
+	private static final int WEDGE_COST = 2; // Approximate number of copies of each stroke drawn into the wedge, used to decide when it is quicker
+	private static final int KERNEL_CACHE_SIZE = 2; // Number of kernels kept (e.g. for the view before and after a resize), as each takes 4 bytes per pixel
+	private static final long KERNEL_CACHE_MAX_PIXELS = 3840L*2160; // Kernels for canvases larger than this (a 4K screen) are calculated every time rather than kept
+	private static final Map<KernelKey, FutureTask<Kernel>> kernels = new LinkedHashMap<KernelKey, FutureTask<Kernel>>(16, 0.75f, true){ // Kernels indexed by canvas and sector count, least recently used first
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<KernelKey, FutureTask<Kernel>> eldest){
+			return this.size() > KERNEL_CACHE_SIZE;
+		}
+	};
+	private static long kernelHits = 0, kernelMisses = 0; // Number of times a kernel was found in the cache or had to be calculated (guarded by kernels)
+
+	/**
+	 * Decides whether rendering with a wedge is quicker than drawing strokes in every sector, if wedge rendering is enabled
+	 * @param drawn Number of strokes which would be drawn in every sector (e.g. only those since a snapshot)
+	 * @param count Number of strokes which would be drawn into the wedge (every stroke in the drawing)
+	 * @param sectorCount Number of sectors in the drawing
+	 * @return True if the wedge should be used
+	 */
+	public static boolean isQuicker(int drawn, int count, int sectorCount){
+		return DigitalDoily.WEDGE_RENDER && (long) drawn*sectorCount > (long) count*WEDGE_COST;
+	}
+
+	/**
+	 * Decides whether a canvas is close enough to the centre of the drawing for a wedge to be worth rendering. The wedge reaches from the centre
+	 * to the furthest corner of the canvas, so for a canvas panned far from the centre it would be much larger than the canvas itself
+	 * @param canvas Area to render in pixels, relative to the centre of the drawing
+	 * @return True if the wedge is no larger than the canvas
+	 */
+	public static boolean suits(Rectangle canvas){
+		double radius = 0;
+		for (int i = 0; i < 4; i++){
+			double cx = (i & 1) == 0 ? canvas.getMinX() : canvas.getMaxX();
+			double cy = (i & 2) == 0 ? canvas.getMinY() : canvas.getMaxY();
+			radius = Math.max(radius, Math.hypot(cx, cy));
+		}
+		return radius*radius <= (double) canvas.width*canvas.height;
+	}
+
+	/**
+	 * Renders strokes into an area of the drawing by rasterising one wedge and replicating it
+	 * @param strokes Store containing the strokes to draw
+	 * @param count Number of strokes from the store to draw
+	 * @param sectorCount Number of sectors to draw the strokes in
+	 * @param index Spatial index of the strokes, used for the bounds of their copies (may be null, in which case they are calculated)
+	 * @param canvas Area to render in pixels, relative to the centre of the drawing
+	 * @param scale Pixels per unit of the drawing
+	 * @param draft Whether to draw the strokes in draft rather than at full quality
+	 * @param cancelled Checked between strokes so that a render which is no longer needed can stop early (may be null)
+	 * @return ARGB pixels of the canvas, a row at a time, transparent where nothing has been drawn
+	 */
+	public static int[] render(StrokeStore strokes, int count, int sectorCount, StrokeIndex index, Rectangle canvas, double scale, boolean draft, BooleanSupplier cancelled){
+		Kernel kernel = kernel(canvas, sectorCount);
+		Rectangle wedge = kernel.wedge;
+
+		// Strokes every copy which overlaps the wedge (in drawing units) into an image of the wedge
+		BufferedImage img = new BufferedImage(wedge.width, wedge.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.translate(-wedge.x, -wedge.y);
+		g2d.scale(scale, scale);
+		DoilyRenderer.setQuality(g2d, draft);
+		Rectangle2D area = new Rectangle2D.Double(wedge.x/scale, wedge.y/scale, wedge.width/scale, wedge.height/scale);
+		for (int i = 0; i < count; i++){
+			if (cancelled != null && (i & 63) == 0 && cancelled.getAsBoolean()){
+				break;
+			}
+			DrawStroke ds = strokes.get(i);
+			Rectangle2D[] copies = (index != null) ? index.copyBounds(i) : DoilyRenderer.copyBounds(ds, ds.getDiameter(), ds.isReflected(), sectorCount);
+			boolean penSet = false; // The pen is only changed if a copy of this stroke lands in the wedge
+			for (int c = 0; c < copies.length; c++){
+				if (copies[c].intersects(area)){
+					if (!penSet){
+						g2d.setColor(ds.getColour());
+						g2d.setStroke(DoilyRenderer.pen(ds.getDiameter()));
+						penSet = true;
+					}
+					DoilyRenderer.drawCopy(g2d, ds, c, ds.isReflected(), sectorCount);
+				}
+			}
+		}
+		g2d.dispose();
+
+		// Looks up every pixel of the canvas in the wedge
+		int[] src = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		int[] pixels = new int[kernel.source.length];
+		for (int p = 0; p < pixels.length; p++){
+			pixels[p] = src[kernel.source[p]];
+		}
+		return pixels;
+	}
+
+	/**
+	 * Copies part of a rendered canvas into an image, e.g. a tile
+	 * @param pixels Pixels returned by render()
+	 * @param canvas Area that was rendered
+	 * @param img Image to copy into, which must be TYPE_INT_ARGB or TYPE_INT_RGB
+	 * @param x X co-ordinate of the top left of the image, in the same co-ordinates as the canvas
+	 * @param y Y co-ordinate of the top left of the image, in the same co-ordinates as the canvas
+	 */
+	public static void copy(int[] pixels, Rectangle canvas, BufferedImage img, int x, int y){
+		int[] dest = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		Rectangle overlap = canvas.intersection(new Rectangle(x, y, img.getWidth(), img.getHeight()));
+		for (int row = overlap.y; row < overlap.y + overlap.height; row++){
+			System.arraycopy(pixels, (row - canvas.y)*canvas.width + (overlap.x - canvas.x), dest, (row - y)*img.getWidth() + (overlap.x - x), overlap.width);
+		}
+	}
+
+	/**
+	 * Returns the kernel for a canvas and sector count, calculating it if it is not cached. The lock is only held to find or add the kernel's future,
+	 * so the thread which adds it calculates it without blocking renders of other canvases, and renders of the same canvas wait for it
+	 */
+	private static Kernel kernel(Rectangle canvas, int sectorCount){
+		if ((long) canvas.width*canvas.height > KERNEL_CACHE_MAX_PIXELS){
+			synchronized (kernels){
+				kernelMisses++;
+			}
+			return new Kernel(canvas, sectorCount);
+		}
+		KernelKey key = new KernelKey(canvas, sectorCount);
+		FutureTask<Kernel> task;
+		boolean calculate = false;
+		synchronized (kernels){
+			task = kernels.get(key);
+			if (task == null){
+				task = new FutureTask<Kernel>(() -> new Kernel(canvas, sectorCount));
+				kernels.put(key, task);
+				calculate = true;
+				kernelMisses++;
+			} else {
+				kernelHits++;
+			}
+		}
+		if (calculate){
+			task.run();
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e){
+			synchronized (kernels){
+				kernels.remove(key, task); // Lets a later render try again
+			}
+			if (e.getCause() instanceof Error){
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException("Unable to calculate the wedge kernel", e.getCause());
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return new Kernel(canvas, sectorCount);
+		}
+	}
+
+	/**
+	 * @return Number of renders which found their kernel already calculated
+	 */
+	public static long getKernelHits(){
+		synchronized (kernels){
+			return kernelHits;
+		}
+	}
+
+	/**
+	 * @return Number of renders which had to calculate their kernel
+	 */
+	public static long getKernelMisses(){
+		synchronized (kernels){
+			return kernelMisses;
+		}
+	}
+
+	/**
+	 * Canvas and sector count a kernel is calculated for, used to find it in the cache
+	 */
+	static final class KernelKey {
+		private final int x, y, width, height; // Area of the canvas
+		private final int sectorCount; // Number of sectors
+
+		KernelKey(Rectangle canvas, int sectorCount){
+			this.x = canvas.x;
+			this.y = canvas.y;
+			this.width = canvas.width;
+			this.height = canvas.height;
+			this.sectorCount = sectorCount;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof KernelKey)){
+				return false;
+			}
+			KernelKey k = (KernelKey) o;
+			return this.x == k.x && this.y == k.y && this.width == k.width && this.height == k.height && this.sectorCount == k.sectorCount;
+		}
+
+		@Override
+		public int hashCode(){
+			return (((this.x*31 + this.y)*31 + this.width)*31 + this.height)*31 + this.sectorCount;
+		}
+	}
+
+	/**
+	 * Position in the wedge image of every pixel of a canvas
+	 */
+	static class Kernel {
+		private Rectangle wedge; // Area covered by the wedge image, in the same co-ordinates as the canvas
+		private int[] source; // Index in the wedge image of each pixel of the canvas, a row at a time
+
+		/**
+		 * Calculates the kernel for a canvas
+		 * @param canvas Area to render, relative to the centre of the drawing
+		 * @param sectorCount Number of sectors in the drawing
+		 */
+		Kernel(Rectangle canvas, int sectorCount){
+			double sector = 2*Math.PI/sectorCount;
+
+			// The wedge reaches from the centre to the furthest corner of the canvas, so its bounds are found from points along its arc
+			double radius = 0;
+			for (int i = 0; i < 4; i++){
+				double cx = (i & 1) == 0 ? canvas.getMinX() : canvas.getMaxX();
+				double cy = (i & 2) == 0 ? canvas.getMinY() : canvas.getMaxY();
+				radius = Math.max(radius, Math.hypot(cx, cy));
+			}
+			Rectangle2D bounds = new Rectangle2D.Double();
+			for (int i = 0; i <= 64; i++){
+				double angle = sector*i/64;
+				bounds.add(radius*Math.cos(angle), radius*Math.sin(angle));
+			}
+			for (double axis = Math.PI/2; axis < sector; axis += Math.PI/2){ // Arc may bulge out further where it crosses an axis
+				bounds.add(radius*Math.cos(axis), radius*Math.sin(axis));
+			}
+			this.wedge = bounds.getBounds();
+			this.wedge.grow(2, 2);
+
+			// Rotates the centre of each pixel back into the wedge, by the number of whole sectors it is round from angle 0
+			double[] cos = new double[sectorCount], sin = new double[sectorCount];
+			for (int k = 0; k < sectorCount; k++){
+				cos[k] = Math.cos(k*sector);
+				sin[k] = Math.sin(k*sector);
+			}
+			this.source = new int[canvas.width*canvas.height];
+			int p = 0;
+			for (int y = canvas.y; y < canvas.y + canvas.height; y++){
+				double py = y + 0.5;
+				for (int x = canvas.x; x < canvas.x + canvas.width; x++){
+					double px = x + 0.5;
+					double angle = Math.atan2(py, px);
+					if (angle < 0){
+						angle += 2*Math.PI;
+					}
+					int k = Math.min((int) (angle/sector), sectorCount-1);
+					int sx = (int) Math.floor(px*cos[k] + py*sin[k]) - this.wedge.x;
+					int sy = (int) Math.floor(-px*sin[k] + py*cos[k]) - this.wedge.y;
+					sx = Math.max(0, Math.min(this.wedge.width-1, sx));
+					sy = Math.max(0, Math.min(this.wedge.height-1, sy));
+					this.source[p++] = sy*this.wedge.width + sx;
+				}
+			}
+		}
+	}
+}